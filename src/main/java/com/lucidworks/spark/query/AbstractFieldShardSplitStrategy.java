@@ -14,6 +14,9 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public abstract class AbstractFieldShardSplitStrategy<T> implements ShardSplitStrategy, Serializable {
 
@@ -34,6 +37,13 @@ public abstract class AbstractFieldShardSplitStrategy<T> implements ShardSplitSt
   // should be around 2.0, used when trying to join non-adjacent splits that are nearly half the size of the docsPerSplit threshold
   protected static final double smallDocsFactor = 1.8d;
 
+  // if set, the hit counts for the sub-splits of a re-split are fetched concurrently
+  protected transient ExecutorService executor = null;
+
+  public void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
   public List<ShardSplit> getSplits(String shardUrl,
                                     SolrQuery query,
                                     String splitFieldName,
@@ -132,6 +142,41 @@ public abstract class AbstractFieldShardSplitStrategy<T> implements ShardSplitSt
     return split.getNumHits();
   }
 
+  /**
+   * Fetches the hit counts of the given splits, concurrently if an executor was set.
+   */
+  protected void fetchNumHits(final SolrClient solrClient, List<ShardSplit> splits) throws IOException, SolrServerException {
+    if (executor == null || splits.size() < 2) {
+      for (ShardSplit split : splits) {
+        fetchNumHits(solrClient, split);
+      }
+      return;
+    }
+
+    List<Future<Long>> futures = new ArrayList<Future<Long>>(splits.size());
+    for (final ShardSplit split : splits) {
+      futures.add(executor.submit(() -> fetchNumHits(solrClient, split)));
+    }
+    try {
+      for (Future<Long> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new SolrServerException("Interrupted while fetching split sizes", ie);
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      if (cause instanceof IOException) throw (IOException)cause;
+      if (cause instanceof SolrServerException) throw (SolrServerException)cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      throw new SolrServerException(cause);
+    } finally {
+      for (Future<Long> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
   /**
    * Finds min/max of the split field and then builds splits that span the range.
    */
@@ -240,7 +285,6 @@ public abstract class AbstractFieldShardSplitStrategy<T> implements ShardSplitSt
       T upperBound = (b < numSplits-1) ? toBeSplit.nextUpper(lowerBound, bucketSize) : toBeSplit.getUpper();
       ShardSplit<T> sub =
           createShardSplit(toBeSplit.getQuery(), toBeSplit.getShardUrl(), toBeSplit.getSplitFieldName(), fsi, lowerBound, upperBound);
-      fetchNumHits(solrClient, sub);
       list.add(sub);
 
       if (b < numSplits-1 && upperBound.equals(toBeSplit.getUpper())) {
@@ -251,6 +295,8 @@ public abstract class AbstractFieldShardSplitStrategy<T> implements ShardSplitSt
       lowerBound = upperBound;
     }
 
+    fetchNumHits(solrClient, list);
+
     long _diffMs = (System.currentTimeMillis() - _startMs);
     log.info("Took "+_diffMs+" ms to re-split "+toBeSplit.toString()+" into "+
         list.size()+" sub-splits to achieve "+docsPerSplit+" docs per split");
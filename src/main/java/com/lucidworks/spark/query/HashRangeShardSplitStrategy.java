@@ -0,0 +1,61 @@
+package com.lucidworks.spark.query;
+
+import org.apache.log4j.Logger;
+import org.apache.solr.client.solrj.SolrQuery;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Implements a shard splitting strategy that divides a shard into the buckets of a hash of a field, using Solr's
+ * hash query parser ({!hash workers=N worker=i partitionKeys=field}). Unlike the field range strategies, no
+ * queries are needed to plan the splits, and their sizes are balanced by the hash function rather than by
+ * refining ranges; every doc falls in exactly one split, including docs without a value for the field.
+ * The field should have docValues, or Solr has to un-invert it.
+ */
+public class HashRangeShardSplitStrategy implements ShardSplitStrategy, Serializable {
+
+  public static Logger log = Logger.getLogger(HashRangeShardSplitStrategy.class);
+
+  public List<ShardSplit> getSplits(String shardUrl, SolrQuery query, String splitFieldName, int numSplits) {
+    List<ShardSplit> splits = new ArrayList<ShardSplit>(numSplits);
+    if (numSplits <= 1) {
+      splits.add(new HashRangeShardSplit(query, shardUrl, splitFieldName, 0, 1));
+    } else {
+      for (int worker = 0; worker < numSplits; worker++) {
+        splits.add(new HashRangeShardSplit(query, shardUrl, splitFieldName, worker, numSplits));
+      }
+    }
+    log.info("Split " + shardUrl + " into " + splits.size() + " hash ranges of " + splitFieldName);
+    return splits;
+  }
+
+  public static String hashFilterQuery(String splitFieldName, int worker, int numWorkers) {
+    if (numWorkers <= 1)
+      return "*:*";
+    return "{!hash workers=" + numWorkers + " worker=" + worker + " partitionKeys=" + splitFieldName + "}";
+  }
+
+  static class HashRangeShardSplit extends AbstractShardSplit<Integer> {
+
+    HashRangeShardSplit(SolrQuery query, String shardUrl, String rangeField, int worker, int numWorkers) {
+      super(query, shardUrl, rangeField, hashFilterQuery(rangeField, worker, numWorkers));
+      this.min = 0;
+      this.max = numWorkers - 1;
+      this.lowerInc = worker;
+      this.upper = worker;
+    }
+
+    @Override
+    public Integer nextUpper(Integer lower, long increment) {
+      // hash buckets aren't split any further
+      return upper;
+    }
+
+    @Override
+    public long getRange() {
+      return 1L;
+    }
+  }
+}
@@ -0,0 +1,270 @@
+package com.lucidworks.spark.query;
+
+import com.lucidworks.spark.util.SolrQuerySupport;
+import com.lucidworks.spark.util.SolrSupport;
+import org.apache.log4j.Logger;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.StreamingResponseCallback;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import scala.Option;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches pages of results from a primary replica and, if a request runs longer than a latency percentile
+ * tracked for that replica, sends the same request to another replica of the shard and uses whichever
+ * response completes first.
+ * <p>
+ * Pages are buffered in memory so that only the winning response is handed to the caller. The number of
+ * hedged requests is capped at a fraction of the page requests made by this fetcher, i.e. by the partition
+ * reading the shard. Requests run on the fetcher's own threads, at most {@link #MAX_THREADS} at a time, which
+ * are stopped when it's closed.
+ */
+public class HedgedPageFetcher {
+
+  private static final Logger log = Logger.getLogger(HedgedPageFetcher.class);
+
+  // the primary and hedged requests for a page, and the losing request of the previous page still winding down
+  public static final int MAX_THREADS = 4;
+
+  private static final ThreadFactory threadFactory = new ThreadFactory() {
+    private final AtomicInteger counter = new AtomicInteger(0);
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "solr-hedged-page-" + counter.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  };
+
+  /**
+   * A page of docs from a single response.
+   */
+  public static class Page {
+    public final List<SolrDocument> docs = new ArrayList<SolrDocument>();
+    public long numFound = -1L;
+    public String nextCursorMark = null;
+    public String replicaUrl = null;
+  }
+
+  private static class HedgeCancelledException extends RuntimeException {
+    HedgeCancelledException() {
+      super("Hedged page request lost to a faster replica", null, false, false);
+    }
+  }
+
+  protected final SolrClient primaryClient;
+  protected final String primaryUrl;
+  protected final List<String> hedgeUrls;
+  protected final double percentile;
+  protected final double maxHedgeFraction;
+  protected final long minDelayMs;
+  protected final Map<String, SolrClient> hedgeClients = new HashMap<String, SolrClient>();
+  protected final ThreadPoolExecutor pool;
+  protected long totalRequests = 0L;
+  protected int nextHedge = 0;
+  protected int hedgesSent = 0;
+  protected int hedgesWon = 0;
+  protected volatile boolean closed = false;
+
+  /**
+   * @param percentile       hedge once a request takes longer than this percentile (0-100) of the primary's recent latencies
+   * @param maxHedgeFraction upper bound on the fraction of page requests that get hedged
+   * @param minDelayMs       never hedge a request sooner than this
+   */
+  public HedgedPageFetcher(SolrClient primaryClient, String primaryUrl, List<String> hedgeUrls,
+                           double percentile, double maxHedgeFraction, long minDelayMs) {
+    this.primaryClient = primaryClient;
+    this.primaryUrl = primaryUrl;
+    this.hedgeUrls = new ArrayList<String>(hedgeUrls);
+    this.hedgeUrls.remove(primaryUrl);
+    this.percentile = percentile;
+    this.maxHedgeFraction = maxHedgeFraction;
+    this.minDelayMs = minDelayMs;
+    this.pool = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 30L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), threadFactory);
+    this.pool.allowCoreThreadTimeOut(true);
+  }
+
+  public Page fetchPage(final SolrQuery solrQuery, final int start, final String cursorMark) throws SolrServerException {
+    ++totalRequests;
+
+    final AtomicBoolean primaryCancelled = new AtomicBoolean(false);
+    CompletableFuture<Page> primary = submit(primaryClient, primaryUrl, solrQuery, start, cursorMark, primaryCancelled);
+
+    long p = ReplicaLatencyTracker.forUrl(primaryUrl).percentile(percentile);
+    if (hedgeUrls.isEmpty() || p < 0) {
+      // no one to hedge to or not enough history to know what slow looks like
+      return await(primary);
+    }
+
+    long delayMs = Math.max(minDelayMs, p);
+    try {
+      return primary.get(delayMs, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException te) {
+      // fall through and consider hedging
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      primaryCancelled.set(true);
+      throw new SolrServerException(ie);
+    } catch (ExecutionException ee) {
+      throw unwrap(ee);
+    }
+
+    if (!tryAcquireHedge())
+      return await(primary);
+
+    String hedgeUrl = hedgeUrls.get(nextHedge++ % hedgeUrls.size());
+    ++hedgesSent;
+    log.info("Page request to " + primaryUrl + " has taken more than " + delayMs + " ms (p" + percentile +
+        "); sending hedged request to " + hedgeUrl);
+
+    final AtomicBoolean hedgeCancelled = new AtomicBoolean(false);
+    CompletableFuture<Page> hedge = submit(getHedgeClient(hedgeUrl), hedgeUrl, solrQuery, start, cursorMark, hedgeCancelled);
+
+    final CompletableFuture<Page> winner = new CompletableFuture<Page>();
+    final AtomicInteger failures = new AtomicInteger(0);
+    completeOnSuccess(primary, winner, failures);
+    completeOnSuccess(hedge, winner, failures);
+
+    Page page = await(winner);
+    if (hedgeUrl.equals(page.replicaUrl)) {
+      ++hedgesWon;
+      primaryCancelled.set(true);
+    } else {
+      hedgeCancelled.set(true);
+    }
+    return page;
+  }
+
+  public String getStats() {
+    return "Hedged " + hedgesSent + " page requests from " + primaryUrl + ", " + hedgesWon + " of which won";
+  }
+
+  public synchronized void close() {
+    if (closed)
+      return;
+
+    closed = true;
+    if (hedgesSent > 0)
+      log.info(getStats());
+    // requests still running stop at their next doc, see fetchFrom
+    pool.shutdown();
+    for (SolrClient client : hedgeClients.values()) {
+      try {
+        client.close();
+      } catch (Exception exc) {
+        log.warn("Failed to close hedge client due to: " + exc);
+      }
+    }
+    hedgeClients.clear();
+  }
+
+  protected boolean tryAcquireHedge() {
+    return hedgesSent + 1 <= maxHedgeFraction * totalRequests;
+  }
+
+  protected synchronized SolrClient getHedgeClient(String url) {
+    SolrClient client = hedgeClients.get(url);
+    if (client == null) {
+      client = SolrSupport.getHttpSolrClient(url);
+      hedgeClients.put(url, client);
+    }
+    return client;
+  }
+
+  private static void completeOnSuccess(CompletableFuture<Page> attempt, final CompletableFuture<Page> winner,
+                                        final AtomicInteger failures) {
+    attempt.whenComplete((page, err) -> {
+      if (err == null) {
+        winner.complete(page);
+      } else if (failures.incrementAndGet() == 2) {
+        winner.completeExceptionally(err);
+      }
+    });
+  }
+
+  private CompletableFuture<Page> submit(final SolrClient client, final String url, final SolrQuery solrQuery,
+                                         final int start, final String cursorMark, final AtomicBoolean cancelled) {
+    // each attempt gets its own copy since querySolr sets start / cursorMark on the query
+    final SolrQuery query = solrQuery.getCopy();
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return fetchFrom(client, url, query, start, cursorMark, cancelled);
+      } catch (SolrServerException e) {
+        throw new RuntimeException(e);
+      }
+    }, pool);
+  }
+
+  private Page fetchFrom(SolrClient client, String url, SolrQuery query, int start, String cursorMark,
+                         final AtomicBoolean cancelled) throws SolrServerException {
+    final Page page = new Page();
+    page.replicaUrl = url;
+    StreamingResponseCallback callback = new StreamingResponseCallback() {
+      public void streamSolrDocument(SolrDocument doc) {
+        if (cancelled.get() || closed)
+          throw new HedgeCancelledException();
+        if (doc != null)
+          page.docs.add(doc);
+      }
+
+      public void streamDocListInfo(long numFound, long start, Float maxScore) {
+        // a new response is starting (querySolr may retry), so drop anything from a previous attempt
+        page.docs.clear();
+        page.numFound = numFound;
+      }
+    };
+
+    long startNanos = System.nanoTime();
+    Option<QueryResponse> resp;
+    try {
+      resp = SolrQuerySupport.querySolr(client, query, start, cursorMark, callback);
+    } catch (SolrServerException | RuntimeException e) {
+      // the losing request stopped at its next doc, so all we know is that it would have taken at least this long
+      if (cancelled.get())
+        ReplicaLatencyTracker.recordCensoredRequest(url, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+      throw e;
+    }
+    if (!resp.isDefined())
+      throw new SolrServerException("No response from " + url + " found for query '" + query + "'");
+
+    ReplicaLatencyTracker.recordRequest(url, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    page.nextCursorMark = resp.get().getNextCursorMark();
+    return page;
+  }
+
+  private static Page await(CompletableFuture<Page> future) throws SolrServerException {
+    try {
+      return future.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new SolrServerException(ie);
+    } catch (ExecutionException ee) {
+      throw unwrap(ee);
+    }
+  }
+
+  private static SolrServerException unwrap(ExecutionException ee) {
+    Throwable cause = ee.getCause();
+    if (cause instanceof RuntimeException && cause.getCause() instanceof SolrServerException)
+      return (SolrServerException)cause.getCause();
+    if (cause instanceof SolrServerException)
+      return (SolrServerException)cause;
+    return new SolrServerException(cause);
+  }
+}
@@ -3,6 +3,7 @@ package com.lucidworks.spark.query;
 import org.apache.log4j.Logger;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.FieldStatsInfo;
 import org.apache.solr.client.solrj.response.QueryResponse;
@@ -52,7 +53,7 @@ public class NumberFieldShardSplitStrategy extends AbstractFieldShardSplitStrate
     statsQuery.remove("cursorMark");
     statsQuery.setFields(splitFieldName);
     statsQuery.setSort(splitFieldName, SolrQuery.ORDER.asc);
-    QueryResponse qr = solrClient.query(statsQuery);
+    QueryResponse qr = solrClient.query(statsQuery, SolrRequest.METHOD.POST);
     SolrDocumentList results = qr.getResults();
 
     NamedList<Object> nl = new NamedList<Object>();
@@ -63,7 +64,7 @@ public class NumberFieldShardSplitStrategy extends AbstractFieldShardSplitStrate
 
       // get max value of this field using a top 1 query
       statsQuery.setSort(splitFieldName, SolrQuery.ORDER.desc);
-      qr = solrClient.query(statsQuery);
+      qr = solrClient.query(statsQuery, SolrRequest.METHOD.POST);
       long max = Long.parseLong(qr.getResults().get(0).getFirstValue(splitFieldName).toString());
 
       //NamedList<Object> nl = new NamedList<Object>();
@@ -0,0 +1,124 @@
+package com.lucidworks.spark.query;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of recent request latencies per replica (or node) URL within this JVM, so that read paths can
+ * make decisions based on how a replica has been performing lately, such as when to hedge a slow request
+ * or which replica to send a read to.
+ * <p>
+ * For each URL, a fixed-size window of the most recent latencies is kept for computing percentiles, along
+ * with an exponentially weighted moving average.
+ */
+public class ReplicaLatencyTracker {
+
+  public static final int WINDOW_SIZE = 128;
+  public static final int MIN_SAMPLES = 10;
+  public static final double EWMA_ALPHA = 0.2d;
+
+  private static final ConcurrentHashMap<String, ReplicaLatencyTracker> trackers =
+      new ConcurrentHashMap<String, ReplicaLatencyTracker>();
+
+  private final long[] window = new long[WINDOW_SIZE];
+  private int next = 0;
+  private long count = 0;
+  private double ewmaMs = -1d;
+
+  public static ReplicaLatencyTracker forUrl(String url) {
+    url = stripTrailingSlash(url);
+    ReplicaLatencyTracker tracker = trackers.get(url);
+    if (tracker == null) {
+      ReplicaLatencyTracker newTracker = new ReplicaLatencyTracker();
+      tracker = trackers.putIfAbsent(url, newTracker);
+      if (tracker == null)
+        tracker = newTracker;
+    }
+    return tracker;
+  }
+
+  public static void record(String url, long latencyMs) {
+    forUrl(url).record(latencyMs);
+  }
+
+  /**
+   * Records the latency of a request to a core, both for the core itself and for the node hosting it.
+   */
+  public static void recordRequest(String coreUrl, long latencyMs) {
+    record(coreUrl, latencyMs);
+    record(nodeUrl(coreUrl), latencyMs);
+  }
+
+  /**
+   * Records a request to a core that was abandoned after latencyMs, e.g. as it lost to a hedged request, as a
+   * censored sample: it would have taken at least that long.
+   */
+  public static void recordCensoredRequest(String coreUrl, long latencyMs) {
+    forUrl(coreUrl).recordCensored(latencyMs);
+    forUrl(nodeUrl(coreUrl)).recordCensored(latencyMs);
+  }
+
+  /**
+   * The base URL of the node hosting the core at the given URL, e.g. http://host:8983/solr for
+   * http://host:8983/solr/collection1_shard1_replica1/
+   */
+  public static String nodeUrl(String coreUrl) {
+    String url = stripTrailingSlash(coreUrl);
+    int slash = url.lastIndexOf('/');
+    return (slash > url.indexOf("//") + 1) ? url.substring(0, slash) : url;
+  }
+
+  /**
+   * Returns the EWMA latency for the URL, or -1 if nothing has been recorded for it yet.
+   */
+  public static double ewmaMs(String url) {
+    ReplicaLatencyTracker tracker = trackers.get(stripTrailingSlash(url));
+    return tracker != null ? tracker.getEwmaMs() : -1d;
+  }
+
+  private static String stripTrailingSlash(String url) {
+    return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+  }
+
+  public static void reset() {
+    trackers.clear();
+  }
+
+  public synchronized void record(long latencyMs) {
+    window[next] = latencyMs;
+    next = (next + 1) % WINDOW_SIZE;
+    ++count;
+    ewmaMs = (ewmaMs < 0) ? latencyMs : (EWMA_ALPHA * latencyMs + (1d - EWMA_ALPHA) * ewmaMs);
+  }
+
+  /**
+   * How much longer than latencyMs the request would have taken is unknown, so it's taken to be no faster than
+   * the average: a replica that keeps losing races is never made to look faster by them.
+   */
+  public synchronized void recordCensored(long latencyMs) {
+    record(ewmaMs < 0 ? latencyMs : Math.max(latencyMs, (long)Math.ceil(ewmaMs)));
+  }
+
+  public synchronized double getEwmaMs() {
+    return ewmaMs;
+  }
+
+  public synchronized long getCount() {
+    return count;
+  }
+
+  /**
+   * Returns the given percentile (0-100) of the latencies in the window, or -1 if there are not enough
+   * samples yet to say.
+   */
+  public synchronized long percentile(double pct) {
+    int size = (int)Math.min(count, WINDOW_SIZE);
+    if (size < MIN_SAMPLES)
+      return -1L;
+
+    long[] sorted = Arrays.copyOf(window, size);
+    Arrays.sort(sorted);
+    int idx = (int)Math.ceil(pct / 100d * size) - 1;
+    return sorted[Math.max(0, Math.min(size - 1, idx))];
+  }
+}
@@ -8,4 +8,11 @@ public abstract class ResultsIterator implements Iterator<SolrDocument>, Iterabl
 
   public abstract long getNumDocs();
 
+  /**
+   * Releases the connection to Solr before all results are read, e.g. when a task stops early.
+   */
+  public void close() {
+    // no-op - sub-classes holding on to a connection override this
+  }
+
 }
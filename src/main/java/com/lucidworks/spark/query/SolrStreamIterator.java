@@ -58,14 +58,21 @@ public class SolrStreamIterator extends TupleStreamIterator {
   }
 
   protected SolrQuery mergeFq(SolrQuery solrQuery) {
+    return mergeFilterQueries(solrQuery);
+  }
+
+  /**
+   * Combines multiple fq params into a single AND'd fq, as expected by the /export handler.
+   */
+  public static SolrQuery mergeFilterQueries(SolrQuery solrQuery) {
     String[] values = solrQuery.getFilterQueries();
     if (values != null && values.length > 1) {
       String fqResult = "";
       for (int i = 0; i < values.length; i++) {
         if (i != values.length - 1) {
-          fqResult += "(" + values[i] + ")" + " AND ";
+          fqResult += "(" + clause(values[i]) + ")" + " AND ";
         } else {
-          fqResult += "(" + values[i] + ")";
+          fqResult += "(" + clause(values[i]) + ")";
         }
       }
       log.info("Merged multiple FQ params in to a single param. Result: '" + fqResult + "'");
@@ -73,4 +80,10 @@ public class SolrStreamIterator extends TupleStreamIterator {
     }
     return solrQuery;
   }
+
+  // local params (e.g. {!terms ...}) only apply at the start of a query, so such filters are nested
+  private static String clause(String fq) {
+    if (!fq.startsWith("{!")) return fq;
+    return "_query_:\"" + fq.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
 }
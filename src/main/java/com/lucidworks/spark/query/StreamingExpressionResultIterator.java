@@ -1,16 +1,13 @@
 package com.lucidworks.spark.query;
 
+import com.lucidworks.spark.ReplicaChoice;
+import com.lucidworks.spark.ReplicaSelectionPolicy;
 import com.lucidworks.spark.util.SolrSupport;
 import org.apache.log4j.Logger;
-import org.apache.solr.client.solrj.impl.CloudSolrClient;
 import org.apache.solr.client.solrj.io.Tuple;
 import org.apache.solr.client.solrj.io.stream.SolrStream;
 import org.apache.solr.client.solrj.io.stream.TupleStream;
 import org.apache.solr.common.SolrDocument;
-import org.apache.solr.common.cloud.Replica;
-import org.apache.solr.common.cloud.Slice;
-import org.apache.solr.common.cloud.ZkCoreNodeProps;
-import org.apache.solr.common.cloud.ZkStateReader;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
@@ -21,12 +18,15 @@ public class StreamingExpressionResultIterator extends TupleStreamIterator {
 
   private static final Logger log = Logger.getLogger(StreamingExpressionResultIterator.class);
 
+  public static final String NUM_WORKERS = "numWorkers";
+  public static final String WORKER_ID = "workerID";
+
   protected String zkHost;
   protected String collection;
 
   protected Set<String> promoteToDoubleFields = Collections.EMPTY_SET;
 
-  private final Random random = new Random(5150L);
+  protected ReplicaSelectionPolicy replicaSelectionPolicy = null;
 
   public StreamingExpressionResultIterator(String zkHost, String collection, SolrParams solrParams) {
     super(solrParams);
@@ -70,11 +70,18 @@ public class StreamingExpressionResultIterator extends TupleStreamIterator {
       log.info("Executing streaming expression " + expr + " against collection " + collection);
       params.set("expr", expr);
     }
+
+    // this stream is one of several workers, each reading the docs that hash to it (see SolrRDD.partitionedStreamExpr)
+    if (solrParams.get(NUM_WORKERS) != null) {
+      params.set(NUM_WORKERS, solrParams.get(NUM_WORKERS));
+      params.set(WORKER_ID, solrParams.get(WORKER_ID));
+    }
     
     
     try {
-      String url = (new ZkCoreNodeProps(getRandomReplica())).getCoreUrl();
-      log.info("Sending "+qt+" request to replica "+url+" of "+collection+" with params: "+params);
+      ReplicaChoice choice = SolrSupport.chooseReplica(zkHost, collection, replicaSelectionPolicy);
+      String url = choice.replica().replicaUrl();
+      log.info("Sending "+qt+" request to replica "+url+" ("+choice.reason()+") of "+collection+" with params: "+params);
       long startMs = System.currentTimeMillis();
       stream = new SolrStream(url, params);
       stream.open();
@@ -107,17 +114,10 @@ public class StreamingExpressionResultIterator extends TupleStreamIterator {
     return doc;
   }
 
-  protected Replica getRandomReplica() {
-    CloudSolrClient cloudSolrClient = SolrSupport.getCachedCloudClient(zkHost);
-    ZkStateReader zkStateReader = cloudSolrClient.getZkStateReader();
-    Collection<Slice> slices = zkStateReader.getClusterState().getCollection(collection).getActiveSlices();
-    if (slices == null || slices.size() == 0)
-      throw new IllegalStateException("No active shards found "+collection);
-
-    List<Replica> shuffler = new ArrayList<>();
-    for (Slice slice : slices) {
-      shuffler.addAll(slice.getReplicas());
-    }
-    return shuffler.get(random.nextInt(shuffler.size()));
+  /**
+   * Policy used to pick the replica the request is sent to; any active replica is picked at random if not set.
+   */
+  public void setReplicaSelectionPolicy(ReplicaSelectionPolicy replicaSelectionPolicy) {
+    this.replicaSelectionPolicy = replicaSelectionPolicy;
   }
 }
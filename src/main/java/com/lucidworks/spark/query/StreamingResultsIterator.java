@@ -20,6 +20,14 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * An iterator over a stream of query results from Solr.
+ * <p>
+ * By default, pages are fetched synchronously from the thread calling hasNext. When prefetching
+ * is enabled, a background thread requests the next page while the current page is being consumed;
+ * documents flow through a bounded queue so the producer stalls (and stops reading the response from
+ * Solr) when the consumer falls behind.
+ * <p>
+ * If a {@link HedgedPageFetcher} is set, each page is instead buffered from whichever replica answers
+ * first, see {@link #setHedgedPageFetcher(HedgedPageFetcher)}.
  */
 public class StreamingResultsIterator extends ResultsIterator {
 
@@ -36,8 +44,28 @@ public class StreamingResultsIterator extends ResultsIterator {
   protected String cursorMarkOfCurrentPage = null;
   protected boolean closeAfterIterating = false;
   protected LinkedBlockingDeque<SolrDocument> queue;
-  protected Integer maxSampleDocs = null;
+  protected volatile Integer maxSampleDocs = null;
   protected String solrId = null;
+  protected HedgedPageFetcher hedgedPageFetcher = null;
+
+  // prefetch mode state; the producer thread owns solrQuery and nextCursorMark once started
+  protected int prefetchPages = 0;
+  protected int queueCapacity = -1;
+  protected volatile boolean closed = false;
+  protected volatile Throwable producerError = null;
+  protected Thread producerThread = null;
+  protected SolrDocument nextDoc = null;
+  protected boolean exhausted = false;
+
+  // per-partition stats for prefetch mode
+  protected long consumerWaitNanos = 0L;
+  protected volatile long producerStallNanos = 0L;
+  protected volatile int maxQueueOccupancy = 0;
+  protected volatile long queueOccupancySum = 0L;
+  protected volatile long queueOccupancySamples = 0L;
+  protected volatile int pagesFetched = 0;
+
+  private static final SolrDocument END_OF_STREAM = new SolrDocument();
 
   private ResponseCallback responseCallback = new ResponseCallback();
   private CountDownLatch docListInfoLatch = new CountDownLatch(1);
@@ -47,7 +75,15 @@ public class StreamingResultsIterator extends ResultsIterator {
   }
 
   public StreamingResultsIterator(SolrClient solrServer, SolrQuery solrQuery, String cursorMark) {
-    this.queue = new LinkedBlockingDeque<SolrDocument>();
+    this(solrServer, solrQuery, cursorMark, 0, -1);
+  }
+
+  /**
+   * @param prefetchPages number of pages to request ahead of the consumer; 0 disables prefetching
+   * @param maxQueuedDocs upper bound on the number of documents buffered in prefetch mode; if not
+   *                      positive, the queue holds (prefetchPages + 1) pages worth of documents
+   */
+  public StreamingResultsIterator(SolrClient solrServer, SolrQuery solrQuery, String cursorMark, int prefetchPages, int maxQueuedDocs) {
     this.solrServer = solrServer;
 
     // get some identifier for this solr server
@@ -65,9 +101,39 @@ public class StreamingResultsIterator extends ResultsIterator {
     this.cursorMarkOfCurrentPage = cursorMark;
     if (solrQuery.getRows() == null)
       solrQuery.setRows(PagedResultsIterator.DEFAULT_PAGE_SIZE); // default page size
+
+    this.prefetchPages = Math.max(0, prefetchPages);
+    if (this.prefetchPages > 0) {
+      int rows = solrQuery.getRows();
+      long pagesWorth = (long)rows * (this.prefetchPages + 1);
+      int capacity = (maxQueuedDocs > 0) ? maxQueuedDocs : (int)Math.min(Integer.MAX_VALUE, pagesWorth);
+      this.queueCapacity = Math.max(1, capacity);
+      this.queue = new LinkedBlockingDeque<SolrDocument>(this.queueCapacity);
+    } else {
+      this.queue = new LinkedBlockingDeque<SolrDocument>();
+    }
+  }
+
+  /**
+   * Fetch each page through the given fetcher, which may send a slow page request to another replica
+   * as well; must be called before iterating.
+   */
+  public void setHedgedPageFetcher(HedgedPageFetcher hedgedPageFetcher) {
+    this.hedgedPageFetcher = hedgedPageFetcher;
+  }
+
+  public HedgedPageFetcher getHedgedPageFetcher() {
+    return hedgedPageFetcher;
+  }
+
+  public boolean isPrefetching() {
+    return prefetchPages > 0;
   }
 
   public boolean hasNext() {
+    if (prefetchPages > 0)
+      return hasNextPrefetched();
+
     if (totalDocs == 0 || (totalDocs != -1 && numDocs >= totalDocs) || (maxSampleDocs != null && maxSampleDocs >= 0 && numDocs >= maxSampleDocs))
       return false; // done iterating!
 
@@ -91,6 +157,7 @@ public class StreamingResultsIterator extends ResultsIterator {
       try {
         solrServer.close();
       } catch (Exception exc) { exc.printStackTrace(); }
+      closeHedgedPageFetcher();
     }
 
     return hasNext;
@@ -103,17 +170,51 @@ public class StreamingResultsIterator extends ResultsIterator {
 
   protected boolean fetchNextPage() throws SolrServerException, InterruptedException {
     int start = usingCursors ? 0 : getStartForNextPage();
+    int previousPageSize = currentPageSize;
     currentPageSize = solrQuery.getRows();
-    this.cursorMarkOfCurrentPage = nextCursorMark;
-    Option<QueryResponse> resp = SolrQuerySupport.querySolr(solrServer, solrQuery, start, cursorMarkOfCurrentPage, responseCallback);
+    // the cursorMark and position within the current page only move on to the next page once it has been
+    // fetched, so a failed fetch can be resumed from the page that was being read
+    String pageCursorMark = nextCursorMark;
 
-    if (resp.isDefined()) {
+    if (hedgedPageFetcher != null) {
+      HedgedPageFetcher.Page page;
+      try {
+        page = hedgedPageFetcher.fetchPage(solrQuery, start, pageCursorMark);
+      } catch (SolrServerException | RuntimeException e) {
+        currentPageSize = previousPageSize;
+        throw e;
+      }
+      if (!usingCursors)
+        solrQuery.setStart(start); // the fetcher works on copies of the query
+      cursorMarkOfCurrentPage = pageCursorMark;
+      iterPos = 0;
+      onDocListInfo(page.numFound);
+      queue.addAll(page.docs);
       if (usingCursors) {
-        nextCursorMark = resp.get().getNextCursorMark();
+        nextCursorMark = page.nextCursorMark;
+        if (nextCursorMark == null)
+          return false;
       }
+      return totalDocs > 0;
+    }
+
+    long startNanos = System.nanoTime();
+    Option<QueryResponse> resp;
+    try {
+      resp = SolrQuerySupport.querySolr(solrServer, solrQuery, start, pageCursorMark, responseCallback);
+    } catch (SolrServerException | RuntimeException e) {
+      // drop any docs the callback queued from the failed response, they'll be read again from the resume point
+      queue.clear();
+      currentPageSize = previousPageSize;
+      throw e;
+    }
+    recordLatency(System.nanoTime() - startNanos);
 
+    if (resp.isDefined()) {
+      cursorMarkOfCurrentPage = pageCursorMark;
       iterPos = 0;
       if (usingCursors) {
+        nextCursorMark = resp.get().getNextCursorMark();
         if (nextCursorMark != null) {
           docListInfoLatch.await(); // wait until the callback receives notification from Solr in streamDocListInfo
           return totalDocs > 0;
@@ -125,12 +226,169 @@ public class StreamingResultsIterator extends ResultsIterator {
         return totalDocs > 0;
       }
     } else {
+      queue.clear();
+      currentPageSize = previousPageSize;
       throw new SolrServerException("No response from "+solrId+" found for query '" + solrQuery + "'");
     }
 
   }
 
+  protected boolean hasNextPrefetched() {
+    if (nextDoc != null)
+      return true;
+
+    if (exhausted || closed)
+      return false;
+
+    if (maxSampleDocs != null && maxSampleDocs >= 0 && numDocs >= maxSampleDocs) {
+      // done sampling, no need to keep the producer busy
+      finishPrefetching();
+      return false;
+    }
+
+    if (producerThread == null) {
+      producerThread = new Thread(new PagePrefetcher(), "solr-prefetch-" + solrId);
+      producerThread.setDaemon(true);
+      producerThread.start();
+    }
+
+    while (true) {
+      SolrDocument doc = null;
+      long startNanos = System.nanoTime();
+      try {
+        while (doc == null) {
+          doc = queue.poll(1, TimeUnit.SECONDS);
+          if (doc == null && !producerThread.isAlive() && queue.isEmpty()) {
+            // producer died without signalling the end of the stream
+            doc = END_OF_STREAM;
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.interrupted();
+        close();
+        throw new RuntimeException(e);
+      } finally {
+        consumerWaitNanos += (System.nanoTime() - startNanos);
+      }
+
+      if (doc == END_OF_STREAM) {
+        finishPrefetching();
+        Throwable err = producerError;
+        if (err != null) {
+          if (err instanceof RuntimeException) {
+            throw (RuntimeException)err;
+          } else {
+            throw new RuntimeException(err);
+          }
+        }
+        return false;
+      }
+
+      if (doc instanceof PageMarker) {
+        // keep track of the cursorMark the next docs were fetched with, so we know where we are
+        cursorMarkOfCurrentPage = ((PageMarker)doc).cursorMark;
+        iterPos = 0;
+        continue;
+      }
+
+      nextDoc = doc;
+      return true;
+    }
+  }
+
+  protected void finishPrefetching() {
+    if (exhausted)
+      return;
+
+    exhausted = true;
+    if (producerThread != null && producerThread.isAlive()) {
+      closed = true;
+      producerThread.interrupt();
+    }
+    queue.clear();
+    closeHedgedPageFetcher();
+  }
+
+  /**
+   * Stops the background producer (if any) and releases the underlying client.
+   */
+  public void close() {
+    if (closed)
+      return;
+
+    closed = true;
+    if (producerThread != null) {
+      producerThread.interrupt();
+    } else if (closeAfterIterating) {
+      try {
+        solrServer.close();
+      } catch (Exception exc) { exc.printStackTrace(); }
+    }
+    queue.clear();
+    closeHedgedPageFetcher();
+  }
+
+  // page latencies feed the replica selection policies; only meaningful when talking to a single replica
+  protected void recordLatency(long nanos) {
+    if (solrServer instanceof HttpSolrClient)
+      ReplicaLatencyTracker.recordRequest(solrId, TimeUnit.NANOSECONDS.toMillis(Math.max(0L, nanos)));
+  }
+
+  protected void closeHedgedPageFetcher() {
+    if (hedgedPageFetcher != null)
+      hedgedPageFetcher.close();
+  }
+
+  /**
+   * The cursorMark used to request the page the last returned doc came from; null when paging with start/rows.
+   */
+  public String getCursorMarkOfCurrentPage() {
+    return cursorMarkOfCurrentPage;
+  }
+
+  /**
+   * Number of docs returned from the current page so far.
+   */
+  public int getNumDocsReadFromCurrentPage() {
+    return iterPos;
+  }
+
+  public String getPrefetchStats() {
+    long avgOccupancy = queueOccupancySamples > 0 ? Math.round((double)queueOccupancySum / queueOccupancySamples) : 0L;
+    return "Prefetch stats for " + solrId + ": read " + numDocs + " docs in " + pagesFetched + " pages" +
+        ", consumer waited " + TimeUnit.NANOSECONDS.toMillis(consumerWaitNanos) + " ms" +
+        ", producer stalled " + TimeUnit.NANOSECONDS.toMillis(producerStallNanos) + " ms" +
+        ", queue occupancy avg " + avgOccupancy + " / max " + maxQueueOccupancy + " of " + queueCapacity;
+  }
+
+  public long getConsumerWaitMs() {
+    return TimeUnit.NANOSECONDS.toMillis(consumerWaitNanos);
+  }
+
+  public long getProducerStallMs() {
+    return TimeUnit.NANOSECONDS.toMillis(producerStallNanos);
+  }
+
+  public int getMaxQueueOccupancy() {
+    return maxQueueOccupancy;
+  }
+
+  public int getPagesFetched() {
+    return pagesFetched;
+  }
+
   public SolrDocument next() {
+    if (prefetchPages > 0) {
+      if (nextDoc == null && !hasNextPrefetched())
+        throw new NoSuchElementException("No more docs available from "+solrId+"! Please call hasNext before calling next!");
+
+      SolrDocument doc = nextDoc;
+      nextDoc = null;
+      ++numDocs;
+      ++iterPos;
+      return doc;
+    }
+
     if (iterPos >= currentPageSize)
       throw new NoSuchElementException("No more docs available from "+solrId+"! Please call hasNext before calling next!");
 
@@ -168,6 +426,129 @@ public class StreamingResultsIterator extends ResultsIterator {
     return numDocs;
   }
 
+  /**
+   * Blocks until there is room in the queue, which is how backpressure reaches the
+   * HTTP response being streamed from Solr. Returns false if the iterator was closed.
+   */
+  protected boolean enqueue(SolrDocument doc) throws InterruptedException {
+    long stallStart = -1L;
+    while (!closed) {
+      if (queue.offer(doc, 100, TimeUnit.MILLISECONDS)) {
+        if (stallStart != -1L)
+          producerStallNanos += (System.nanoTime() - stallStart);
+
+        int size = queue.size();
+        if (size > maxQueueOccupancy)
+          maxQueueOccupancy = size;
+        queueOccupancySum += size;
+        ++queueOccupancySamples;
+        return true;
+      }
+      if (stallStart == -1L)
+        stallStart = System.nanoTime();
+    }
+    return false;
+  }
+
+  // marks the start of a page in the queue so the consumer knows which cursorMark produced the docs that follow
+  private static final class PageMarker extends SolrDocument {
+    final String cursorMark;
+
+    PageMarker(String cursorMark) {
+      this.cursorMark = cursorMark;
+    }
+  }
+
+  private class PagePrefetcher implements Runnable {
+    public void run() {
+      PrefetchCallback callback = new PrefetchCallback();
+      long fetched = 0L;
+      int start = 0;
+      try {
+        while (!closed) {
+          String pageCursorMark = nextCursorMark;
+          if (!enqueue(new PageMarker(pageCursorMark)))
+            break;
+
+          callback.pageDocs = 0;
+          String pageNextCursorMark;
+          if (hedgedPageFetcher != null) {
+            HedgedPageFetcher.Page page = hedgedPageFetcher.fetchPage(solrQuery, usingCursors ? 0 : start, pageCursorMark);
+            onDocListInfo(page.numFound);
+            for (SolrDocument doc : page.docs)
+              callback.streamSolrDocument(doc);
+            pageNextCursorMark = page.nextCursorMark;
+          } else {
+            long startNanos = System.nanoTime();
+            long stallNanosBefore = producerStallNanos;
+            Option<QueryResponse> resp =
+                SolrQuerySupport.querySolr(solrServer, solrQuery, usingCursors ? 0 : start, pageCursorMark, callback);
+            // time spent waiting on the consumer says nothing about the replica
+            recordLatency(System.nanoTime() - startNanos - (producerStallNanos - stallNanosBefore));
+            if (!resp.isDefined())
+              throw new SolrServerException("No response from "+solrId+" found for query '" + solrQuery + "'");
+            pageNextCursorMark = resp.get().getNextCursorMark();
+          }
+
+          ++pagesFetched;
+          fetched += callback.pageDocs;
+          start += solrQuery.getRows();
+
+          if (usingCursors) {
+            nextCursorMark = pageNextCursorMark;
+            if (nextCursorMark == null || nextCursorMark.equals(pageCursorMark))
+              break;
+          }
+
+          if (callback.pageDocs == 0 || (totalDocs != -1 && fetched >= totalDocs))
+            break;
+
+          if (maxSampleDocs != null && maxSampleDocs >= 0 && fetched >= maxSampleDocs)
+            break;
+        }
+      } catch (Throwable t) {
+        if (!closed) {
+          log.error("Failed to prefetch page from " + solrId + " after reading " + fetched + " docs due to: " + t, t);
+          producerError = t;
+        }
+      } finally {
+        if (closeAfterIterating) {
+          try {
+            solrServer.close();
+          } catch (Exception exc) { exc.printStackTrace(); }
+        }
+
+        // the end-of-stream marker must get through, unless the consumer has gone away
+        try {
+          enqueue(END_OF_STREAM);
+        } catch (InterruptedException ie) {
+          Thread.interrupted();
+        }
+      }
+    }
+  }
+
+  private class PrefetchCallback extends ResponseCallback {
+    int pageDocs = 0;
+
+    @Override
+    public void streamSolrDocument(SolrDocument doc) {
+      if (doc == null) {
+        super.streamSolrDocument(doc);
+        return;
+      }
+
+      try {
+        if (!enqueue(doc))
+          throw new IllegalStateException("Iterator over " + solrId + " closed while streaming results");
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while queueing docs from " + solrId, e);
+      }
+      ++pageDocs;
+    }
+  }
+
   private class ResponseCallback extends StreamingResponseCallback {
     public void streamSolrDocument(SolrDocument doc) {
       if (doc != null) {
@@ -180,26 +561,30 @@ public class StreamingResultsIterator extends ResultsIterator {
 
     public void streamDocListInfo(long numFound, long start, Float maxScore) {
       docListInfoLatch.countDown();
-      totalDocs = numFound;
-
-      // see if they enabled sampling
-      if (maxSampleDocs == null) {
-        if (numFound > 0) {
-          String samplePctParam = solrQuery.get("sample_pct");
-          if (samplePctParam != null) {
-            float pct = Float.parseFloat(samplePctParam);
-            maxSampleDocs = Math.round((float)numFound * pct);
-            log.info("Sampling "+maxSampleDocs+" ("+pct+" of "+numFound+") from "+solrId);
-          } else {
-            maxSampleDocs = -1; // no sampling
-          }
+      onDocListInfo(numFound);
+    }
+  }
+
+  protected void onDocListInfo(long numFound) {
+    totalDocs = numFound;
+
+    // see if they enabled sampling
+    if (maxSampleDocs == null) {
+      if (numFound > 0) {
+        String samplePctParam = solrQuery.get("sample_pct");
+        if (samplePctParam != null) {
+          float pct = Float.parseFloat(samplePctParam);
+          maxSampleDocs = Math.round((float)numFound * pct);
+          log.info("Sampling "+maxSampleDocs+" ("+pct+" of "+numFound+") from "+solrId);
         } else {
-          maxSampleDocs = -1;
+          maxSampleDocs = -1; // no sampling
         }
+      } else {
+        maxSampleDocs = -1;
       }
-
-      if (currentPageSize > totalDocs)
-        currentPageSize = (int)totalDocs;
     }
+
+    if (currentPageSize > totalDocs)
+      currentPageSize = (int)totalDocs;
   }
 }
@@ -25,7 +25,7 @@ public abstract class TupleStreamIterator extends ResultsIterator {
   protected SolrParams solrParams;
   private Tuple currentTuple = null;
   private long openedAt;
-  private boolean isClosed = false;
+  private volatile boolean isClosed = false;
 
   public TupleStreamIterator(SolrParams solrParams) {
     this.solrParams = solrParams;
@@ -46,31 +46,56 @@ public abstract class TupleStreamIterator extends ResultsIterator {
         currentTuple = fetchNextTuple();
       }
     } catch (IOException e) {
+      if (isClosed) {
+        return false; // closed while waiting for the next tuple
+      }
       log.error("Failed to fetch next Tuple for query: " + solrParams.toQueryString(), e);
       throw new RuntimeException(e);
     }
 
     if (currentTuple == null) {
+      closeStream(true);
+    }
+
+    return currentTuple != null;
+  }
+
+  /**
+   * Closes the stream before it's exhausted, e.g. when the task reading it completes early or is killed, so Solr
+   * stops sorting and writing the rest of the results. Safe to call more than once, and from another thread.
+   */
+  public void close() {
+    if (isClosed) {
+      return;
+    }
+
+    try {
+      closeStream(false);
+    } catch (RuntimeException e) {
+      log.warn("Failed to close the stream for query: " + solrParams.toQueryString(), e);
+    }
+  }
+
+  private void closeStream(boolean exhausted) {
+    this.isClosed = true;
+    currentTuple = null;
+    if (stream != null) {
       try {
         stream.close();
       } catch (IOException e) {
         log.error("Failed to close the SolrStream.", e);
         throw new RuntimeException(e);
-      } finally {
-        this.isClosed = true;
       }
 
       long diffMs = System.currentTimeMillis() - openedAt;
-      log.info("Took "+diffMs+" (ms) to read "+numDocs+" from stream.");
-
-      try {
-        afterStreamClosed();
-      } catch (Exception exc) {
-        log.warn(exc);
-      }
+      log.info("Took " + diffMs + " (ms) to read " + numDocs + " from stream" + (exhausted ? "." : " before closing it."));
     }
 
-    return currentTuple != null;
+    try {
+      afterStreamClosed();
+    } catch (Exception exc) {
+      log.warn(exc);
+    }
   }
 
   protected void afterStreamClosed() throws Exception {
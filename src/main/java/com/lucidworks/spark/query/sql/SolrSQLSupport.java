@@ -1,7 +1,9 @@
 package com.lucidworks.spark.query.sql;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -13,6 +15,8 @@ public class SolrSQLSupport {
   private static final String FROM = " from";
   private static final String AS = "as ";
   private static final String DISTINCT = "distinct ";
+  private static final String GROUP_BY = " group by ";
+  private static final String[] AFTER_GROUP_BY = new String[] { " having ", " order by ", " limit " };
 
   /**
    * Given a valid Solr SQL statement, parse out the columns and aliases as a map.
@@ -66,4 +70,35 @@ public class SolrSQLSupport {
     }
     return columns;
   }
+
+  /**
+   * Given a valid Solr SQL statement, parse out the fields it groups on: the GROUP BY columns, or the columns of
+   * a SELECT DISTINCT. Empty if the statement doesn't aggregate by fields.
+   */
+  public static List<String> parseGroupByFields(String sqlStmt) throws Exception {
+    String tmp = sqlStmt.replaceAll("\\s+", " ").trim();
+    String lc = tmp.toLowerCase();
+
+    int groupByAt = lc.indexOf(GROUP_BY);
+    if (groupByAt == -1) {
+      if (!lc.startsWith(SELECT + DISTINCT))
+        return Collections.emptyList();
+      return new ArrayList<>(parseColumns(sqlStmt).keySet());
+    }
+
+    int endAt = lc.length();
+    for (String keyword : AFTER_GROUP_BY) {
+      int keywordAt = lc.indexOf(keyword, groupByAt + GROUP_BY.length());
+      if (keywordAt != -1 && keywordAt < endAt)
+        endAt = keywordAt;
+    }
+
+    List<String> fields = new ArrayList<>();
+    for (String field : tmp.substring(groupByAt + GROUP_BY.length(), endAt).split(",")) {
+      field = field.trim().replace("`", "").replace("'", "");
+      if (!field.isEmpty())
+        fields.add(field);
+    }
+    return fields;
+  }
 }
@@ -1,42 +1,130 @@
 package com.lucidworks.spark
 
-import java.net.InetAddress
+import java.net.{InetAddress, URL}
+import java.util.concurrent.ExecutorService
 
+import com.lucidworks.spark.query.{HashRangeShardSplitStrategy, ReplicaLatencyTracker}
 import com.lucidworks.spark.rdd.SolrRDD
-import com.lucidworks.spark.util.SolrSupport
+import com.lucidworks.spark.util.{CachedSplit, PlanningSupport, SolrSupport, SplitPlanCache, SplitPlanCacheConfig}
+import com.lucidworks.spark.util.QueryConstants._
+import com.typesafe.scalalogging.LazyLogging
 import org.apache.solr.client.solrj.SolrQuery
 import org.apache.spark.Partition
+import org.apache.spark.sql.types.DataType
 
+import scala.collection.JavaConverters._
 import scala.collection.mutable
 import scala.collection.mutable.ArrayBuffer
+import scala.util.{Random, Try}
 
 // Is there a need to override {@code Partitioner.scala} and define our own partition id's
-object SolrPartitioner {
+object SolrPartitioner extends LazyLogging {
 
-  def getShardPartitions(shards: List[SolrShard], query: SolrQuery) : Array[Partition] = {
+  def getShardPartitions(
+      shards: List[SolrShard],
+      query: SolrQuery,
+      policy: ReplicaSelectionPolicy = RandomReplicaPolicy) : Array[Partition] = {
     shards.zipWithIndex.map{ case (shard, i) =>
-      // Chose any of the replicas as the active shard to query
-      new ShardRDDPartition(i, "*", shard, query, SolrRDD.randomReplica(shard))}.toArray
+      val choice = policy.choose(shard)
+      logger.debug(s"Chose ${choice.replica.replicaUrl} for partition $i: ${choice.reason}")
+      new ShardRDDPartition(i, "*", shard, query, choice.replica)}.toArray
   }
 
   def getSplitPartitions(
       shards: List[SolrShard],
       query: SolrQuery,
       splitFieldName: String,
-      splitsPerShard: Int): Array[Partition] = {
-    var splitPartitions = ArrayBuffer.empty[SplitRDDPartition]
+      splitsPerShard: Int,
+      policy: ReplicaSelectionPolicy = RandomReplicaPolicy,
+      planningThreads: Int = DEFAULT_PLANNING_THREADS,
+      planningTimeoutMs: Long = DEFAULT_PLANNING_TIMEOUT_MS,
+      planCache: Option[SplitPlanCacheConfig] = None,
+      splitStrategy: String = DEFAULT_SPLIT_STRATEGY): Array[Partition] = {
+    if (shards.isEmpty) return Array.empty[Partition]
+
+    val startMs = System.currentTimeMillis()
+    // the split field has the same type in every shard, so only look it up once, and only if a shard isn't cached
+    lazy val fieldType = SolrSupport.getSplitFieldType(shards.head, splitFieldName)
+
+    // shards are planned concurrently, and so are the count queries within each shard
+    val countPool = PlanningSupport.newPool(planningThreads, "solr-split-count")
+    val shardSplits = try {
+      PlanningSupport.runWithBudget(shards, planningThreads, planningTimeoutMs, "solr-split-plan") { shard =>
+        if (splitStrategy == SPLIT_STRATEGY_HASH)
+          hashSplits(shard, query, splitFieldName, splitsPerShard)
+        else
+          planShard(shard, query, splitFieldName, splitsPerShard, fieldType, countPool, planCache)
+      }
+    } finally {
+      countPool.shutdownNow()
+    }
+
+    var splitPartitions = ArrayBuffer.empty[Partition]
     var counter = 0
-    shards.foreach(shard => {
-      // Form a continuous iterator list so that we can pick different replicas for different partitions in round-robin mode
-      val replicaContinuousIterator: Iterator[SolrReplica] = Iterator.continually(shard.replicas).flatten
-      val splits = SolrSupport.splitShards(query, shard, splitFieldName, splitsPerShard)
-      splits.foreach(split => {
-        splitPartitions += SplitRDDPartition(counter, "*", shard, split.getSplitQuery, replicaContinuousIterator.next())
-        counter = counter + 1
-      })
-    })
+    shards.zip(shardSplits).foreach { case (shard, splits) =>
+      splits match {
+        case Some(shardSplitList) =>
+          // Form a continuous iterator list so that we can pick different replicas for different partitions in round-robin mode,
+          // among the replicas the policy prefers
+          val (preferred, reason) = policy.prefer(shard.replicas)
+          logger.debug(s"Spreading splits of ${shard.shardName} over ${preferred.map(_.replicaUrl).mkString(",")}: $reason")
+          val replicaContinuousIterator: Iterator[SolrReplica] = Iterator.continually(Random.shuffle(preferred)).flatten
+          shardSplitList.foreach(split => {
+            val splitQuery = query.getCopy
+            splitQuery.addFilterQuery(split.fq)
+            splitPartitions += SplitRDDPartition(counter, "*", shard, splitQuery, replicaContinuousIterator.next())
+            counter = counter + 1
+          })
+        case None =>
+          logger.warn(s"Planning splits for ${shard.shardName} did not finish within $planningTimeoutMs ms, " +
+            "so the whole shard will be read by a single partition")
+          splitPartitions += ShardRDDPartition(counter, "*", shard, query, policy.choose(shard).replica)
+          counter = counter + 1
+      }
+    }
+    logger.info(s"Took ${System.currentTimeMillis() - startMs} ms to plan ${splitPartitions.size} partitions " +
+      s"for ${shards.size} shards using $planningThreads threads")
     splitPartitions.toArray
   }
+
+  // hash splits need no queries to plan, nor caching
+  private def hashSplits(shard: SolrShard, query: SolrQuery, splitFieldName: String, splitsPerShard: Int)
+    : Seq[CachedSplit] = {
+    new HashRangeShardSplitStrategy().getSplits(shard.replicas.head.replicaUrl, query, splitFieldName, splitsPerShard)
+      .asScala.map(split => CachedSplit(split.getSplitFilterQuery, 0L))
+  }
+
+  /**
+   * Computes the splits of a shard, or reuses the ones computed earlier if the shard's index hasn't changed
+   * since. Cached splits are computed on the same (first by URL) replica each time, since the split boundaries
+   * and the index version are specific to a core.
+   */
+  private def planShard(
+      shard: SolrShard,
+      query: SolrQuery,
+      splitFieldName: String,
+      splitsPerShard: Int,
+      fieldType: => DataType,
+      countPool: ExecutorService,
+      planCache: Option[SplitPlanCacheConfig]): Seq[CachedSplit] = {
+    val cacheKey = planCache.flatMap { config =>
+      val coreUrl = shard.replicas.map(_.replicaUrl).min
+      SplitPlanCache.indexVersion(coreUrl).map(version =>
+        (coreUrl, SplitPlanCache.key(config.collection, shard.shardName, coreUrl, splitFieldName, splitsPerShard, query, version)))
+    }
+
+    cacheKey.flatMap { case (_, key) => SplitPlanCache.get(key, planCache.get) } match {
+      case Some(cached) =>
+        logger.info(s"Reusing the ${cached.size} splits planned earlier for ${shard.shardName}; its index hasn't changed")
+        cached
+      case None =>
+        val splits = SolrSupport.getSplits(fieldType, splitFieldName, splitsPerShard, query, shard, countPool,
+          cacheKey.map(_._1)).map(split =>
+            CachedSplit(split.getSplitFilterQuery, Option(split.getNumHits).map(_.longValue).getOrElse(0L)))
+        cacheKey.foreach { case (_, key) => SplitPlanCache.put(key, splits, planCache.get) }
+        splits
+    }
+  }
 }
 
 case class SolrShard(shardName: String, replicas: List[SolrReplica])
@@ -46,8 +134,17 @@ case class SolrReplica(
     replicaName: String,
     replicaUrl: String,
     replicaHostName: String,
-    locations: Array[InetAddress]) {
+    locations: Array[InetAddress],
+    isLeader: Boolean = false) {
+
+  // base URL of the Solr node hosting this replica
+  def nodeUrl: String = ReplicaLatencyTracker.nodeUrl(replicaUrl)
+
+  // the host name and IP addresses of the node hosting this replica, any of which Spark may know an executor by
+  def hosts: Seq[String] =
+    (Try(new URL(replicaUrl).getHost).toOption.toSeq ++ locations.map(_.getHostAddress)).distinct
+
   override def toString(): String = {
-    return s"SolrReplica(${replicaNumber}) ${replicaName}: url=${replicaUrl}, hostName=${replicaHostName}, locations="+locations.mkString(",")
+    return s"SolrReplica(${replicaNumber}) ${replicaName}: url=${replicaUrl}, hostName=${replicaHostName}, leader=${isLeader}, locations="+locations.mkString(",")
   }
 }
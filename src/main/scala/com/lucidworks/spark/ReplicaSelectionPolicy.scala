@@ -0,0 +1,174 @@
+package com.lucidworks.spark
+
+import com.lucidworks.spark.query.ReplicaLatencyTracker
+
+import scala.util.Random
+
+/**
+ * The replica a read was sent to and why it was picked.
+ */
+case class ReplicaChoice(replica: SolrReplica, reason: String)
+
+/**
+ * Decides which replica of a shard a read partition is sent to. Policies narrow the candidate replicas
+ * down to the ones they prefer, and can be chained; a replica is then picked at random from whatever
+ * is left so that load is still spread over equally good replicas.
+ *
+ * A policy never narrows the candidates down to nothing; if none of them qualify, all are kept.
+ */
+trait ReplicaSelectionPolicy extends Serializable {
+
+  def name: String
+
+  /**
+   * The subset of (non-empty) candidates this policy prefers, along with an explanation.
+   */
+  def prefer(candidates: List[SolrReplica]): (List[SolrReplica], String)
+
+  /**
+   * Whether this policy depends on the latencies recorded by this JVM, which are only known on the driver in local
+   * mode; such policies are applied again on the executor reading the partition.
+   */
+  def usesLatency: Boolean = false
+
+  def choose(shard: SolrShard): ReplicaChoice = choose(shard.replicas)
+
+  def choose(candidates: List[SolrReplica]): ReplicaChoice = {
+    if (candidates.isEmpty)
+      throw new IllegalArgumentException("No replicas to choose from!")
+
+    val (preferred, reason) = prefer(candidates)
+    ReplicaChoice(preferred(Random.nextInt(preferred.size)), reason)
+  }
+
+  protected def keepIfAny(candidates: List[SolrReplica], preferred: List[SolrReplica], reason: => String, fallback: => String)
+    : (List[SolrReplica], String) = {
+    if (preferred.nonEmpty) (preferred, reason) else (candidates, fallback)
+  }
+}
+
+object RandomReplicaPolicy extends ReplicaSelectionPolicy {
+  val name = "random"
+
+  def prefer(candidates: List[SolrReplica]): (List[SolrReplica], String) =
+    (candidates, s"random choice of ${candidates.size} replicas")
+}
+
+/**
+ * Prefers replicas on the nodes with the lowest recent latency, as an exponentially weighted moving average
+ * of the page requests made from this JVM, i.e. from the executor reading the partition. Nodes without any
+ * latency history yet are always included so they get a chance to be measured.
+ *
+ * @param tolerance how much slower than the fastest node (as a fraction) a node can be and still be preferred
+ */
+case class LatencyReplicaPolicy(tolerance: Double = 0.25) extends ReplicaSelectionPolicy {
+  val name = "latency"
+
+  override def usesLatency: Boolean = true
+
+  def prefer(candidates: List[SolrReplica]): (List[SolrReplica], String) = {
+    val latencies = candidates.map(r => r -> ReplicaLatencyTracker.ewmaMs(r.nodeUrl)).toMap
+    val known = latencies.values.filter(_ >= 0)
+    if (known.isEmpty)
+      return (candidates, "no latency history for any replica")
+
+    val fastest = known.min
+    val preferred = candidates.filter { r =>
+      val ewma = latencies(r)
+      ewma < 0 || ewma <= fastest * (1d + tolerance)
+    }
+    (preferred, f"EWMA latency within ${tolerance * 100}%.0f%% of fastest node ($fastest%.1f ms)")
+  }
+}
+
+/**
+ * Stays away from shard leaders, which also have to coordinate indexing, if the shard has any other replica.
+ */
+object NonLeaderReplicaPolicy extends ReplicaSelectionPolicy {
+  val name = "non_leader"
+
+  def prefer(candidates: List[SolrReplica]): (List[SolrReplica], String) =
+    keepIfAny(candidates, candidates.filterNot(_.isLeader), "non-leader replica", "only the leader is available")
+}
+
+/**
+ * Prefers replicas on nodes whose name or URL contains one of the given tags, e.g. a rack or AZ naming
+ * convention, or specific host names.
+ */
+case class NodeAffinityReplicaPolicy(tags: Seq[String]) extends ReplicaSelectionPolicy {
+  val name = "affinity"
+
+  def prefer(candidates: List[SolrReplica]): (List[SolrReplica], String) = {
+    val matching = candidates.filter(r => tags.exists(t => r.replicaHostName.contains(t) || r.replicaUrl.contains(t)))
+    keepIfAny(candidates, matching, s"node matches affinity ${tags.mkString(",")}",
+      s"no replica on a node matching ${tags.mkString(",")}")
+  }
+}
+
+/**
+ * Excludes replicas on nodes whose recent (EWMA) latency, as seen from this JVM, is above a threshold.
+ */
+case class ExcludeOverloadedReplicaPolicy(maxLatencyMs: Long) extends ReplicaSelectionPolicy {
+  val name = "exclude_overloaded"
+
+  override def usesLatency: Boolean = true
+
+  def prefer(candidates: List[SolrReplica]): (List[SolrReplica], String) = {
+    val ok = candidates.filter(r => ReplicaLatencyTracker.ewmaMs(r.nodeUrl) <= maxLatencyMs)
+    val excluded = candidates.size - ok.size
+    keepIfAny(candidates, ok, s"excluded $excluded replica(s) on nodes over $maxLatencyMs ms",
+      s"all nodes over $maxLatencyMs ms")
+  }
+}
+
+/**
+ * Applies each policy in turn to what the previous one preferred.
+ */
+case class ChainedReplicaPolicy(policies: Seq[ReplicaSelectionPolicy]) extends ReplicaSelectionPolicy {
+  val name = policies.map(_.name).mkString(",")
+
+  override def usesLatency: Boolean = policies.exists(_.usesLatency)
+
+  def prefer(candidates: List[SolrReplica]): (List[SolrReplica], String) = {
+    val reasons = List.newBuilder[String]
+    val preferred = policies.foldLeft(candidates) { (remaining, policy) =>
+      val (next, reason) = policy.prefer(remaining)
+      reasons += s"${policy.name}: $reason"
+      next
+    }
+    (preferred, reasons.result().mkString("; "))
+  }
+}
+
+object ReplicaSelectionPolicy {
+  val DEFAULT_OVERLOADED_LATENCY_MS: Long = 5000L
+
+  /**
+   * Builds a policy from a comma-separated list of policy names: random, latency, non_leader, affinity,
+   * exclude_overloaded.
+   */
+  def apply(
+      spec: String,
+      affinityTags: Option[String] = None,
+      maxLatencyMs: Option[Long] = None): ReplicaSelectionPolicy = {
+    def policyFor(name: String): ReplicaSelectionPolicy = name match {
+      case "random" => RandomReplicaPolicy
+      case "latency" => LatencyReplicaPolicy()
+      case "non_leader" => NonLeaderReplicaPolicy
+      case "affinity" =>
+        if (affinityTags.isEmpty)
+          throw new IllegalArgumentException("The affinity replica policy requires a list of node tags")
+        NodeAffinityReplicaPolicy(affinityTags.get.split(",").map(_.trim).filter(_.nonEmpty).toList)
+      case "exclude_overloaded" => ExcludeOverloadedReplicaPolicy(maxLatencyMs.getOrElse(DEFAULT_OVERLOADED_LATENCY_MS))
+      case other => throw new IllegalArgumentException(s"Unknown replica policy '$other'")
+    }
+
+    val policies = spec.split(",").map(_.trim).filter(_.nonEmpty).toList.map(policyFor)
+
+    policies match {
+      case Nil => RandomReplicaPolicy
+      case single :: Nil => single
+      case _ => ChainedReplicaPolicy(policies)
+    }
+  }
+}
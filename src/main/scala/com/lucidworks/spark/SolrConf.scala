@@ -84,6 +84,184 @@ class SolrConf(config: Map[String, String]) extends Serializable with LazyLoggin
     None
   }
 
+  def prefetchPages: Option[Int] = {
+    if (config.contains(PREFETCH_PAGES) && config.get(PREFETCH_PAGES).isDefined) {
+      return Some(config.get(PREFETCH_PAGES).get.toInt)
+    }
+    None
+  }
+
+  def prefetchMaxDocs: Option[Int] = {
+    if (config.contains(PREFETCH_MAX_DOCS) && config.get(PREFETCH_MAX_DOCS).isDefined) {
+      return Some(config.get(PREFETCH_MAX_DOCS).get.toInt)
+    }
+    None
+  }
+
+  def maxFailovers: Option[Int] = {
+    if (config.contains(MAX_FAILOVERS) && config.get(MAX_FAILOVERS).isDefined) {
+      return Some(config.get(MAX_FAILOVERS).get.toInt)
+    }
+    None
+  }
+
+  def failoverBackoffMs: Option[Long] = {
+    if (config.contains(FAILOVER_BACKOFF_MS) && config.get(FAILOVER_BACKOFF_MS).isDefined) {
+      return Some(config.get(FAILOVER_BACKOFF_MS).get.toLong)
+    }
+    None
+  }
+
+  def hedgePercentile: Option[Double] = {
+    if (config.contains(HEDGE_PERCENTILE) && config.get(HEDGE_PERCENTILE).isDefined) {
+      val pct = config.get(HEDGE_PERCENTILE).get.toDouble
+      if (pct <= 0 || pct > 100)
+        throw new IllegalArgumentException(s"Invalid value for $HEDGE_PERCENTILE: $pct; must be between 0 and 100")
+      return Some(pct)
+    }
+    None
+  }
+
+  def hedgeMaxPct: Option[Double] = {
+    if (config.contains(HEDGE_MAX_PCT) && config.get(HEDGE_MAX_PCT).isDefined) {
+      return Some(config.get(HEDGE_MAX_PCT).get.toDouble)
+    }
+    None
+  }
+
+  def hedgeMinDelayMs: Option[Long] = {
+    if (config.contains(HEDGE_MIN_DELAY_MS) && config.get(HEDGE_MIN_DELAY_MS).isDefined) {
+      return Some(config.get(HEDGE_MIN_DELAY_MS).get.toLong)
+    }
+    None
+  }
+
+  def replicaPolicy: Option[ReplicaSelectionPolicy] = {
+    if (config.contains(REPLICA_POLICY) && config.get(REPLICA_POLICY).isDefined) {
+      val maxLatencyMs = config.get(REPLICA_MAX_LATENCY_MS).map(_.toLong)
+      return Some(ReplicaSelectionPolicy(config.get(REPLICA_POLICY).get, config.get(REPLICA_AFFINITY), maxLatencyMs))
+    }
+    None
+  }
+
+  def preferLocalReplica: Option[Boolean] = {
+    if (config.contains(PREFER_LOCAL_REPLICA) && config.get(PREFER_LOCAL_REPLICA).isDefined) {
+      return Some(config.get(PREFER_LOCAL_REPLICA).get.toBoolean)
+    }
+    None
+  }
+
+  def planningThreads: Option[Int] = {
+    if (config.contains(PLANNING_THREADS) && config.get(PLANNING_THREADS).isDefined) {
+      return Some(config.get(PLANNING_THREADS).get.toInt)
+    }
+    None
+  }
+
+  def planningTimeoutMs: Option[Long] = {
+    if (config.contains(PLANNING_TIMEOUT_MS) && config.get(PLANNING_TIMEOUT_MS).isDefined) {
+      return Some(config.get(PLANNING_TIMEOUT_MS).get.toLong)
+    }
+    None
+  }
+
+  def splitPlanCache: Option[Boolean] = {
+    if (config.contains(SPLIT_PLAN_CACHE) && config.get(SPLIT_PLAN_CACHE).isDefined) {
+      return Some(config.get(SPLIT_PLAN_CACHE).get.toBoolean)
+    }
+    None
+  }
+
+  def splitStrategy: Option[String] = {
+    if (config.contains(SPLIT_STRATEGY) && config.get(SPLIT_STRATEGY).isDefined) {
+      return Some(config.get(SPLIT_STRATEGY).get.toLowerCase)
+    }
+    None
+  }
+
+  def splitPlanCacheDir: Option[String] = {
+    if (config.contains(SPLIT_PLAN_CACHE_DIR) && config.get(SPLIT_PLAN_CACHE_DIR).isDefined) {
+      return Some(config.get(SPLIT_PLAN_CACHE_DIR).get)
+    }
+    None
+  }
+
+  def metadataCacheTtlMs: Option[Long] = {
+    if (config.contains(METADATA_CACHE_TTL_MS) && config.get(METADATA_CACHE_TTL_MS).isDefined) {
+      return Some(config.get(METADATA_CACHE_TTL_MS).get.toLong)
+    }
+    None
+  }
+
+  def countPushDown: Option[Boolean] = {
+    if (config.contains(COUNT_PUSH_DOWN) && config.get(COUNT_PUSH_DOWN).isDefined) {
+      return Some(config.get(COUNT_PUSH_DOWN).get.toBoolean)
+    }
+    None
+  }
+  def aggregationPushDown: Option[Boolean] = {
+    if (config.contains(AGGREGATION_PUSH_DOWN) && config.get(AGGREGATION_PUSH_DOWN).isDefined) {
+      return Some(config.get(AGGREGATION_PUSH_DOWN).get.toBoolean)
+    }
+    None
+  }
+
+  def rangeFacetMaxBuckets: Option[Long] = {
+    if (config.contains(RANGE_FACET_MAX_BUCKETS) && config.get(RANGE_FACET_MAX_BUCKETS).isDefined) {
+      return Some(config.get(RANGE_FACET_MAX_BUCKETS).get.toLong)
+    }
+    None
+  }
+
+  def semiJoinMaxKeys: Option[Int] = {
+    if (config.contains(SEMI_JOIN_MAX_KEYS) && config.get(SEMI_JOIN_MAX_KEYS).isDefined) {
+      return Some(config.get(SEMI_JOIN_MAX_KEYS).get.toInt)
+    }
+    None
+  }
+
+  def termsFilterBatchSize: Option[Int] = {
+    if (config.contains(TERMS_FILTER_BATCH_SIZE) && config.get(TERMS_FILTER_BATCH_SIZE).isDefined) {
+      return Some(config.get(TERMS_FILTER_BATCH_SIZE).get.toInt)
+    }
+    None
+  }
+
+  def termsFilterBroadcastThreshold: Option[Int] = {
+    if (config.contains(TERMS_FILTER_BROADCAST_THRESHOLD) && config.get(TERMS_FILTER_BROADCAST_THRESHOLD).isDefined) {
+      return Some(config.get(TERMS_FILTER_BROADCAST_THRESHOLD).get.toInt)
+    }
+    None
+  }
+
+  def includeScore: Option[Boolean] = {
+    if (config.contains(INCLUDE_SCORE) && config.get(INCLUDE_SCORE).isDefined) {
+      return Some(config.get(INCLUDE_SCORE).get.toBoolean)
+    }
+    None
+  }
+
+  def topKMaxRows: Option[Int] = {
+    if (config.contains(TOP_K_MAX_ROWS) && config.get(TOP_K_MAX_ROWS).isDefined) {
+      return Some(config.get(TOP_K_MAX_ROWS).get.toInt)
+    }
+    None
+  }
+
+  def sqlFacetMaxCardinality: Option[Long] = {
+    if (config.contains(SQL_FACET_MAX_CARDINALITY) && config.get(SQL_FACET_MAX_CARDINALITY).isDefined) {
+      return Some(config.get(SQL_FACET_MAX_CARDINALITY).get.toLong)
+    }
+    None
+  }
+
+  def streamWorkers: Option[Int] = {
+    if (config.contains(STREAM_WORKERS) && config.get(STREAM_WORKERS).isDefined) {
+      return Some(config.get(STREAM_WORKERS).get.toInt)
+    }
+    None
+  }
+
   def escapeFieldNames: Option[Boolean] = {
     if (config.contains(ESCAPE_FIELDNAMES_PARAM) && config.get(ESCAPE_FIELDNAMES_PARAM).isDefined) {
       return Some(config.get(ESCAPE_FIELDNAMES_PARAM).get.toBoolean)
@@ -175,6 +353,20 @@ class SolrConf(config: Map[String, String]) extends Serializable with LazyLoggin
     None
   }
 
+  def sampleMethod: Option[String] = {
+    if (config.contains(SAMPLE_METHOD) && config.get(SAMPLE_METHOD).isDefined) {
+      return Some(config.get(SAMPLE_METHOD).get.toLowerCase)
+    }
+    None
+  }
+
+  def sampleHashField: Option[String] = {
+    if (config.contains(SAMPLE_HASH_FIELD) && config.get(SAMPLE_HASH_FIELD).isDefined) {
+      return config.get(SAMPLE_HASH_FIELD)
+    }
+    None
+  }
+
   def partition_by: Option[String]={
     if (config.contains(PARTITION_BY) && config.get(PARTITION_BY).isDefined) {
       return Some(config.get(PARTITION_BY).get.toString)
@@ -3,7 +3,7 @@ package com.lucidworks.spark
 import java.util.UUID
 
 import com.lucidworks.spark.query.sql.SolrSQLSupport
-import com.lucidworks.spark.rdd.SolrRDD
+import com.lucidworks.spark.rdd.{SolrCountRDD, SolrRDD}
 import com.lucidworks.spark.util.ConfigurationConstants._
 import com.lucidworks.spark.util.QueryConstants._
 import com.lucidworks.spark.util._
@@ -11,14 +11,17 @@ import com.typesafe.scalalogging.LazyLogging
 import org.apache.http.entity.StringEntity
 import org.apache.solr.client.solrj.SolrQuery
 import org.apache.solr.client.solrj.SolrQuery.SortClause
+import org.apache.solr.client.solrj.SolrRequest.METHOD
 import org.apache.solr.client.solrj.io.stream.expr._
 import org.apache.solr.client.solrj.request.schema.SchemaRequest.{AddField, MultiUpdate, Update}
+import org.apache.solr.client.solrj.response.QueryResponse
 import org.apache.solr.common.SolrException.ErrorCode
 import org.apache.solr.common.{SolrException, SolrInputDocument}
 import org.apache.solr.common.params.{CommonParams, ModifiableSolrParams}
 import org.apache.spark.rdd.RDD
+import org.apache.spark.sql.catalyst.InternalRow
 import org.apache.spark.sql.catalyst.parser.ParserInterface
-import org.apache.spark.sql.solr.SolrSparkSession
+import org.apache.spark.sql.solr.{SolrPushDown, SolrSparkSession}
 import org.apache.spark.sql.sources._
 import org.apache.spark.sql.types._
 import org.apache.spark.sql.{DataFrame, Row, SQLContext, SparkSession}
@@ -28,12 +31,17 @@ import scala.collection.mutable.ListBuffer
 import scala.reflect.runtime.universe._
 import scala.util.control.Breaks._
 
-class SolrRelation(
+/**
+ * @param resolvedFrom the relation this one is a copy of (see copyRelation), whose collection, schema, query
+ *                     and RDD are reused instead of being looked up in Solr again
+ */
+class SolrRelation private (
     val parameters: Map[String, String],
     val dataFrame: Option[DataFrame],
-    @transient val sparkSession: SparkSession)(
+    @transient val sparkSession: SparkSession,
+    resolvedFrom: Option[SolrRelation])(
   implicit
-    val conf: SolrConf = new SolrConf(parameters))
+    val conf: SolrConf)
   extends BaseRelation
   with Serializable
   with TableScan
@@ -43,13 +51,22 @@ class SolrRelation(
 
   override val sqlContext: SQLContext = sparkSession.sqlContext
 
+  def this(
+      parameters: Map[String, String],
+      dataFrame: Option[DataFrame],
+      sparkSession: SparkSession)(
+    implicit
+      conf: SolrConf = new SolrConf(parameters)) {
+    this(parameters, dataFrame, sparkSession, None)(conf)
+  }
+
   def this(parameters: Map[String, String], sparkSession: SparkSession) {
     this(parameters, None, sparkSession)
   }
 
   checkRequiredParams()
 
-  var collection = conf.getCollection.getOrElse({
+  var collection = resolvedFrom.map(_.collection).getOrElse(conf.getCollection.getOrElse({
     var coll = Option.empty[String]
     if (conf.getSqlStmt.isDefined) {
       val collectionFromSql = SolrSparkSession.findSolrCollectionNameInSql(conf.getSqlStmt.get)
@@ -63,21 +80,25 @@ class SolrRelation(
     } else {
       throw new IllegalArgumentException("collection option is required!")
     }
-  })
-
-  // Warn about unknown parameters
-  val unknownParams = SolrRelation.checkUnknownParams(parameters.keySet)
-  if (unknownParams.nonEmpty)
-    logger.warn("Unknown parameters passed to query: " + unknownParams.toString())
+  }))
+
+  if (resolvedFrom.isEmpty) {
+    // Warn about unknown parameters
+    val unknownParams = SolrRelation.checkUnknownParams(parameters.keySet)
+    if (unknownParams.nonEmpty)
+      logger.warn("Unknown parameters passed to query: " + unknownParams.toString())
+
+    if (conf.partition_by.isDefined && conf.partition_by.get=="time") {
+      val feature = new PartitionByTimeQueryParams(conf)
+      val p = new PartitionByTimeQuerySupport(feature,conf)
+      val allCollections = p.getPartitionsForQuery()
+      collection = allCollections mkString ","
+    }
 
-  if (conf.partition_by.isDefined && conf.partition_by.get=="time") {
-    val feature = new PartitionByTimeQueryParams(conf)
-    val p = new PartitionByTimeQuerySupport(feature,conf)
-    val allCollections = p.getPartitionsForQuery()
-    collection = allCollections mkString ","
+    if (sparkSession != null) SolrPushDown.register(sparkSession)
   }
 
-  val solrRDD = {
+  val solrRDD = resolvedFrom.map(_.solrRDD).getOrElse {
     var rdd = new SolrRDD(
       conf.getZkHost.get,
       collection,
@@ -96,9 +117,72 @@ class SolrRelation(
       rdd = rdd.splitField(conf.getSplitField.get)
     }
 
+    if (conf.prefetchPages.isDefined) {
+      rdd = rdd.prefetchPages(conf.prefetchPages.get)
+    }
+
+    if (conf.prefetchMaxDocs.isDefined) {
+      rdd = rdd.maxQueuedDocs(conf.prefetchMaxDocs.get)
+    }
+
+    if (conf.maxFailovers.isDefined) {
+      rdd = rdd.maxFailovers(conf.maxFailovers.get)
+    }
+
+    if (conf.streamWorkers.isDefined) {
+      rdd = rdd.streamWorkers(conf.streamWorkers.get)
+    }
+
+    if (conf.failoverBackoffMs.isDefined) {
+      rdd = rdd.failoverBackoffMs(conf.failoverBackoffMs.get)
+    }
+
+    if (conf.hedgePercentile.isDefined) {
+      rdd = rdd.hedgePercentile(conf.hedgePercentile.get)
+    }
+
+    if (conf.hedgeMaxPct.isDefined) {
+      rdd = rdd.hedgeMaxPct(conf.hedgeMaxPct.get)
+    }
+
+    if (conf.hedgeMinDelayMs.isDefined) {
+      rdd = rdd.hedgeMinDelayMs(conf.hedgeMinDelayMs.get)
+    }
+
+    if (conf.replicaPolicy.isDefined) {
+      rdd = rdd.replicaPolicy(conf.replicaPolicy.get)
+    }
+
+    if (conf.preferLocalReplica.isDefined) {
+      rdd = rdd.preferLocalReplica(conf.preferLocalReplica.get)
+    }
+
+    if (conf.planningThreads.isDefined) {
+      rdd = rdd.planningThreads(conf.planningThreads.get)
+    }
+
+    if (conf.planningTimeoutMs.isDefined) {
+      rdd = rdd.planningTimeoutMs(conf.planningTimeoutMs.get)
+    }
+
+    if (conf.splitPlanCache.isDefined) {
+      rdd = rdd.splitPlanCache(conf.splitPlanCache.get)
+    }
+
+    if (conf.splitPlanCacheDir.isDefined) {
+      rdd = rdd.splitPlanCacheDir(conf.splitPlanCacheDir.get)
+    }
+
+    if (conf.splitStrategy.isDefined) {
+      rdd = rdd.splitStrategy(conf.splitStrategy.get)
+    }
+
     rdd
   }
 
+  // the uniqueKey is needed to plan the scan, look it up while the schema is being fetched
+  if (resolvedFrom.isEmpty) solrRDD.metadata.prefetch()
+
   val arbitraryParams = conf.getArbitrarySolrParams
   val solrFields: Array[String] = {
     if (arbitraryParams.getParameterNames.contains(CommonParams.FL)) {
@@ -109,14 +193,23 @@ class SolrRelation(
   }
 
   // we don't need the baseSchema for streaming expressions, so we wrap it in an optional
-  var baseSchema : Option[StructType] = None
+  var baseSchema : Option[StructType] = resolvedFrom.flatMap(_.baseSchema)
 
-  val query: SolrQuery = buildQuery
+  val query: SolrQuery = resolvedFrom.map(_.query.getCopy).getOrElse(buildQuery)
   // Preserve the initial filters if any present in arbitrary config
-  var queryFilters: Array[String] = if (query.getFilterQueries != null) query.getFilterQueries else Array.empty[String]
+  var queryFilters: Array[String] = resolvedFrom.map(_.queryFilters).getOrElse(
+    if (query.getFilterQueries != null) query.getFilterQueries else Array.empty[String])
+
+  // set on copies of this relation that only read the docs matching the keys of the other side of a join
+  var termsFilter: Option[TermsFilter] = resolvedFrom.flatMap(_.termsFilter)
+
+  // set on copies of this relation scanned for at most this many rows, e.g. by df.limit(n) or df.show()
+  var rowLimit: Option[Int] = resolvedFrom.flatMap(_.rowLimit)
 
   val querySchema: StructType = {
-    if (dataFrame.isDefined) {
+    if (resolvedFrom.isDefined) {
+      resolvedFrom.get.querySchema
+    } else if (dataFrame.isDefined) {
       dataFrame.get.schema
     } else {
       if (query.getFields != null) {
@@ -136,7 +229,8 @@ class SolrRelation(
               conf.getZkHost.get,
               sf.collection,
               conf.escapeFieldNames.getOrElse(false),
-              conf.flattenMultivalued.getOrElse(true))
+              conf.flattenMultivalued.getOrElse(true),
+              conf.metadataCacheTtlMs.getOrElse(DEFAULT_METADATA_CACHE_TTL_MS))
           logger.debug(s"Got stream schema: ${streamSchema} for ${sf}")
           streamSchema.fields.foreach(fld => fieldSet.add(fld))
           sf.metrics.foreach(m => fieldSet.add(toMetricStructField(m)))
@@ -212,12 +306,14 @@ class SolrRelation(
   }
 
   def getBaseSchemaFromConfig(collection: String, solrFields: Array[String]) : StructType = {
-    SolrRelationUtil.getBaseSchema(
+    val schema = SolrRelationUtil.getBaseSchema(
       solrFields.toSet,
       conf.getZkHost.get,
       collection.split(",")(0),
       conf.escapeFieldNames.getOrElse(false),
-      conf.flattenMultivalued.getOrElse(true))
+      conf.flattenMultivalued.getOrElse(true),
+      conf.metadataCacheTtlMs.getOrElse(DEFAULT_METADATA_CACHE_TTL_MS))
+    if (conf.includeScore.getOrElse(false)) SolrRelationUtil.withScoreField(schema) else schema
   }
 
   def findStreamingExpressionFields(expr: StreamExpressionParameter, streamOutputFields: ListBuffer[StreamFields]) : Unit = {
@@ -267,21 +363,160 @@ class SolrRelation(
 
   override def schema: StructType = querySchema
 
-  override def buildScan(): RDD[Row] = buildScan(Array.empty, Array.empty)
+  // buildScan hands back InternalRows produced by SolrRowConverter
+  override val needConversion: Boolean = false
+
+  override def buildScan(): RDD[Row] = scan(Array.empty, Array.empty, countOnly = false)
+
+  // Spark doesn't ask for any columns when it only needs to know the number of rows, e.g. for count()
+  override def buildScan(fields: Array[String], filters: Array[Filter]): RDD[Row] =
+    scan(fields, filters, countOnly = fields.isEmpty)
+
+  /**
+   * The filters Spark still has to evaluate on the rows of a scan: filters are pushed down to Solr when the docs it
+   * matches include all the rows Spark keeps (see SolrRelationUtil.isSupersetFilter), but only those it evaluates
+   * exactly like Spark (see SolrRelationUtil.isExactFilter) are handled.
+   */
+  override def unhandledFilters(filters: Array[Filter]): Array[Filter] = {
+    if (filters.isEmpty || !scansDocs) return filters
+
+    multiValuedFields(filters) match {
+      case Some(isMultiValued) => filters.filterNot(SolrRelationUtil.isExactFilter(_, baseSchema.get, isMultiValued))
+      case None => filters
+    }
+  }
+
+  // whether each field the filters use may hold several values; None if the field definitions can't be had
+  private def multiValuedFields(filters: Array[Filter]): Option[String => Boolean] = {
+    val schema = baseSchema.get
+    val fields = filters.flatMap(SolrRelationUtil.filterAttributes).map(SolrRelationUtil.attributeToFieldName(_, schema))
+    try {
+      val fieldMetas = fieldMeta(fields.toSet)
+      // a field is only known to hold a single value if its definition says so
+      Some((field: String) => fieldMetas.get(field).forall(_.isMultiValued.getOrElse(true)))
+    } catch {
+      case e: Exception =>
+        logger.warn(s"Can't get the field definitions of ${fields.mkString(",")}, letting Spark evaluate all filters", e)
+        None
+    }
+  }
+
+  /**
+   * The number of docs matching the query and the given filters, if it can be had from Solr without
+   * reading them.
+   */
+  def countPushDown(filters: Array[Filter]): Option[Long] = {
+    if (!conf.countPushDown.getOrElse(true)) return None
+
+    pushDownQuery(filters).map { countQuery =>
+      val count = SolrQuerySupport.getNumDocsFromSolr(collection, conf.getZkHost.get, Some(countQuery))
+      logger.info(s"Pushed down count of ${collection} with filters ${filters.mkString(",")}: $count")
+      count
+    }
+  }
+
+  /**
+   * The query for the docs matching the given filters, for answering a query over this relation with something
+   * other than the matching docs (counts, facets); None if this relation's results can't be had that way, or
+   * Solr doesn't evaluate all the filters exactly.
+   */
+  def pushDownQuery(filters: Array[Filter]): Option[SolrQuery] = {
+    if (!canPushDown || unhandledFilters(filters).nonEmpty) return None
+
+    checkReadAccess()
+    val pushDownQuery = SolrQuerySupport.toCountQuery(query)
+    pushDownQuery.setFilterQueries(queryFilters:_*)
+    val isMultiValued = multiValuedFields(filters).getOrElse((_: String) => true)
+    filters.foreach(filter => SolrRelationUtil.applyFilter(filter, pushDownQuery, baseSchema.get, isMultiValued))
+    Some(pushDownQuery)
+  }
+
+  /**
+   * Sends a query built by pushDownQuery to the collection(s) of this relation.
+   */
+  def querySolr(pushDownQuery: SolrQuery): QueryResponse = {
+    val distribQuery = pushDownQuery.getCopy
+    distribQuery.set("distrib", "true")
+    // POST, as pushed down filters can make for long queries
+    SolrSupport.getCachedCloudClient(conf.getZkHost.get).query(collection, distribQuery, METHOD.POST)
+  }
+
+  def numShards: Int = collection.split(",").map(c => SolrSupport.buildShardList(conf.getZkHost.get, c).size).sum
+
+  // like the base schema, field definitions come from the first collection
+  def fieldMeta(fields: Set[String]): Map[String, SolrFieldMeta] =
+    SolrMetadataCatalog.fieldTypes(conf.getZkHost.get, collection.split(",")(0), fields,
+      conf.metadataCacheTtlMs.getOrElse(DEFAULT_METADATA_CACHE_TTL_MS))
 
-  override def buildScan(fields: Array[String], filters: Array[Filter]): RDD[Row] = {
+  private def canPushDown: Boolean = scansDocs && (conf.sampleSeed.isEmpty || isHashSampling) && termsFilter.isEmpty
+
+  private def isHashSampling: Boolean =
+    conf.sampleSeed.isDefined && conf.sampleMethod.getOrElse(DEFAULT_SAMPLE_METHOD) == SAMPLE_METHOD_HASH
+
+  // whether the results are docs of the collection, rather than those of a DataFrame or streaming expression / SQL
+  def scansDocs: Boolean = {
+    val rq = solrRDD.requestHandler
+    dataFrame.isEmpty && baseSchema.isDefined && !(rq.isDefined && (rq.get == QT_STREAM || rq.get == QT_SQL))
+  }
+
+  /**
+   * A copy of this relation that only reads the docs with one of the given values in the field.
+   */
+  def withTermsFilter(field: String, values: Array[String]): SolrRelation = {
+    val relation = copyRelation()
+    relation.termsFilter = Some(TermsFilter(sqlContext.sparkContext, field, values,
+      conf.termsFilterBatchSize.getOrElse(DEFAULT_TERMS_FILTER_BATCH_SIZE),
+      conf.termsFilterBroadcastThreshold.getOrElse(DEFAULT_TERMS_FILTER_BROADCAST_THRESHOLD)))
+    relation
+  }
+
+  /**
+   * A copy of this relation that only reads the docs matching all the given Lucene queries, each searching the
+   * given field by default. The queries are added to the main query rather than as filters, so they're scored.
+   */
+  def withMatchQueries(matches: Seq[(String, String)]): SolrRelation = {
+    val relation = copyRelation()
+    val clauses = Option(query.getQuery).filter(_ != "*:*").map(SolrRelationUtil.nestedQuery).toSeq ++
+      matches.map { case (field, matchQuery) => SolrRelationUtil.nestedQuery(s"{!lucene df=$field}$matchQuery") }
+    relation.query.setQuery(clauses.map(clause => s"+$clause").mkString(" "))
+    relation
+  }
 
+  /**
+   * A copy of this relation that reads at most the given number of docs from each partition.
+   */
+  def withRowLimit(limit: Int): SolrRelation = {
+    val relation = copyRelation()
+    relation.rowLimit = Some(limit)
+    relation
+  }
+
+  // a copy with its own query, terms filter and row limit, sharing everything resolved from Solr with this one
+  private def copyRelation(): SolrRelation = new SolrRelation(parameters, dataFrame, sparkSession, Some(this))(conf)
+
+  // the RDD for reading docs (rather than streaming expression / SQL results)
+  private def scanRDD: SolrRDD = {
+    val rdd = termsFilter.map(solrRDD.termsFilter).getOrElse(solrRDD)
+    rowLimit.map(rdd.maxRowsPerPartition).getOrElse(rdd)
+  }
+
+  private def checkReadAccess(): Unit = {
     sparkSession match {
       case solrSparkSession: SolrSparkSession =>
         solrSparkSession.checkReadAccess(collection, "solr")
       case _ =>
     }
+  }
+
+  private def scan(fields: Array[String], filters: Array[Filter], countOnly: Boolean): RDD[Row] = {
+
+    checkReadAccess()
 
     val rq = solrRDD.requestHandler
     if (rq.isDefined) {
       if (rq.get == QT_STREAM || rq.get == QT_SQL) {
         // ignore any fields / filters when processing a streaming expression
-        return SolrRelationUtil.toRows(querySchema, solrRDD.query(query))
+        return SolrRelationUtil.toInternalRows(querySchema, solrRDD.query(query)).asInstanceOf[RDD[Row]]
       }
     }
 
@@ -303,20 +538,30 @@ class SolrRelation(
     // Clear all existing filters except the original filters set in the config.
     if (!filters.isEmpty) {
       query.setFilterQueries(queryFilters:_*)
-      filters.foreach(filter => SolrRelationUtil.applyFilter(filter, query, collectionBaseSchema))
+      // without the field definitions, negated filters are left to Spark
+      val isMultiValued = multiValuedFields(filters).getOrElse((_: String) => true)
+      filters.foreach(filter => SolrRelationUtil.applyFilter(filter, query, collectionBaseSchema, isMultiValued))
     } else {
       query.setFilterQueries(queryFilters:_*)
     }
 
-    if (conf.sampleSeed.isDefined) {
+    if (countOnly && conf.countPushDown.getOrElse(true) && canPushDown) {
+      logger.info(s"No fields requested, counting the docs matching ${query} in each shard instead of reading them")
+      return new SolrCountRDD(sqlContext.sparkContext, conf.getZkHost.get, collection, query.getCopy,
+        solrRDD.selectionPolicy).asInstanceOf[RDD[Row]]
+    }
+
+    // the hash sample is a filter of the query; sorting by a random field takes the first docs of each shard
+    if (conf.sampleSeed.isDefined && !isHashSampling) {
       // can't support random sampling & intra-shard splitting
       if (conf.splits.getOrElse(false) || conf.getSplitField.isDefined) {
-        throw new IllegalStateException("Cannot do sampling if intra-shard splitting feature is enabled!");
+        throw new IllegalStateException("Cannot do sampling if intra-shard splitting feature is enabled! " +
+          s"Use the ${SAMPLE_METHOD}=${SAMPLE_METHOD_HASH} option instead.");
       }
 
       query.addSort(SolrQuery.SortClause.asc("random_"+conf.sampleSeed.get))
       query.addSort(SolrQuery.SortClause.asc(solrRDD.uniqueKey))
-      query.add(ConfigurationConstants.SAMPLE_PCT, conf.samplePct.getOrElse(0.1f).toString)
+      query.add(ConfigurationConstants.SAMPLE_PCT, conf.samplePct.getOrElse(DEFAULT_SAMPLE_PCT).toString)
     }
 
     logger.info(s"Constructed SolrQuery: ${query}")
@@ -380,14 +625,12 @@ class SolrRelation(
             query.setSort(solrRDD.uniqueKey, SolrQuery.ORDER.asc)
         }
         logger.info(s"Constructed SolrQuery: ${query}")
-        val docs = solrRDD.requestHandler(requestHandler).query(query)
-        val rows = SolrRelationUtil.toRows(querySchema, docs)
-        rows
+        val rdd = scanRDD.requestHandler(requestHandler).query(query)
+        toInternalRows(requestHandler, querySchema, rdd).asInstanceOf[RDD[Row]]
       } else {
-        logger.info(s"Constructed SolrQuery: ${query}")
-        val docs = solrRDD.query(query)
-        val rows = SolrRelationUtil.toRows(querySchema, docs)
-        rows
+        logger.info(s"Constructed SolrQuery: ${query}" + termsFilter.map(tf => s" with $tf").getOrElse(""))
+        val rdd = scanRDD.query(query)
+        toInternalRows(rq.getOrElse(DEFAULT_REQUEST_HANDLER), querySchema, rdd).asInstanceOf[RDD[Row]]
       }
 
     } catch {
@@ -395,6 +638,11 @@ class SolrRelation(
     }
   }
 
+  // /export responses are decoded straight into rows; everything else goes through SolrDocument
+  def toInternalRows(requestHandler: String, querySchema: StructType, rdd: SolrRDD): RDD[InternalRow] = {
+    if (requestHandler == QT_EXPORT) rdd.exportRows(querySchema) else SolrRelationUtil.toInternalRows(querySchema, rdd)
+  }
+
   def requiresExportHandler(rq: String): Boolean = {
     return rq == QT_EXPORT || rq == QT_STREAM || rq == QT_SQL
   }
@@ -466,6 +714,8 @@ class SolrRelation(
         logger.error(errMsg)
         throw new SolrException(ErrorCode.getErrorCode(updateResponse.getStatus), errMsg)
       }
+      // don't wait for the schema watch to pick up the new fields
+      SolrMetadataCatalog.invalidate(zkHost, collectionId)
     }
 
     if (conf.softAutoCommitSecs.isDefined) {
@@ -545,9 +795,43 @@ class SolrRelation(
     query.setRows(scala.Int.box(conf.getRows.getOrElse(DEFAULT_PAGE_SIZE)))
     query.add(conf.getArbitrarySolrParams)
     query.set("collection", collection)
+    if (isHashSampling && conf.getStreamingExpr.isEmpty && conf.getSqlStmt.isEmpty) {
+      // part of the original filters, so pushed down queries (counts, aggregations, ...) only see the sample too
+      SolrRelationUtil.hashSampleFilter(solrRDD.uniqueKey, conf.sampleHashField, conf.sampleSeed.get,
+        conf.samplePct.getOrElse(DEFAULT_SAMPLE_PCT)).foreach(query.addFilterQuery(_))
+    }
+    if (conf.getSqlStmt.isDefined && query.get(AGGREGATION_MODE) == null) {
+      sqlAggregationMode(query.get(SOLR_SQL_STMT)).foreach(query.set(AGGREGATION_MODE, _))
+    }
     query
   }
 
+  // picks the aggregationMode of a Solr SQL statement that groups on fields from estimates of their cardinality
+  private def sqlAggregationMode(sqlStmt: String): Option[String] = {
+    val maxFacetCardinality = conf.sqlFacetMaxCardinality.getOrElse(DEFAULT_SQL_FACET_MAX_CARDINALITY)
+    val groupByFields = SolrSQLSupport.parseGroupByFields(sqlStmt).asScala.toSet
+    if (maxFacetCardinality <= 0 || groupByFields.isEmpty) return None
+
+    try {
+      val zkHost = conf.getZkHost.get
+      val ttlMs = conf.metadataCacheTtlMs.getOrElse(DEFAULT_METADATA_CACHE_TTL_MS)
+      val cardinalities = SolrMetadataCatalog.fieldCardinalities(zkHost, collection.split(",")(0), groupByFields, ttlMs)
+      // map_reduce exports the docs sorted by the fields, which needs them to be single-valued with docValues
+      val meta = fieldMeta(groupByFields)
+      val exportable = groupByFields.forall(f => meta.get(f).exists(m =>
+        m.isDocValues.getOrElse(false) && !m.isMultiValued.getOrElse(true)))
+      if (cardinalities.size != groupByFields.size || !exportable) return None
+
+      val mode = SolrQuerySupport.aggregationMode(cardinalities.values.toSeq, maxFacetCardinality)
+      logger.info(s"Using aggregationMode=$mode for Solr SQL grouping on fields with estimated cardinalities $cardinalities")
+      Some(mode)
+    } catch {
+      case e: Exception =>
+        logger.warn(s"Can't estimate the cardinality of ${groupByFields.mkString(", ")}, using the default aggregationMode: $e")
+        None
+    }
+  }
+
   private def checkRequiredParams(): Unit = {
     require(conf.getZkHost.isDefined, "Param '" + SOLR_ZK_HOST_PARAM + "' is required")
   }
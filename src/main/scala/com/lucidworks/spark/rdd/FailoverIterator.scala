@@ -0,0 +1,166 @@
+package com.lucidworks.spark.rdd
+
+import com.lucidworks.spark.util.SolrSupport
+import com.lucidworks.spark.{RandomReplicaPolicy, ReplicaSelectionPolicy, SolrReplica, SolrShard}
+import com.typesafe.scalalogging.LazyLogging
+
+import scala.collection.mutable
+
+/**
+ * Where a partition read can pick up again on another replica: either the cursorMark of the page being
+ * read plus the number of docs already returned from that page, or (for /export sorted on the uniqueKey)
+ * the last uniqueKey value returned.
+ */
+case class ResumePoint(cursorMark: Option[String], skipDocs: Long, afterValue: Option[String])
+
+/**
+ * Wraps the iterator reading a partition from one replica, and on connection failures or timeouts
+ * re-opens it on another active replica of the same shard, continuing from the last document returned.
+ * Attempts are spaced out with exponential backoff and jitter.
+ */
+abstract class FailoverIterator[T](
+    partitionIndex: Int,
+    shard: SolrShard,
+    initialReplica: SolrReplica,
+    maxFailovers: Int,
+    backoffBaseMs: Long,
+    backoffMaxMs: Long,
+    policy: ReplicaSelectionPolicy = RandomReplicaPolicy)
+  extends Iterator[T] with LazyLogging {
+
+  /**
+   * Opens an iterator over the partition's docs on the given replica, starting at the resume point if one is given.
+   */
+  protected def open(replica: SolrReplica, resumeFrom: Option[ResumePoint]): Iterator[T]
+
+  /**
+   * The point right after the last element returned by the iterator, or None if reading can't be resumed
+   * from there.
+   */
+  protected def resumePoint(iter: Iterator[T], docsReturned: Long, lastResume: Option[ResumePoint]): Option[ResumePoint]
+
+  protected def closeIterator(iter: Iterator[T]): Unit = {}
+
+  private[this] val failedReplicas = mutable.Set.empty[String]
+  private[this] var replica: SolrReplica = initialReplica
+  private[this] var current: Iterator[T] = _
+  private[this] var lastResume: Option[ResumePoint] = None
+  private[this] var docsReturned = 0L
+  private[this] var numDocs = 0L
+  private[this] var failovers = 0
+
+  def currentReplica: SolrReplica = replica
+
+  def currentIterator: Iterator[T] = current
+
+  def getNumDocs: Long = numDocs
+
+  def numFailovers: Int = failovers
+
+  override def hasNext: Boolean = withFailover {
+    ensureOpen()
+    current.hasNext
+  }
+
+  override def next(): T = {
+    val next = withFailover {
+      ensureOpen()
+      if (!current.hasNext) throw new NoSuchElementException(s"No more docs for partition $partitionIndex")
+      current.next()
+    }
+    docsReturned += 1
+    numDocs += 1
+    next
+  }
+
+  def close(): Unit = {
+    if (current != null) closeQuietly(current)
+  }
+
+  private def ensureOpen(): Unit = {
+    if (current == null) current = openAndSkip(replica, None)
+  }
+
+  private def openAndSkip(replica: SolrReplica, resumeFrom: Option[ResumePoint]): Iterator[T] = {
+    val iter = open(replica, resumeFrom)
+    val skip = resumeFrom.map(_.skipDocs).getOrElse(0L)
+    var skipped = 0L
+    while (skipped < skip && iter.hasNext) {
+      iter.next()
+      skipped += 1
+    }
+    iter
+  }
+
+  private def withFailover[R](op: => R): R = {
+    while (true) {
+      try {
+        return op
+      } catch {
+        case e: Exception if SolrSupport.isConnectionFailure(e) && failovers < maxFailovers =>
+          val resume = if (current == null || docsReturned == 0) lastResume else resumePoint(current, docsReturned, lastResume)
+          if (current != null && docsReturned > 0 && resume.isEmpty) {
+            logger.error(s"Failed reading partition $partitionIndex from ${replica.replicaUrl} after $numDocs docs " +
+              s"and the read cannot be resumed on another replica.")
+            throw e
+          }
+          failover(e, resume)
+      }
+    }
+    throw new IllegalStateException("unreachable")
+  }
+
+  private def failover(cause: Exception, resume: Option[ResumePoint]): Unit = {
+    var lastError: Exception = cause
+    while (failovers < maxFailovers) {
+      failovers += 1
+      failedReplicas += replica.replicaUrl
+      if (current != null) closeQuietly(current)
+      current = null
+
+      val failedUrl = replica.replicaUrl
+      replica = nextReplica()
+      val sleepMs = SolrSupport.backoffWithJitterMs(failovers, backoffBaseMs, backoffMaxMs)
+      logger.warn(s"Read of partition $partitionIndex from $failedUrl failed after $numDocs docs due to: $lastError; " +
+        s"failing over to ${replica.replicaUrl} in $sleepMs ms (attempt $failovers of $maxFailovers), resuming from $resume")
+      try {
+        Thread.sleep(sleepMs)
+      } catch {
+        case ie: InterruptedException =>
+          Thread.currentThread().interrupt()
+          throw lastError
+      }
+
+      try {
+        current = openAndSkip(replica, resume)
+        lastResume = resume
+        docsReturned = 0
+        return
+      } catch {
+        case e: Exception if SolrSupport.isConnectionFailure(e) => lastError = e
+      }
+    }
+    throw lastError
+  }
+
+  // prefer replicas that haven't failed yet for this partition; start over once they all have
+  private def nextReplica(): SolrReplica = {
+    var candidates = shard.replicas.filterNot(r => failedReplicas.contains(r.replicaUrl))
+    if (candidates.isEmpty) {
+      failedReplicas.clear()
+      candidates = shard.replicas.filterNot(_.replicaUrl == replica.replicaUrl)
+      if (candidates.isEmpty) return replica
+    }
+    val choice = policy.choose(candidates)
+    logger.info(s"Chose ${choice.replica.replicaUrl} to fail over partition $partitionIndex to: ${choice.reason}")
+    choice.replica
+  }
+
+  private def closeQuietly(iter: Iterator[T]): Unit = {
+    try {
+      closeIterator(iter)
+    } catch {
+      case e: Exception => logger.debug(s"Ignoring error closing iterator for partition $partitionIndex: $e")
+    }
+  }
+}
@@ -0,0 +1,29 @@
+package com.lucidworks.spark.rdd
+
+import com.lucidworks.spark.query.StreamingResultsIterator
+import org.apache.spark.SparkContext
+import org.apache.spark.util.LongAccumulator
+
+/**
+ * The prefetch stats of the partitions of a SolrRDD read with prefetch_pages, summed up in named accumulators.
+ * These are shown per stage and task in the Spark UI, and reported to SparkListeners with each task's info.
+ */
+class PrefetchMetrics(
+    val pagesFetched: LongAccumulator,
+    val consumerWaitMs: LongAccumulator,
+    val producerStallMs: LongAccumulator) extends Serializable {
+
+  def add(sri: StreamingResultsIterator): Unit = {
+    pagesFetched.add(sri.getPagesFetched)
+    consumerWaitMs.add(sri.getConsumerWaitMs)
+    producerStallMs.add(sri.getProducerStallMs)
+  }
+}
+
+object PrefetchMetrics {
+  def register(sc: SparkContext): PrefetchMetrics =
+    new PrefetchMetrics(
+      sc.longAccumulator("solr.prefetch.pagesFetched"),
+      sc.longAccumulator("solr.prefetch.consumerWaitMs"),
+      sc.longAccumulator("solr.prefetch.producerStallMs"))
+}
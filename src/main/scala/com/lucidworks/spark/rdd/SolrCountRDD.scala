@@ -0,0 +1,87 @@
+package com.lucidworks.spark.rdd
+
+import com.lucidworks.spark.{RandomReplicaPolicy, ReplicaSelectionPolicy, SolrPartitioner, SolrRDDPartition, SolrReplica}
+import com.lucidworks.spark.util.{PlanningSupport, SolrQuerySupport, SolrSupport}
+import com.typesafe.scalalogging.LazyLogging
+import org.apache.solr.client.solrj.SolrQuery
+import org.apache.solr.client.solrj.SolrRequest.METHOD
+import org.apache.spark.annotation.DeveloperApi
+import org.apache.spark.rdd.RDD
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.{Partition, SparkContext, TaskContext}
+
+/**
+ * For scans that don't need any columns: each partition asks one replica of a shard for the number of docs
+ * matching the query (rows=0) and returns that many empty rows, instead of reading the docs. Spark's own
+ * operators count those rows; count() on this RDD sums the shard counts on the driver without creating any.
+ */
+class SolrCountRDD(
+    @transient sc: SparkContext,
+    val zkHost: String,
+    val collection: String,
+    val query: SolrQuery,
+    val replicaPolicy: ReplicaSelectionPolicy = RandomReplicaPolicy)
+  extends RDD[InternalRow](sc, Seq.empty)
+  with LazyLogging {
+
+  @DeveloperApi
+  override def compute(split: Partition, context: TaskContext): Iterator[InternalRow] = {
+    split match {
+      case partition: SolrRDDPartition => SolrCountRDD.emptyRows(countPartition(partition, preferLocal = true))
+      case partition: AnyRef => throw new Exception("Unknown partition type '" + partition.getClass)
+    }
+  }
+
+  override def count(): Long = {
+    val counts = partitions.toSeq.map {
+      case partition: SolrRDDPartition => PlanningSupport.async(countPartition(partition, preferLocal = false))
+      case partition: AnyRef => throw new Exception("Unknown partition type '" + partition.getClass)
+    }
+    counts.map(PlanningSupport.await).sum
+  }
+
+  private def countPartition(partition: SolrRDDPartition, preferLocal: Boolean): Long = {
+    val countQuery = SolrQuerySupport.toCountQuery(partition.query)
+    countQuery.set("distrib", false)
+    val planned = SolrRDD.replicaForExecutor(partition, replicaPolicy, preferLocal)
+    val numFound = countOnAnyReplica(planned :: partition.solrShard.replicas.filterNot(_ == planned), countQuery)
+    logger.info(s"Counted $numFound docs in ${partition.solrShard.shardName} for partition ${partition.index}")
+    numFound
+  }
+
+  private def countOnAnyReplica(replicas: List[SolrReplica], countQuery: SolrQuery): Long = {
+    val replica = replicas.head
+    val solrClient = SolrSupport.getHttpSolrClient(replica.replicaUrl)
+    try {
+      solrClient.query(countQuery, METHOD.POST).getResults.getNumFound
+    } catch {
+      case e: Exception if replicas.tail.nonEmpty =>
+        logger.warn(s"Count request to ${replica.replicaUrl} failed, trying another replica: $e")
+        countOnAnyReplica(replicas.tail, countQuery)
+    } finally {
+      solrClient.close()
+    }
+  }
+
+  override protected def getPartitions: Array[Partition] =
+    SolrPartitioner.getShardPartitions(SolrSupport.buildShardList(zkHost, collection), query, replicaPolicy)
+
+  override def getPreferredLocations(split: Partition): Seq[String] = split match {
+    case partition: SolrRDDPartition => (partition.preferredReplica +: partition.solrShard.replicas).flatMap(_.hosts).distinct
+    case _ => Seq.empty
+  }
+}
+
+object SolrCountRDD {
+
+  // rows without any columns, which is all Spark needs when no columns are requested
+  def emptyRows(count: Long): Iterator[InternalRow] = new Iterator[InternalRow] {
+    private var remaining = count
+    override def hasNext: Boolean = remaining > 0
+    override def next(): InternalRow = {
+      if (remaining <= 0) throw new NoSuchElementException
+      remaining -= 1
+      InternalRow.empty
+    }
+  }
+}
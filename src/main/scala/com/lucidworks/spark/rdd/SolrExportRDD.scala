@@ -0,0 +1,94 @@
+package com.lucidworks.spark.rdd
+
+import com.lucidworks.spark.{RandomReplicaPolicy, ReplicaSelectionPolicy, SolrRDDPartition, SolrReplica}
+import com.lucidworks.spark.util.{ExportRowIterator, SolrSupport, TermsFilter}
+import com.lucidworks.spark.util.QueryConstants._
+import com.typesafe.scalalogging.LazyLogging
+import org.apache.spark.annotation.DeveloperApi
+import org.apache.spark.rdd.RDD
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.types.StructType
+import org.apache.spark.{InterruptibleIterator, Partition, TaskContext}
+
+/**
+ * Reads the same partitions as the underlying SolrRDD, but decodes /export responses directly into
+ * InternalRows using an [[ExportRowIterator]]. When the export is sorted on the uniqueKey, reads that
+ * fail part-way through continue on another replica after the last key returned.
+ */
+class SolrExportRDD(
+    @transient val solrRDD: SolrRDD,
+    val schema: StructType,
+    val uniqueKey: String,
+    val maxFailovers: Int = DEFAULT_MAX_FAILOVERS,
+    val failoverBackoffMs: Long = DEFAULT_FAILOVER_BACKOFF_MS,
+    val replicaPolicy: ReplicaSelectionPolicy = RandomReplicaPolicy,
+    val preferLocalReplica: Boolean = true,
+    val termsFilter: Option[TermsFilter] = None,
+    val maxRowsPerPartition: Option[Int] = None)
+  extends RDD[InternalRow](solrRDD.sparkContext, Seq.empty)
+  with LazyLogging {
+
+  @DeveloperApi
+  override def compute(split: Partition, context: TaskContext): Iterator[InternalRow] = {
+    split match {
+      case partition: SolrRDDPartition =>
+        val shardQuery = termsFilter.map(_.applyTo(partition.query)).getOrElse(partition.query)
+        shardQuery.setRequestHandler(QT_EXPORT)
+        SolrRDD.prepareExportQuery(shardQuery)
+        val resumeOrder = SolrRDD.exportResumeOrder(shardQuery, uniqueKey)
+        if (resumeOrder.isDefined && maxFailovers > 0) SolrRDD.ensureField(shardQuery, uniqueKey)
+        val replica = SolrRDD.replicaForExecutor(partition, replicaPolicy, preferLocalReplica)
+        logger.info(s"Using the shard url ${replica.replicaUrl} for exporting rows for split: ${split.index}")
+
+        val rowIterator = new FailoverIterator[InternalRow](
+            split.index,
+            partition.solrShard,
+            replica,
+            maxFailovers,
+            failoverBackoffMs,
+            DEFAULT_FAILOVER_BACKOFF_MAX_MS,
+            replicaPolicy) {
+
+          override protected def open(replica: SolrReplica, resumeFrom: Option[ResumePoint]): Iterator[InternalRow] = {
+            val query = shardQuery.getCopy
+            for (resume <- resumeFrom; after <- resume.afterValue; order <- resumeOrder)
+              query.addFilterQuery(SolrRDD.resumeAfterFilter(uniqueKey, after, order))
+            new ExportRowIterator(replica.replicaUrl, SolrSupport.getHttpSolrClient(replica.replicaUrl), query, schema,
+              if (resumeOrder.isDefined) uniqueKey else null)
+          }
+
+          override protected def resumePoint(
+              iter: Iterator[InternalRow],
+              docsReturned: Long,
+              lastResume: Option[ResumePoint]): Option[ResumePoint] = {
+            iter match {
+              case exportRows: ExportRowIterator if resumeOrder.isDefined =>
+                exportRows.getLastResumeValue.map(key => ResumePoint(None, 0L, Some(key)))
+              case _ => None
+            }
+          }
+
+          override protected def closeIterator(iter: Iterator[InternalRow]): Unit = {
+            iter match {
+              case exportRows: ExportRowIterator => exportRows.close()
+              case _ =>
+            }
+          }
+        }
+
+        context.addTaskCompletionListener { (context) =>
+          logger.info(f"Fetched ${rowIterator.getNumDocs} rows from shard ${rowIterator.currentReplica.replicaUrl} " +
+            s"for partition ${split.index}" +
+            (if (rowIterator.numFailovers > 0) s" after ${rowIterator.numFailovers} replica failovers" else ""))
+          rowIterator.close()
+        }
+        new InterruptibleIterator(context, SolrRDD.limit(rowIterator, maxRowsPerPartition))
+
+      case partition: AnyRef => throw new Exception("Unknown partition type '" + partition.getClass)
+    }
+  }
+
+  override protected def getPartitions: Array[Partition] = solrRDD.partitions
+
+  override protected def getPreferredLocations(split: Partition): Seq[String] = solrRDD.preferredLocations(split)
+}
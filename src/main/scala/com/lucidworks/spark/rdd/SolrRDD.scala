@@ -2,70 +2,101 @@ package com.lucidworks.spark.rdd
 
 import java.net.InetAddress
 
-import com.lucidworks.spark.query.{StreamingExpressionResultIterator, ResultsIterator, SolrStreamIterator, StreamingResultsIterator}
-import com.lucidworks.spark.util.{SolrQuerySupport, SolrSupport}
+import com.lucidworks.spark.query.{HedgedPageFetcher, StreamingExpressionResultIterator, ResultsIterator, SolrStreamIterator, StreamingResultsIterator}
+import com.lucidworks.spark.util.{ConfigurationConstants, PlanningSupport, SolrQuerySupport, SolrSupport, SplitPlanCacheConfig, TermsFilter}
 import com.lucidworks.spark._
 import com.lucidworks.spark.util.QueryConstants._
 import org.apache.solr.client.solrj.SolrQuery
+import org.apache.solr.client.solrj.io.stream.expr.{StreamExpression, StreamExpressionNamedParameter, StreamExpressionParser, StreamExpressionValue}
+import org.apache.solr.client.solrj.util.ClientUtils
 import org.apache.solr.common.SolrDocument
+import org.apache.solr.common.params.CommonParams
 import org.apache.spark._
 import org.apache.spark.annotation.DeveloperApi
 import org.apache.spark.rdd.RDD
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.types.StructType
 
 import com.typesafe.scalalogging.LazyLogging
 
 import scala.collection.JavaConverters
-import scala.util.Random
-
-class SolrRDD(
-    val zkHost: String,
-    val collection: String,
-    @transient sc: SparkContext,
-    val requestHandler: Option[String] = None,
-    query : Option[String] = Option(DEFAULT_QUERY),
+import scala.collection.JavaConverters._
+import scala.concurrent.Future
+import scala.util.{Random, Try}
+
+/**
+ * The settings of a [[SolrRDD]], which its builder methods copy with one of them changed.
+ */
+case class SolrRDDSpec(
+    requestHandler: Option[String] = None,
+    query: Option[String] = Option(DEFAULT_QUERY),
     fields: Option[Array[String]] = None,
     rows: Option[Int] = Option(DEFAULT_PAGE_SIZE),
     splitField: Option[String] = None,
     splitsPerShard: Option[Int] = Option(DEFAULT_SPLITS_PER_SHARD),
-    solrQuery: Option[SolrQuery] = None)
+    solrQuery: Option[SolrQuery] = None,
+    prefetchPages: Option[Int] = None,
+    maxQueuedDocs: Option[Int] = None,
+    maxFailovers: Option[Int] = None,
+    failoverBackoffMs: Option[Long] = None,
+    hedgePercentile: Option[Double] = None,
+    hedgeMaxPct: Option[Double] = None,
+    hedgeMinDelayMs: Option[Long] = None,
+    replicaPolicy: Option[ReplicaSelectionPolicy] = None,
+    preferLocalReplica: Option[Boolean] = None,
+    planningThreads: Option[Int] = None,
+    planningTimeoutMs: Option[Long] = None,
+    splitPlanCache: Option[Boolean] = None,
+    splitPlanCacheDir: Option[String] = None,
+    termsFilter: Option[TermsFilter] = None,
+    maxRowsPerPartition: Option[Int] = None,
+    streamWorkers: Option[Int] = None,
+    splitStrategy: Option[String] = None)
+
+/**
+ * @param metadata looked up from Solr on first use (at the latest when planning partitions), and shared by all
+ *                 the copies made by the builder methods
+ */
+class SolrRDD private[rdd] (
+    val zkHost: String,
+    val collection: String,
+    @transient sc: SparkContext,
+    val spec: SolrRDDSpec,
+    val metadata: SolrRDDMetadata)
   extends RDD[SolrDocument](sc, Seq.empty)
   with LazyLogging {
 
-  val uniqueKey = SolrQuerySupport.getUniqueKey(zkHost, collection.split(",")(0))
+  def this(
+      zkHost: String,
+      collection: String,
+      sc: SparkContext,
+      requestHandler: Option[String] = None,
+      query : Option[String] = Option(DEFAULT_QUERY),
+      fields: Option[Array[String]] = None,
+      rows: Option[Int] = Option(DEFAULT_PAGE_SIZE),
+      splitField: Option[String] = None,
+      splitsPerShard: Option[Int] = Option(DEFAULT_SPLITS_PER_SHARD),
+      solrQuery: Option[SolrQuery] = None) =
+    this(zkHost, collection, sc,
+      SolrRDDSpec(requestHandler, query, fields, rows, splitField, splitsPerShard, solrQuery),
+      new SolrRDDMetadata(zkHost, collection))
 
-  protected def copy(
-      requestHandler: Option[String] = requestHandler,
-      query: Option[String] = query,
-      fields: Option[Array[String]] = fields,
-      rows: Option[Int] = rows,
-      splitField: Option[String] = splitField,
-      splitsPerShard: Option[Int] = splitsPerShard,
-      solrQuery: Option[SolrQuery] = solrQuery): SolrRDD = {
-    new SolrRDD(zkHost, collection, sc, requestHandler, query, fields, rows, splitField, splitsPerShard, solrQuery)
-  }
+  def requestHandler: Option[String] = spec.requestHandler
+
+  def uniqueKey: String = metadata.uniqueKey
+
+  // created here, on the driver, as accumulators must be
+  val prefetchMetrics: Option[PrefetchMetrics] =
+    if (spec.prefetchPages.exists(_ > 0)) Some(PrefetchMetrics.register(sc)) else None
+
+  protected def copy(spec: SolrRDDSpec): SolrRDD = new SolrRDD(zkHost, collection, sc, spec, metadata)
 
   /*
   * Get an Iterator that uses the export handler in Solr
   */
   @throws(classOf[Exception])
   private def getExportHandlerBasedIterator(shardUrl : String, query : SolrQuery) = {
-
-    // Direct the queries to each shard, so we don't want distributed
-    query.set("distrib", false)
-
-    val sorts = query.getSorts
-    if (sorts == null || sorts.isEmpty) {
-      val fields = query.getFields
-      if (fields != null) {
-        val firstField = fields.split(",")(0)
-        query.addSort(firstField, SolrQuery.ORDER.asc)
-      } else {
-        query.addSort("id", SolrQuery.ORDER.asc)
-      }
-      logWarning(s"Added required sort clause: "+query.getSorts+
-        "; this is probably incorrect so you should provide your own sort criteria.")
-    }
-
+    SolrRDD.prepareExportQuery(query)
     new SolrStreamIterator(shardUrl, SolrSupport.getHttpSolrClient(shardUrl), query)
   }
 
@@ -75,40 +106,147 @@ class SolrRDD(
       case partition: CloudStreamPartition =>
         logInfo(s"Using StreamingExpressionResultIterator to process streaming expression for ${partition}")
         val resultsIterator = new StreamingExpressionResultIterator(partition.zkhost, partition.collection, partition.params)
-        JavaConverters.asScalaIteratorConverter(resultsIterator.iterator()).asScala
+        resultsIterator.setReplicaSelectionPolicy(selectionPolicy)
+        context.addTaskCompletionListener { (context) => resultsIterator.close() }
+        new InterruptibleIterator(context, JavaConverters.asScalaIteratorConverter(resultsIterator.iterator()).asScala)
       case partition: SolrRDDPartition =>
+        val shardQuery = spec.termsFilter.map(_.applyTo(partition.query)).getOrElse(partition.query)
+        val solrRequestHandler = spec.requestHandler.getOrElse(DEFAULT_REQUEST_HANDLER)
+        shardQuery.setRequestHandler(solrRequestHandler)
+        val isExport = solrRequestHandler == QT_EXPORT
+        // no need for pages larger than the rows this partition may return
+        for (limit <- maxRowsPerPartition if !isExport && Option(shardQuery.getRows).forall(_ > limit))
+          shardQuery.setRows(limit)
+        val exportResumeOrder = if (isExport) {
+          SolrRDD.prepareExportQuery(shardQuery)
+          SolrRDD.exportResumeOrder(shardQuery, uniqueKey)
+        } else None
+        if (exportResumeOrder.isDefined && spec.maxFailovers.getOrElse(DEFAULT_MAX_FAILOVERS) > 0) {
+          SolrRDD.ensureField(shardQuery, uniqueKey)
+        }
+        val replica = SolrRDD.replicaForExecutor(partition, selectionPolicy, spec.preferLocalReplica.getOrElse(true))
+        logger.info(s"Using the shard url ${replica.replicaUrl} for getting partition data for split: ${split.index}")
+        if (isExport) {
+          logger.info("Using export handler to fetch documents from Solr")
+        } else {
+          logger.info("Using cursorMarks to fetch documents from Solr")
+        }
+
+        val resultsIterator = new FailoverIterator[SolrDocument](
+            split.index,
+            partition.solrShard,
+            replica,
+            spec.maxFailovers.getOrElse(DEFAULT_MAX_FAILOVERS),
+            spec.failoverBackoffMs.getOrElse(DEFAULT_FAILOVER_BACKOFF_MS),
+            DEFAULT_FAILOVER_BACKOFF_MAX_MS,
+            selectionPolicy) {
+
+          private var lastKey: Option[String] = None
+
+          override protected def open(replica: SolrReplica, resumeFrom: Option[ResumePoint]): Iterator[SolrDocument] = {
+            val query = shardQuery.getCopy
+            val results: ResultsIterator =
+              if (isExport) {
+                for (resume <- resumeFrom; after <- resume.afterValue; order <- exportResumeOrder)
+                  query.addFilterQuery(SolrRDD.resumeAfterFilter(uniqueKey, after, order))
+                getExportHandlerBasedIterator(replica.replicaUrl, query)
+              } else {
+                val solrClient = SolrSupport.getHttpSolrClient(replica.replicaUrl)
+                val sri = new StreamingResultsIterator(
+                  solrClient,
+                  query,
+                  resumeFrom.flatMap(_.cursorMark).getOrElse(partition.cursorMark),
+                  spec.prefetchPages.getOrElse(0),
+                  spec.maxQueuedDocs.getOrElse(-1))
+                if (spec.hedgePercentile.isDefined && partition.solrShard.replicas.size > 1) {
+                  val hedgeUrls = partition.solrShard.replicas.map(_.replicaUrl).filter(_ != replica.replicaUrl)
+                  sri.setHedgedPageFetcher(new HedgedPageFetcher(solrClient, replica.replicaUrl,
+                    JavaConverters.seqAsJavaListConverter(hedgeUrls).asJava,
+                    spec.hedgePercentile.get,
+                    spec.hedgeMaxPct.getOrElse(DEFAULT_HEDGE_MAX_PCT) / 100.0,
+                    spec.hedgeMinDelayMs.getOrElse(DEFAULT_HEDGE_MIN_DELAY_MS)))
+                }
+                sri
+              }
+            new ResultsIteratorAdapter(results)
+          }
+
+          override def next(): SolrDocument = {
+            val doc = super.next()
+            if (exportResumeOrder.isDefined) lastKey = Option(doc.getFirstValue(uniqueKey)).map(String.valueOf)
+            doc
+          }
 
-        //TODO: Add backup mechanism to StreamingResultsIterator by being able to query any replica in case the main url goes down
-        val url = partition.preferredReplica.replicaUrl
-        val query = partition.query
-        logger.info("Using the shard url " + url + " for getting partition data for split: "+ split.index)
-        val solrRequestHandler = requestHandler.getOrElse(DEFAULT_REQUEST_HANDLER)
-        query.setRequestHandler(solrRequestHandler)
-        val resultsIterator: ResultsIterator =
-          if (solrRequestHandler == "/export") {
-            logger.info("Using export handler to fetch documents from Solr")
-            getExportHandlerBasedIterator(url, query)
-          } else {
-            logger.info("Using cursorMarks to fetch documents from Solr")
-            new StreamingResultsIterator(
-              SolrSupport.getHttpSolrClient(url),
-              partition.query,
-              partition.cursorMark)
+          override protected def resumePoint(
+              iter: Iterator[SolrDocument],
+              docsReturned: Long,
+              lastResume: Option[ResumePoint]): Option[ResumePoint] = {
+            if (isExport) {
+              if (exportResumeOrder.isDefined && lastKey.isDefined) Some(ResumePoint(None, 0L, lastKey)) else None
+            } else {
+              SolrRDD.underlying(iter) match {
+                case sri: StreamingResultsIterator => Some(SolrRDD.resumePoint(sri))
+                case _ => None
+              }
+            }
           }
+
+          override protected def closeIterator(iter: Iterator[SolrDocument]): Unit = {
+            SolrRDD.underlying(iter) match {
+              case sri: StreamingResultsIterator =>
+                sri.close()
+                // once per replica read from, so the pages read before failing over are counted too
+                if (sri.isPrefetching) prefetchMetrics.foreach(_.add(sri))
+              case results: ResultsIterator => results.close()
+              case _ =>
+            }
+          }
+        }
+
         context.addTaskCompletionListener { (context) =>
-          logger.info(f"Fetched ${resultsIterator.getNumDocs} rows from shard $url for partition ${split.index}")
+          val url = resultsIterator.currentReplica.replicaUrl
+          logger.info(f"Fetched ${resultsIterator.getNumDocs} rows from shard $url for partition ${split.index}" +
+            (if (resultsIterator.numFailovers > 0) s" after ${resultsIterator.numFailovers} replica failovers" else ""))
+          // logged here rather than when the prefetching ends, so it's logged once even if the task stops early
+          SolrRDD.underlying(resultsIterator.currentIterator) match {
+            case sri: StreamingResultsIterator if sri.isPrefetching => logger.info(sri.getPrefetchStats)
+            case _ =>
+          }
+          resultsIterator.close()
         }
-        JavaConverters.asScalaIteratorConverter(resultsIterator.iterator()).asScala
+        // stop reading (and let the completion listener close the connection) once the task is killed or
+        // the partition has returned as many rows as it may
+        new InterruptibleIterator(context, SolrRDD.limit(resultsIterator, spec.maxRowsPerPartition))
 
       case partition: AnyRef => throw new Exception("Unknown partition type '" + partition.getClass)
     }
   }
 
   override protected def getPartitions: Array[Partition] = {
-    val query = if (solrQuery.isEmpty) buildQuery else solrQuery.get
-    val rq = requestHandler.getOrElse(DEFAULT_REQUEST_HANDLER)
+    // resolve on the driver, so tasks get the metadata along with the RDD
+    metadata.resolve()
+    val query = if (spec.solrQuery.isEmpty) buildQuery else spec.solrQuery.get
+    val rq = spec.requestHandler.getOrElse(DEFAULT_REQUEST_HANDLER)
     if (rq == QT_STREAM || rq == QT_SQL) {
       logInfo(s"Using SolrCloud stream partitioning scheme to process request to ${rq} for collection ${collection}")
+      val workers = spec.streamWorkers.getOrElse(1)
+      if (rq == QT_STREAM && workers > 1) {
+        val expr = query.get(ConfigurationConstants.SOLR_STREAMING_EXPR)
+        SolrRDD.partitionedStreamExpr(expr, uniqueKey) match {
+          case Some(partitionedExpr) =>
+            logInfo(s"Reading streaming expression ${partitionedExpr} with ${workers} workers")
+            return Array.tabulate[Partition](workers) { worker =>
+              val params = query.getCopy
+              params.set(ConfigurationConstants.SOLR_STREAMING_EXPR, partitionedExpr)
+              params.set(StreamingExpressionResultIterator.NUM_WORKERS, workers)
+              params.set(StreamingExpressionResultIterator.WORKER_ID, worker)
+              new CloudStreamPartition(worker, zkHost, collection, params)
+            }
+          case None =>
+            logWarning(s"Reading streaming expression ${expr} with a single worker, as it can't be partitioned: " +
+              "only search() streams with partitionKeys (and decorators of them) can")
+        }
+      }
       return Array(new CloudStreamPartition(0, zkHost, collection, query))
     }
 
@@ -118,60 +256,131 @@ class SolrRDD(
       logInfo(s"rq = $rq, setting query defaults for query = $query uniqueKey = $uniqueKey")
       SolrQuerySupport.setQueryDefaultsForShards(query, uniqueKey)
     }
-    val partitions = if (splitField.isDefined)
-      SolrPartitioner.getSplitPartitions(shards, query, splitField.get, splitsPerShard.get) else SolrPartitioner.getShardPartitions(shards, query)
+    // setting a cache directory implies caching plans
+    val planCache =
+      if (spec.splitPlanCache.getOrElse(spec.splitPlanCacheDir.isDefined))
+        Some(SplitPlanCacheConfig(collection, splitPlanCacheDir, sparkContext.hadoopConfiguration))
+      else None
+    val partitions = if (spec.splitField.isDefined)
+      SolrPartitioner.getSplitPartitions(shards, query, spec.splitField.get, spec.splitsPerShard.get, selectionPolicy,
+        spec.planningThreads.getOrElse(DEFAULT_PLANNING_THREADS),
+        spec.planningTimeoutMs.getOrElse(DEFAULT_PLANNING_TIMEOUT_MS),
+        planCache, spec.splitStrategy.getOrElse(DEFAULT_SPLIT_STRATEGY))
+    else
+      SolrPartitioner.getShardPartitions(shards, query, selectionPolicy)
     logger.debug(s"Found ${partitions.length} partitions: ${partitions.mkString(",")}")
-    partitions
+    spec.termsFilter.map(_.partitionsPerBatch(partitions)).getOrElse(partitions)
   }
 
   override def getPreferredLocations(split: Partition): Seq[String] = {
-    val urls: Seq[String] = Seq.empty
     split match {
       case partition: CloudStreamPartition => Seq.empty
-      case partition: SolrRDDPartition => Array(partition.preferredReplica.replicaHostName)
-      case partition: AnyRef => logger.warn("Unknown partition type '" + partition.getClass + "'")
+      case partition: SolrRDDPartition =>
+        // a task can read locally on any host with a replica of the shard, see SolrRDD.replicaForExecutor
+        (partition.preferredReplica +: partition.solrShard.replicas).flatMap(_.hosts).distinct
+      case partition: AnyRef =>
+        logger.warn("Unknown partition type '" + partition.getClass + "'")
+        Seq.empty
     }
-    urls
   }
 
-  private def getAllAddresses(hostName: String): Array[InetAddress] = {
-    try {
-      return InetAddress.getAllByName(hostName)
-    } catch {
-      case e: Exception => logger.info("Exception while resolving IP address for host name '" + hostName + "' with exception " + e)
-    }
-    Array.empty[InetAddress]
-  }
+  def query(q: String): SolrRDD = copy(spec.copy(query = Option(q)))
+
+  def query(solrQuery: SolrQuery): SolrRDD = copy(spec.copy(solrQuery = Option(solrQuery)))
+
+  def select(fl: String): SolrRDD = copy(spec.copy(fields = Some(fl.split(","))))
+
+  def select(fl: Array[String]): SolrRDD = copy(spec.copy(fields = Some(fl)))
+
+  def rows(rows: Int): SolrRDD = copy(spec.copy(rows = Some(rows)))
+
+  def doSplits(): SolrRDD = copy(spec.copy(splitField = Some(DEFAULT_SPLIT_FIELD)))
+
+  def splitField(field: String): SolrRDD = copy(spec.copy(splitField = Some(field)))
+
+  def splitsPerShard(splitsPerShard: Int): SolrRDD = copy(spec.copy(splitsPerShard = Some(splitsPerShard)))
+
+  def useExportHandler: SolrRDD = copy(spec.copy(requestHandler = Some(QT_EXPORT)))
+
+  def requestHandler(requestHandler: String): SolrRDD = copy(spec.copy(requestHandler = Some(requestHandler)))
+
+  def prefetchPages(pages: Int): SolrRDD = copy(spec.copy(prefetchPages = Some(pages)))
+
+  def maxQueuedDocs(maxDocs: Int): SolrRDD = copy(spec.copy(maxQueuedDocs = Some(maxDocs)))
+
+  def maxFailovers(failovers: Int): SolrRDD = copy(spec.copy(maxFailovers = Some(failovers)))
+
+  def failoverBackoffMs(backoffMs: Long): SolrRDD = copy(spec.copy(failoverBackoffMs = Some(backoffMs)))
+
+  def hedgePercentile(percentile: Double): SolrRDD = copy(spec.copy(hedgePercentile = Some(percentile)))
+
+  def hedgeMaxPct(maxPct: Double): SolrRDD = copy(spec.copy(hedgeMaxPct = Some(maxPct)))
 
-  def query(q: String): SolrRDD = copy(query = Option(q))
+  def hedgeMinDelayMs(minDelayMs: Long): SolrRDD = copy(spec.copy(hedgeMinDelayMs = Some(minDelayMs)))
 
-  def query(solrQuery: SolrQuery): SolrRDD = copy(solrQuery = Option(solrQuery))
+  def replicaPolicy(policy: ReplicaSelectionPolicy): SolrRDD = copy(spec.copy(replicaPolicy = Some(policy)))
 
-  def select(fl: String): SolrRDD = copy(fields = Some(fl.split(",")))
+  def preferLocalReplica(preferLocal: Boolean): SolrRDD = copy(spec.copy(preferLocalReplica = Some(preferLocal)))
 
-  def select(fl: Array[String]): SolrRDD = copy(fields = Some(fl))
+  def planningThreads(threads: Int): SolrRDD = copy(spec.copy(planningThreads = Some(threads)))
 
-  def rows(rows: Int): SolrRDD = copy(rows = Some(rows))
+  def planningTimeoutMs(timeoutMs: Long): SolrRDD = copy(spec.copy(planningTimeoutMs = Some(timeoutMs)))
 
-  def doSplits(): SolrRDD = copy(splitField = Some(DEFAULT_SPLIT_FIELD))
+  def splitPlanCache(enabled: Boolean): SolrRDD = copy(spec.copy(splitPlanCache = Some(enabled)))
 
-  def splitField(field: String): SolrRDD = copy(splitField = Some(field))
+  def splitPlanCacheDir(dir: String): SolrRDD = copy(spec.copy(splitPlanCacheDir = Some(dir)))
 
-  def splitsPerShard(splitsPerShard: Int): SolrRDD = copy(splitsPerShard = Some(splitsPerShard))
+  /**
+   * How shards are split: by ranges of the split field balanced with count queries ("field"), or by the buckets
+   * of a hash of the split field, which takes no queries to plan ("hash").
+   */
+  def splitStrategy(strategy: String): SolrRDD = copy(spec.copy(splitStrategy = Some(strategy)))
 
-  def useExportHandler: SolrRDD = copy(requestHandler = Some(QT_EXPORT))
+  def termsFilter(filter: TermsFilter): SolrRDD = copy(spec.copy(termsFilter = Some(filter)))
 
-  def requestHandler(requestHandler: String): SolrRDD = copy(requestHandler = Some(requestHandler))
+  /**
+   * Reads at most this many docs per partition, e.g. for `df.limit(n)` or `df.show()`.
+   */
+  def maxRowsPerPartition(maxRows: Int): SolrRDD = copy(spec.copy(maxRowsPerPartition = Some(maxRows)))
 
-  def solrCount: BigInt = SolrQuerySupport.getNumDocsFromSolr(collection, zkHost, solrQuery)
+  def streamWorkers(workers: Int): SolrRDD = copy(spec.copy(streamWorkers = Some(workers)))
+
+  def selectionPolicy: ReplicaSelectionPolicy = spec.replicaPolicy.getOrElse(RandomReplicaPolicy)
+
+  /**
+   * Reads the results of the /export handler directly into Spark's internal row format for the given schema,
+   * bypassing SolrDocument.
+   */
+  def exportRows(schema: StructType): RDD[InternalRow] =
+    new SolrExportRDD(requestHandler(QT_EXPORT), schema, uniqueKey,
+      spec.maxFailovers.getOrElse(DEFAULT_MAX_FAILOVERS), spec.failoverBackoffMs.getOrElse(DEFAULT_FAILOVER_BACKOFF_MS),
+      selectionPolicy, spec.preferLocalReplica.getOrElse(true), spec.termsFilter, spec.maxRowsPerPartition)
+
+  def solrCount: BigInt =
+    SolrQuerySupport.getNumDocsFromSolr(collection, zkHost, Some(spec.solrQuery.getOrElse(buildQuery)))
+
+  /**
+   * Asks Solr for the number of matching docs instead of reading them, unless the request handler can't count
+   * (streaming expressions / SQL), the results are being sampled, they're filtered by a terms filter, or each
+   * partition is capped at maxRowsPerPartition docs.
+   */
+  override def count(): Long = {
+    val rq = spec.requestHandler.getOrElse(DEFAULT_REQUEST_HANDLER)
+    val query = spec.solrQuery.getOrElse(buildQuery)
+    if (rq == QT_STREAM || rq == QT_SQL || query.get(ConfigurationConstants.SAMPLE_PCT) != null ||
+        spec.termsFilter.isDefined || spec.maxRowsPerPartition.isDefined)
+      super.count()
+    else
+      SolrQuerySupport.getNumDocsFromSolr(collection, zkHost, Some(query))
+  }
 
   def buildQuery: SolrQuery = {
-    var solrQuery : SolrQuery = SolrQuerySupport.toQuery(query.get)
+    var solrQuery : SolrQuery = SolrQuerySupport.toQuery(spec.query.get)
     if (!solrQuery.getFields.eq(null) && solrQuery.getFields.length > 0) {
-      solrQuery = solrQuery.setFields(fields.getOrElse(Array.empty[String]):_*)
+      solrQuery = solrQuery.setFields(spec.fields.getOrElse(Array.empty[String]):_*)
     }
     if (!solrQuery.getRows.eq(null)) {
-      solrQuery = solrQuery.setRows(rows.get)
+      solrQuery = solrQuery.setRows(spec.rows.get)
     }
 
     solrQuery.set("collection", collection)
@@ -180,14 +389,195 @@ class SolrRDD(
 
 }
 
-object SolrRDD {
+object SolrRDD extends LazyLogging {
+
+  // decorators that transform each tuple on its own, so each worker can run them on its share
+  val PASS_THROUGH_STREAMS: Set[String] = Set("select", "having")
+
+  // decorators that combine the tuples of a group, which are all read by the same worker if the group is the
+  // partition key
+  val GROUPING_STREAMS: Set[String] = Set("unique", "rollup", "reduce")
+
+  // decorators that join streams on fields, which each worker can do on its share if all of the streams are
+  // partitioned by those fields
+  val JOIN_STREAMS: Set[String] = Set("innerJoin", "leftOuterJoin", "hashJoin", "outerHashJoin", "intersect", "complement")
+
+  /**
+   * The streaming expression for one of several workers that each read the docs hashing to them on the
+   * partitionKeys of the search() streams, like the workers of a parallel() stream; None if the expression
+   * can't be split that way. A bare search() is partitioned by the uniqueKey if it has no partitionKeys.
+   *
+   * Only search() streams and decorators whose results don't depend on seeing all docs are split: select and
+   * having, and grouping / joining decorators that group or join on the partitionKeys of their searches.
+   * Anything else (e.g. top, sort, facet, stats or parallel itself) is read by a single worker.
+   */
+  def partitionedStreamExpr(expr: String, uniqueKey: String): Option[String] = {
+    val parsed = Option(expr).flatMap(e => Try(StreamExpressionParser.parse(e)).toOption.flatMap(Option(_))).orNull
+    if (parsed == null) return None
+    if (parsed.getFunctionName == "search" && namedParameter(parsed, "partitionKeys").isEmpty)
+      parsed.addParameter(new StreamExpressionNamedParameter("partitionKeys", uniqueKey))
+
+    partitionKeys(parsed).map(_ => parsed.toString)
+  }
+
+  // the fields the docs of the stream are partitioned by, if every tuple of the stream is the result of docs
+  // partitioned the same way
+  private def partitionKeys(expr: StreamExpression): Option[Set[String]] = {
+    val name = expr.getFunctionName
+    lazy val streams = expr.getParameters.asScala.collect {
+      case e: StreamExpression if isSplittableStream(e.getFunctionName) => e
+    }
+    if (name == "search") {
+      namedParameter(expr, "partitionKeys").flatMap(p => fieldList(p))
+    } else if (PASS_THROUGH_STREAMS.contains(name)) {
+      if (streams.size == 1) partitionKeys(streams.head) else None
+    } else if (GROUPING_STREAMS.contains(name)) {
+      val over = namedParameter(expr, "over").flatMap(fieldList)
+      if (streams.size == 1) partitionKeys(streams.head).filter(keys => over.contains(keys)) else None
+    } else if (JOIN_STREAMS.contains(name)) {
+      val on = namedParameter(expr, "on").flatMap(fieldList)
+      val keys = streams.map(partitionKeys)
+      if (streams.size == 2 && keys.forall(k => k.isDefined && k == on)) on else None
+    } else {
+      None
+    }
+  }
+
+  private def isSplittableStream(name: String): Boolean =
+    name == "search" || PASS_THROUGH_STREAMS.contains(name) || GROUPING_STREAMS.contains(name) || JOIN_STREAMS.contains(name)
+
+  // the fields of a parameter such as over="a,b"; None if it maps fields of different streams (on="a=b")
+  private def fieldList(param: StreamExpressionNamedParameter): Option[Set[String]] = param.getParameter match {
+    case v: StreamExpressionValue if !v.getValue.contains("=") =>
+      Some(v.getValue.split(",").map(_.trim).filter(_.nonEmpty).toSet)
+    case _ => None
+  }
+
+  private def namedParameter(expr: StreamExpression, name: String): Option[StreamExpressionNamedParameter] =
+    expr.getParameters.asScala.collectFirst { case p: StreamExpressionNamedParameter if p.getName == name => p }
+
+  /**
+   * Direct the query to a single core and make sure it has the sort the /export handler requires.
+   */
+  def prepareExportQuery(query: SolrQuery): Unit = {
+    query.set("distrib", false)
+
+    val sorts = query.getSorts
+    if ((sorts == null || sorts.isEmpty) && query.get(CommonParams.SORT) == null) {
+      val fields = query.getFields
+      if (fields != null) {
+        val firstField = fields.split(",")(0)
+        query.addSort(firstField, SolrQuery.ORDER.asc)
+      } else {
+        query.addSort("id", SolrQuery.ORDER.asc)
+      }
+      logger.warn(s"Added required sort clause: "+query.getSorts+
+        "; this is probably incorrect so you should provide your own sort criteria.")
+    }
+  }
+
+  /**
+   * If an /export query is sorted on the uniqueKey first, a failed export can be resumed after the last
+   * key read; returns the direction of that sort.
+   */
+  def exportResumeOrder(query: SolrQuery, uniqueKey: String): Option[SolrQuery.ORDER] = {
+    val sort = query.get(CommonParams.SORT)
+    if (sort == null) return None
+    val firstClause = sort.split(",")(0).trim.split("\\s+")
+    if (firstClause.length == 2 && firstClause(0) == uniqueKey)
+      Some(if (firstClause(1).equalsIgnoreCase("desc")) SolrQuery.ORDER.desc else SolrQuery.ORDER.asc)
+    else
+      None
+  }
+
+  def resumeAfterFilter(field: String, value: String, order: SolrQuery.ORDER): String = {
+    val escaped = ClientUtils.escapeQueryChars(value)
+    if (order == SolrQuery.ORDER.desc) s"$field:[* TO $escaped}" else s"$field:{$escaped TO *]"
+  }
+
+  // adds the field to an explicit field list, if there is one
+  def ensureField(query: SolrQuery, field: String): Unit = {
+    val fl = query.getFields
+    if (fl != null && !fl.split(",").map(_.trim).contains(field)) query.setFields(fl + "," + field)
+  }
+
+  // at most maxRows of a partition's docs
+  private[rdd] def limit[T](iter: Iterator[T], maxRows: Option[Int]): Iterator[T] =
+    maxRows.map(iter.take).getOrElse(iter)
+
+  /**
+   * Where to resume reading from on another replica: the cursorMark of the page the last doc came from and the
+   * number of docs read from it, or the number of docs read so far when paging with start/rows.
+   */
+  private[rdd] def resumePoint(sri: StreamingResultsIterator): ResumePoint = {
+    val cursorMark = sri.getCursorMarkOfCurrentPage
+    if (cursorMark != null)
+      ResumePoint(Some(cursorMark), sri.getNumDocsReadFromCurrentPage, None)
+    else
+      ResumePoint(None, sri.getNumDocs, None)
+  }
+
+  // the ResultsIterator behind a partition iterator, if any
+  private[rdd] def underlying(iter: Iterator[SolrDocument]): AnyRef = iter match {
+    case adapter: ResultsIteratorAdapter => adapter.results
+    case other => other
+  }
+
+  /**
+   * The replica to read a partition from on this executor: a replica on the executor's own host, among the
+   * ones the policy prefers, if there is one; otherwise the replica chosen when planning the partition. Policies
+   * that use latencies are applied again here, with the latencies this executor has seen, as the driver's are
+   * only those of the executors in local mode.
+   */
+  def replicaForExecutor(
+      partition: SolrRDDPartition,
+      policy: ReplicaSelectionPolicy,
+      preferLocal: Boolean,
+      localHosts: => Set[String] = executorHosts): SolrReplica = {
+    val planned = partition.preferredReplica
+    if (!preferLocal && !policy.usesLatency) return planned
+
+    val hosts = if (preferLocal) localHosts else Set.empty[String]
+    if (!policy.usesLatency && (hosts.isEmpty || isLocal(planned, hosts))) return planned
+
+    val (preferred, reason) = policy.prefer(partition.solrShard.replicas)
+    val local = preferred.filter(isLocal(_, hosts))
+    if (local.contains(planned) || (local.isEmpty && preferred.contains(planned))) {
+      planned
+    } else if (local.nonEmpty) {
+      val replica = local(Random.nextInt(local.size))
+      logger.info(s"Reading ${partition.solrShard.shardName} from local replica ${replica.replicaUrl} instead of ${planned.replicaUrl}")
+      replica
+    } else {
+      val replica = preferred(Random.nextInt(preferred.size))
+      logger.info(s"Reading ${partition.solrShard.shardName} from ${replica.replicaUrl} instead of ${planned.replicaUrl} ($reason)")
+      replica
+    }
+  }
+
+  def isLocal(replica: SolrReplica, hosts: Set[String]): Boolean = replica.hosts.exists(hosts.contains)
+
+  // host names and addresses this executor is known by
+  private lazy val executorHosts: Set[String] = {
+    val hosts = Set.newBuilder[String]
+    for (env <- Option(SparkEnv.get)) {
+      val host = env.blockManager.blockManagerId.host
+      hosts += host
+      Try(InetAddress.getAllByName(host)).foreach(_.foreach(addr => hosts += addr.getHostAddress))
+    }
+    Try(InetAddress.getLocalHost).foreach { addr =>
+      hosts += addr.getHostName
+      hosts += addr.getHostAddress
+    }
+    hosts.result()
+  }
 
   def randomReplicaLocation(solrShard: SolrShard): String = {
     randomReplica(solrShard).replicaUrl
   }
 
   def randomReplica(solrShard: SolrShard): SolrReplica = {
-    solrShard.replicas(Random.nextInt(solrShard.replicas.size))
+    RandomReplicaPolicy.choose(solrShard).replica
   }
 
   def apply(zkHost: String, collection: String, sc: SparkContext) =
@@ -195,3 +585,37 @@ object SolrRDD {
 
 }
 
+/**
+ * Collection metadata a [[SolrRDD]] needs from Solr. It is looked up once, when first needed, rather than
+ * whenever an RDD is created, so the copies made by SolrRDD's builder methods don't make any requests.
+ */
+class SolrRDDMetadata(val zkHost: String, val collection: String) extends Serializable {
+
+  private var _uniqueKey: String = _
+  @transient private var pending: Future[String] = _
+
+  /**
+   * Starts looking the metadata up in the background, so it's fetched while the caller fetches the schema.
+   */
+  def prefetch(): Unit = synchronized {
+    if (_uniqueKey == null && pending == null)
+      pending = PlanningSupport.async(lookupUniqueKey())
+  }
+
+  def uniqueKey: String = synchronized {
+    if (_uniqueKey == null)
+      _uniqueKey = if (pending != null) PlanningSupport.await(pending) else lookupUniqueKey()
+    _uniqueKey
+  }
+
+  private def lookupUniqueKey(): String = SolrQuerySupport.getUniqueKey(zkHost, collection.split(",")(0))
+
+  def resolve(): Unit = uniqueKey
+
+  def isResolved: Boolean = synchronized { _uniqueKey != null }
+}
+
+private[rdd] class ResultsIteratorAdapter(val results: ResultsIterator) extends Iterator[SolrDocument] {
+  override def hasNext: Boolean = results.hasNext
+  override def next(): SolrDocument = results.next()
+}
@@ -21,6 +21,33 @@ object ConfigurationConstants {
   val USE_CURSOR_MARKS: String = "use_cursor_marks"
   val SOLR_STREAMING_EXPR: String = "expr"
   val SOLR_SQL_STMT: String = "sql"
+  val PREFETCH_PAGES: String = "prefetch_pages"
+  val PREFETCH_MAX_DOCS: String = "prefetch_max_docs"
+  val MAX_FAILOVERS: String = "max_failovers"
+  val FAILOVER_BACKOFF_MS: String = "failover_backoff_ms"
+  val HEDGE_PERCENTILE: String = "hedge_percentile"
+  val HEDGE_MAX_PCT: String = "hedge_max_pct"
+  val HEDGE_MIN_DELAY_MS: String = "hedge_min_delay_ms"
+  val REPLICA_POLICY: String = "replica_policy"
+  val REPLICA_AFFINITY: String = "replica_affinity"
+  val REPLICA_MAX_LATENCY_MS: String = "replica_max_latency_ms"
+  val PREFER_LOCAL_REPLICA: String = "prefer_local_replica"
+  val PLANNING_THREADS: String = "planning_threads"
+  val PLANNING_TIMEOUT_MS: String = "planning_timeout_ms"
+  val SPLIT_PLAN_CACHE: String = "split_plan_cache"
+  val SPLIT_PLAN_CACHE_DIR: String = "split_plan_cache_dir"
+  val SPLIT_STRATEGY: String = "split_strategy"
+  val METADATA_CACHE_TTL_MS: String = "metadata_cache_ttl_ms"
+  val COUNT_PUSH_DOWN: String = "count_push_down"
+  val AGGREGATION_PUSH_DOWN: String = "aggregation_push_down"
+  val SEMI_JOIN_MAX_KEYS: String = "semi_join_max_keys"
+  val TERMS_FILTER_BATCH_SIZE: String = "terms_filter_batch_size"
+  val TERMS_FILTER_BROADCAST_THRESHOLD: String = "terms_filter_broadcast_threshold"
+  val INCLUDE_SCORE: String = "include_score"
+  val TOP_K_MAX_ROWS: String = "top_k_max_rows"
+  val STREAM_WORKERS: String = "stream_workers"
+  val SQL_FACET_MAX_CARDINALITY: String = "sql_facet_max_cardinality"
+  val RANGE_FACET_MAX_BUCKETS: String = "range_facet_max_buckets"
 
   // Index params
   val SOFT_AUTO_COMMIT_SECS: String = "soft_commit_secs"
@@ -30,6 +57,8 @@ object ConfigurationConstants {
 
   val SAMPLE_SEED: String = "sample_seed"
   val SAMPLE_PCT: String = "sample_pct"
+  val SAMPLE_METHOD: String = "sample_method"
+  val SAMPLE_HASH_FIELD: String = "sample_hash_field"
 
   // Time series partitioning params
 
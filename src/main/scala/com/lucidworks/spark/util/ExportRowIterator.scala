@@ -0,0 +1,211 @@
+package com.lucidworks.spark.util
+
+import java.io.InputStream
+import java.util
+
+import com.fasterxml.jackson.core.{JsonFactory, JsonParser, JsonToken}
+import com.lucidworks.spark.query.SolrStreamIterator
+import com.typesafe.scalalogging.LazyLogging
+import org.apache.solr.client.solrj.SolrQuery
+import org.apache.solr.client.solrj.impl.{HttpSolrClient, InputStreamResponseParser}
+import org.apache.solr.client.solrj.request.QueryRequest
+import org.apache.solr.client.solrj.SolrRequest.METHOD
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.expressions.{MutableRow, SpecificMutableRow}
+import org.apache.spark.sql.types._
+import org.apache.spark.unsafe.types.UTF8String
+
+/**
+ * Reads the response of a single-core /export request and decodes each exported document straight into
+ * Spark's internal row format for the given schema, without building intermediate Tuple / SolrDocument
+ * objects. The response is consumed token-by-token as it arrives from Solr.
+ *
+ * Field names are resolved to column ordinals once per distinct name in the stream; Jackson canonicalizes
+ * field names, so later occurrences are found with an identity lookup.
+ *
+ * The returned row is reused between calls to next.
+ *
+ * If a resumeField is given, its value in the last returned doc is tracked (whether or not it is one of the
+ * schema's columns) so that a failed export can be continued from that point.
+ */
+class ExportRowIterator(
+    shardUrl: String,
+    solrClient: HttpSolrClient,
+    solrQuery: SolrQuery,
+    schema: StructType,
+    resumeField: String = null)
+  extends Iterator[InternalRow] with LazyLogging {
+
+  private[this] val numFields = schema.fields.length
+  private[this] val dataTypes: Array[DataType] = schema.fields.map(_.dataType)
+  private[this] val writers: Array[SolrRowConverter.FieldWriter] = dataTypes.map(SolrRowConverter.makeWriter)
+  private[this] val columnIndex: Map[String, Int] = schema.fieldNames.zipWithIndex.toMap
+  private[this] val resolvedNames = new util.IdentityHashMap[String, Integer]()
+  private[this] val mutableRow: MutableRow = new SpecificMutableRow(dataTypes)
+
+  private[this] var inputStream: InputStream = _
+  private[this] var parser: JsonParser = _
+  private[this] var hasCurrent = false
+  private[this] var done = false
+  private[this] var numDocs = 0L
+  private[this] var openedAt = 0L
+  private[this] var currentResumeValue: String = _
+  private[this] var lastResumeValue: String = _
+
+  def getNumDocs: Long = numDocs
+
+  def getLastResumeValue: Option[String] = Option(lastResumeValue)
+
+  override def hasNext: Boolean = {
+    if (hasCurrent) return true
+    if (done) return false
+
+    if (parser == null) open()
+
+    if (parser.nextToken() == JsonToken.START_OBJECT) {
+      readDoc()
+      hasCurrent = true
+    } else {
+      // end of the docs array
+      logger.info(s"Took ${System.currentTimeMillis() - openedAt} (ms) to read $numDocs docs from $shardUrl")
+      close()
+    }
+    hasCurrent
+  }
+
+  override def next(): InternalRow = {
+    if (!hasNext) throw new NoSuchElementException(s"No more docs available from $shardUrl")
+    hasCurrent = false
+    numDocs += 1
+    lastResumeValue = currentResumeValue
+    mutableRow
+  }
+
+  def close(): Unit = {
+    if (done) return
+    done = true
+    hasCurrent = false
+    try {
+      if (parser != null) parser.close()
+      if (inputStream != null) inputStream.close()
+    } catch {
+      case e: Exception => logger.warn(s"Failed to close export stream from $shardUrl due to: $e")
+    } finally {
+      try {
+        solrClient.close()
+      } catch {
+        case e: Exception => logger.warn(s"Failed to close Solr client for $shardUrl due to: $e")
+      }
+    }
+  }
+
+  private def open(): Unit = {
+    openedAt = System.currentTimeMillis()
+    SolrStreamIterator.mergeFilterQueries(solrQuery)
+    solrQuery.setRows(null)
+
+    val request = new QueryRequest(solrQuery, METHOD.POST)
+    request.setPath(Option(solrQuery.getRequestHandler).getOrElse(QueryConstants.QT_EXPORT))
+    request.setResponseParser(new InputStreamResponseParser("json"))
+    val response = solrClient.request(request)
+    inputStream = response.get("stream").asInstanceOf[InputStream]
+    parser = ExportRowIterator.jsonFactory.createParser(inputStream)
+
+    // advance to the start of response.docs
+    var token = parser.nextToken()
+    while (token != null) {
+      if (token == JsonToken.FIELD_NAME && parser.getCurrentName == "docs") {
+        if (parser.nextToken() != JsonToken.START_ARRAY)
+          throw new IllegalStateException(s"Expected an array of docs in /export response from $shardUrl")
+        return
+      }
+      token = parser.nextToken()
+    }
+    throw new IllegalStateException(s"No docs found in /export response from $shardUrl for query: $solrQuery")
+  }
+
+  private def resolve(name: String): Int = {
+    val idx = resolvedNames.get(name)
+    if (idx != null) return idx.intValue()
+
+    val resolved = columnIndex.getOrElse(name, -1)
+    resolvedNames.put(name, resolved)
+    resolved
+  }
+
+  private def readDoc(): Unit = {
+    var i = 0
+    while (i < numFields) {
+      mutableRow.setNullAt(i)
+      i += 1
+    }
+    currentResumeValue = null
+
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      val name = parser.getCurrentName
+      val token = parser.nextToken()
+      val ordinal = resolve(name)
+      if (resumeField != null && name == resumeField && token.isScalarValue) {
+        currentResumeValue = parser.getText
+      }
+      if (ordinal >= 0) {
+        readValue(token, ordinal)
+      } else if (name == "EXCEPTION") {
+        throw new IllegalStateException(s"/export request to $shardUrl failed: ${parser.getText}")
+      } else {
+        parser.skipChildren()
+      }
+    }
+  }
+
+  private def readValue(token: JsonToken, ordinal: Int): Unit = {
+    val dataType = dataTypes(ordinal)
+    token match {
+      case JsonToken.VALUE_NULL =>
+        mutableRow.setNullAt(ordinal)
+      case JsonToken.VALUE_NUMBER_INT if dataType == LongType =>
+        mutableRow.setLong(ordinal, parser.getLongValue)
+      case JsonToken.VALUE_NUMBER_INT | JsonToken.VALUE_NUMBER_FLOAT if dataType == DoubleType =>
+        mutableRow.setDouble(ordinal, parser.getDoubleValue)
+      case JsonToken.VALUE_TRUE | JsonToken.VALUE_FALSE if dataType == BooleanType =>
+        mutableRow.setBoolean(ordinal, token == JsonToken.VALUE_TRUE)
+      case JsonToken.VALUE_STRING if dataType == StringType =>
+        mutableRow.update(ordinal, UTF8String.fromString(parser.getText))
+      case JsonToken.VALUE_STRING if dataType == TimestampType =>
+        mutableRow.setLong(ordinal, SolrRowConverter.parseISODateTimeMillis(parser.getText) * 1000L)
+      case JsonToken.START_ARRAY =>
+        val values = new util.ArrayList[AnyRef]()
+        var t = parser.nextToken()
+        while (t != JsonToken.END_ARRAY) {
+          values.add(scalarValue(t))
+          t = parser.nextToken()
+        }
+        if (dataType.isInstanceOf[ArrayType]) {
+          writers(ordinal)(mutableRow, ordinal, values)
+        } else if (!values.isEmpty && values.get(0) != null) {
+          // flattened multi-valued field, keep the first value
+          writers(ordinal)(mutableRow, ordinal, values.get(0))
+        }
+      case _ =>
+        val value = scalarValue(token)
+        if (value != null) writers(ordinal)(mutableRow, ordinal, value)
+    }
+  }
+
+  private def scalarValue(token: JsonToken): AnyRef = token match {
+    case JsonToken.VALUE_STRING => parser.getText
+    case JsonToken.VALUE_NUMBER_INT => java.lang.Long.valueOf(parser.getLongValue)
+    case JsonToken.VALUE_NUMBER_FLOAT => java.lang.Double.valueOf(parser.getDoubleValue)
+    case JsonToken.VALUE_TRUE => java.lang.Boolean.TRUE
+    case JsonToken.VALUE_FALSE => java.lang.Boolean.FALSE
+    case JsonToken.VALUE_NULL => null
+    case other =>
+      parser.skipChildren()
+      throw new IllegalStateException(s"Unexpected token $other in /export response from $shardUrl")
+  }
+}
+
+object ExportRowIterator {
+  // thread-safe once configured; INTERN_FIELD_NAMES is on by default
+  private val jsonFactory = new JsonFactory()
+}
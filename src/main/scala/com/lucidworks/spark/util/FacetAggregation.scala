@@ -0,0 +1,185 @@
+package com.lucidworks.spark.util
+
+import org.apache.solr.client.solrj.util.ClientUtils
+import org.apache.solr.common.util.NamedList
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.expressions.GenericInternalRow
+import org.apache.spark.sql.types._
+import org.apache.spark.unsafe.types.UTF8String
+import org.joda.time.format.ISODateTimeFormat
+import org.json4s.JsonAST._
+import org.json4s.jackson.JsonMethods._
+
+import scala.collection.JavaConverters._
+
+/**
+ * A GROUP BY column, bucketed with a terms facet on a single-valued field, or, for a date field truncated to a
+ * date math unit (e.g. HOUR), with a range facet from the min to the max value of the field (bounds, in ms).
+ */
+case class FacetGroup(
+    field: String,
+    dataType: DataType,
+    rangeUnit: Option[String] = None,
+    bounds: Option[(Long, Long)] = None)
+
+/**
+ * An aggregate computed for each bucket: count (docs in the bucket), count_field (docs in the bucket with a value
+ * for the field), or one of the JSON Facet API's sum, avg, min, max, unique and hll functions.
+ */
+case class FacetAggregate(function: String, field: Option[String], dataType: DataType) {
+
+  // like Spark, sum / avg / min / max over no values are null rather than 0
+  def nullWithoutValues: Boolean = FacetAggregation.NULL_WITHOUT_VALUES.contains(function)
+}
+
+/**
+ * A GROUP BY aggregation answered by a single JSON Facet API request: the group by columns become nested terms
+ * or range facets (including the bucket of docs without a value), and the aggregates become facet functions computed
+ * in the innermost buckets.
+ *
+ * @param output for each output column, either the group (Left) or the aggregate (Right) it comes from
+ */
+case class FacetAggregation(groups: Seq[FacetGroup], aggregates: Seq[FacetAggregate], output: Seq[Either[Int, Int]]) {
+
+  def facetJson: String = {
+    val stats: List[JField] = aggregates.zipWithIndex.toList.flatMap { case (agg, i) =>
+      val function: List[JField] = agg.function match {
+        case "count" | "count_field" => Nil
+        case f => List(s"a$i" -> JString(s"$f(${agg.field.get})"))
+      }
+      val valueCount: List[JField] =
+        if (agg.function == "count_field" || agg.nullWithoutValues)
+          List(s"n$i" -> JObject("type" -> JString("query"),
+            "q" -> JString(ClientUtils.escapeQueryChars(agg.field.get) + ":[* TO *]")))
+        else Nil
+      function ++ valueCount
+    }
+
+    val facets = groups.zipWithIndex.foldRight(stats) { case ((group, level), inner) =>
+      def withInner(facet: List[JField]): JObject = JObject(if (inner.isEmpty) facet else facet :+ ("facet" -> JObject(inner)))
+      group.rangeUnit match {
+        case Some(unit) =>
+          val (min, max) = group.bounds.getOrElse((0L, 0L))
+          val range = List[JField](
+            "type" -> JString("range"),
+            "field" -> JString(group.field),
+            "start" -> JString(s"${FacetAggregation.toISO(min)}/$unit"),
+            "end" -> JString(s"${FacetAggregation.toISO(max)}/$unit+1$unit"),
+            "gap" -> JString(s"+1$unit"))
+          // range facets have no missing bucket
+          val missing = List[JField](
+            "type" -> JString("query"),
+            "q" -> JString(s"*:* -${ClientUtils.escapeQueryChars(group.field)}:[* TO *]"))
+          List(s"g$level" -> withInner(range), s"g${level}m" -> withInner(missing))
+        case None =>
+          val terms = List[JField](
+            "type" -> JString("terms"),
+            "field" -> JString(group.field),
+            "limit" -> JInt(-1),
+            "missing" -> JBool(true))
+          List(s"g$level" -> withInner(terms))
+      }
+    }
+    compact(render(JObject(facets)))
+  }
+
+  def rangeFields: Seq[String] = groups.filter(_.rangeUnit.isDefined).map(_.field)
+
+  /**
+   * An upper bound of the number of range facet buckets Solr has to compute, over all the combinations of the
+   * buckets of the range groups (empty buckets included), given their bounds.
+   */
+  def numRangeBuckets: Long = {
+    groups.filter(_.rangeUnit.isDefined).map { group =>
+      val (min, max) = group.bounds.getOrElse((0L, 0L))
+      (max - min) / FacetAggregation.MIN_UNIT_MILLIS(group.rangeUnit.get) + 2
+    }.foldLeft(1L)((total, buckets) => if (total > Long.MaxValue / buckets) Long.MaxValue else total * buckets)
+  }
+
+  /**
+   * This aggregation with the bounds of the range facets on the given fields.
+   */
+  def withBounds(bounds: Map[String, (Long, Long)]): FacetAggregation =
+    copy(groups = groups.map(g => if (g.rangeUnit.isDefined) g.copy(bounds = bounds.get(g.field)) else g))
+
+  /**
+   * The result rows from the "facets" section of the response.
+   */
+  def toRows(facets: NamedList[AnyRef]): Seq[InternalRow] = {
+    if (groups.isEmpty) Seq(toRow(Nil, facets)) else bucketRows(facets, 0, Nil)
+  }
+
+  private def bucketRows(node: NamedList[AnyRef], level: Int, keys: List[Any]): Seq[InternalRow] = {
+    val facet = node.get(s"g$level").asInstanceOf[NamedList[AnyRef]]
+    if (facet == null) return Nil
+
+    // range facets return empty buckets too, which aren't groups
+    val buckets = Option(facet.get("buckets")).map(_.asInstanceOf[java.util.List[NamedList[AnyRef]]].asScala)
+      .getOrElse(Nil).filter(count(_) > 0).map(bucket => (bucket.get("val"), bucket))
+    val missingBucket = if (groups(level).rangeUnit.isDefined) node.get(s"g${level}m") else facet.get("missing")
+    val missing = Option(missingBucket).map(_.asInstanceOf[NamedList[AnyRef]])
+      .filter(count(_) > 0).map(bucket => (null, bucket))
+
+    (buckets ++ missing).flatMap { case (value, bucket) =>
+      val bucketKeys = keys :+ FacetAggregation.toCatalyst(value, groups(level).dataType)
+      if (level + 1 < groups.size) bucketRows(bucket, level + 1, bucketKeys) else Seq(toRow(bucketKeys, bucket))
+    }
+  }
+
+  private def toRow(keys: List[Any], bucket: NamedList[AnyRef]): InternalRow = {
+    val values = output.map {
+      case Left(group) => keys(group)
+      case Right(i) =>
+        val agg = aggregates(i)
+        agg.function match {
+          case "count" => FacetAggregation.toCatalyst(count(bucket), agg.dataType)
+          case "count_field" => FacetAggregation.toCatalyst(count(bucket, s"n$i"), agg.dataType)
+          case _ if agg.nullWithoutValues && count(bucket, s"n$i") == 0L => null
+          case _ =>
+            // unique / hll of nothing are 0
+            FacetAggregation.toCatalyst(Option(bucket.get(s"a$i")).getOrElse(java.lang.Long.valueOf(0L)), agg.dataType)
+        }
+    }
+    new GenericInternalRow(values.toArray)
+  }
+
+  private def count(bucket: NamedList[AnyRef]): Long =
+    Option(bucket.get("count")).map(_.asInstanceOf[Number].longValue).getOrElse(0L)
+
+  private def count(bucket: NamedList[AnyRef], queryFacet: String): Long =
+    Option(bucket.get(queryFacet)).map(facet => count(facet.asInstanceOf[NamedList[AnyRef]])).getOrElse(0L)
+}
+
+object FacetAggregation {
+
+  val NULL_WITHOUT_VALUES = Set("sum", "avg", "min", "max")
+
+  // types of the Solr fields that can be grouped by and aggregated over
+  val GROUP_TYPES: Set[DataType] =
+    Set(StringType, LongType, IntegerType, DoubleType, FloatType, BooleanType, TimestampType)
+  val NUMERIC_TYPES: Set[DataType] = Set(LongType, IntegerType, DoubleType, FloatType)
+
+  // the shortest length of each date math unit, in ms
+  val MIN_UNIT_MILLIS: Map[String, Long] = Map(
+    "YEAR" -> 365L * 24 * 3600 * 1000,
+    "MONTH" -> 28L * 24 * 3600 * 1000,
+    "DAY" -> 23L * 3600 * 1000,
+    "HOUR" -> 3600L * 1000,
+    "MINUTE" -> 60L * 1000,
+    "SECOND" -> 1000L)
+
+  def toISO(millis: Long): String = ISODateTimeFormat.dateTime().withZoneUTC().print(millis)
+
+  def toCatalyst(value: Any, dataType: DataType): Any = (value, dataType) match {
+    case (null, _) => null
+    case (v: Number, LongType) => v.longValue
+    case (v: Number, IntegerType) => v.intValue
+    case (v: Number, DoubleType) => v.doubleValue
+    case (v: Number, FloatType) => v.floatValue
+    case (v: java.util.Date, TimestampType) => v.getTime * 1000L
+    case (v: java.lang.Boolean, BooleanType) => v.booleanValue
+    case (v: String, BooleanType) => v.toBoolean
+    case (v, StringType) => UTF8String.fromString(v.toString)
+    case (v, t) => throw new IllegalArgumentException(s"Can't convert facet value $v (${v.getClass}) to $t")
+  }
+}
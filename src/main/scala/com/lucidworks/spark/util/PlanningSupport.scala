@@ -0,0 +1,66 @@
+package com.lucidworks.spark.util
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent._
+
+import com.lucidworks.spark.util.QueryConstants._
+import com.typesafe.scalalogging.LazyLogging
+
+import scala.collection.JavaConverters._
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, ExecutionContext, Future}
+
+/**
+ * Thread pools for the requests the driver makes to Solr while planning a read (schema / metadata lookups
+ * and shard split calculations), so they don't have to run one after another.
+ */
+object PlanningSupport extends LazyLogging {
+
+  private lazy val metadataContext =
+    ExecutionContext.fromExecutorService(newPool(DEFAULT_PLANNING_THREADS, "solr-metadata"))
+
+  def newPool(threads: Int, name: String): ExecutorService = {
+    val counter = new AtomicInteger(0)
+    Executors.newFixedThreadPool(math.max(1, threads), new ThreadFactory {
+      override def newThread(r: Runnable): Thread = {
+        val t = new Thread(r, s"$name-${counter.incrementAndGet()}")
+        t.setDaemon(true)
+        t
+      }
+    })
+  }
+
+  /**
+   * Runs a metadata request in the background on a small shared pool.
+   */
+  def async[T](op: => T): Future[T] = Future(op)(metadataContext)
+
+  def await[T](future: Future[T]): T = Await.result(future, Duration.Inf)
+
+  /**
+   * Runs the task for each item on a pool of at most `threads` threads. Tasks that have not finished
+   * within the time budget are cancelled and have a None result; a task that fails fails the whole call.
+   */
+  def runWithBudget[A, B](items: Seq[A], threads: Int, timeoutMs: Long, name: String)(task: A => B): Seq[Option[B]] = {
+    if (items.isEmpty) return Seq.empty
+
+    val pool = newPool(math.min(threads, items.size), name)
+    try {
+      val callables = items.map(item => new Callable[B] { override def call(): B = task(item) })
+      val futures = pool.invokeAll(callables.asJava, timeoutMs, TimeUnit.MILLISECONDS).asScala
+      futures.map { future =>
+        if (future.isCancelled) {
+          None
+        } else {
+          try {
+            Some(future.get())
+          } catch {
+            case e: ExecutionException => throw e.getCause
+          }
+        }
+      }
+    } finally {
+      pool.shutdownNow()
+    }
+  }
+}
@@ -7,6 +7,19 @@ object QueryConstants {
   val QT_EXPORT = "/export"
   val QT_SELECT = "/select"
 
+  // Split strategies
+  val SPLIT_STRATEGY_FIELD = "field"
+  val SPLIT_STRATEGY_HASH = "hash"
+
+  // Sampling methods
+  val SAMPLE_METHOD_SORT = "sort"
+  val SAMPLE_METHOD_HASH = "hash"
+
+  // Solr SQL aggregation modes
+  val AGGREGATION_MODE = "aggregationMode"
+  val AGGREGATION_MODE_FACET = "facet"
+  val AGGREGATION_MODE_MAP_REDUCE = "map_reduce"
+
   val DEFAULT_REQUIRED_FIELD: String = "id"
   val DEFAULT_PAGE_SIZE: Int = 1000
   val DEFAULT_QUERY: String = "*:*"
@@ -17,4 +30,24 @@ object QueryConstants {
   val DEFAULT_TIME_PERIOD: String = "1DAYS"
   val DEFAULT_TIMEZONE_ID: String = "UTC"
   val DEFAULT_DATETIME_PATTERN: String = "yyyy_MM_dd"
+  val DEFAULT_MAX_FAILOVERS: Int = 2
+  val DEFAULT_FAILOVER_BACKOFF_MS: Long = 500L
+  val DEFAULT_FAILOVER_BACKOFF_MAX_MS: Long = 10000L
+  val DEFAULT_HEDGE_MAX_PCT: Double = 5.0
+  val DEFAULT_HEDGE_MIN_DELAY_MS: Long = 50L
+  val DEFAULT_PLANNING_THREADS: Int = 8
+  val DEFAULT_PLANNING_TIMEOUT_MS: Long = 300000L
+  val DEFAULT_SPLIT_PLAN_CACHE_SIZE: Long = 10000L
+  val DEFAULT_METADATA_CACHE_TTL_MS: Long = 300000L
+  val DEFAULT_METADATA_CACHE_SIZE: Long = 1000L
+  val DEFAULT_RANGE_FACET_MAX_BUCKETS: Long = 10000L
+  val DEFAULT_SEMI_JOIN_MAX_KEYS: Int = 100000
+  val DEFAULT_TERMS_FILTER_BATCH_SIZE: Int = 10000
+  val DEFAULT_TERMS_FILTER_BROADCAST_THRESHOLD: Int = 1000
+  val LARGE_TERMS_FILTER_SIZE: Int = 1000
+  val DEFAULT_TOP_K_MAX_ROWS: Int = 10000
+  val DEFAULT_SQL_FACET_MAX_CARDINALITY: Long = 100000L
+  val DEFAULT_SAMPLE_PCT: Float = 0.1f
+  val DEFAULT_SAMPLE_METHOD: String = SAMPLE_METHOD_SORT
+  val DEFAULT_SPLIT_STRATEGY: String = SPLIT_STRATEGY_FIELD
 }
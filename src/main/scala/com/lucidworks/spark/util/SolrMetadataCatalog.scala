@@ -0,0 +1,138 @@
+package com.lucidworks.spark.util
+
+import java.util.concurrent.{Callable, ConcurrentHashMap, ExecutionException}
+
+import com.google.common.cache.{Cache, CacheBuilder}
+import com.google.common.util.concurrent.UncheckedExecutionException
+import com.lucidworks.spark.util.QueryConstants._
+import com.typesafe.scalalogging.LazyLogging
+import org.apache.solr.common.cloud.ZkConfigManager
+import org.apache.zookeeper.{WatchedEvent, Watcher}
+
+import scala.collection.JavaConverters._
+
+/**
+ * Caches the schema metadata of collections (uniqueKey, field definitions and field type classes) for the
+ * driver, so that building many relations / RDDs over the same collections doesn't keep hitting the schema APIs.
+ * Also caches estimates of the cardinality of fields, which are cheap but not free to get.
+ *
+ * Entries of a collection are dropped when its schema changes in ZooKeeper (a watch is set on the schema of its
+ * config set), and in any case once they are older than the TTL given at lookup.
+ */
+object SolrMetadataCatalog extends LazyLogging {
+
+  val SCHEMA_FILES: Seq[String] = Seq("managed-schema", "schema.xml")
+
+  private case class CatalogKey(zkHost: String, collection: String, kind: String, fields: Set[String] = Set.empty)
+
+  private case class Entry(value: Any, loadedAtMs: Long)
+
+  private val entries: Cache[CatalogKey, Entry] =
+    CacheBuilder.newBuilder().maximumSize(DEFAULT_METADATA_CACHE_SIZE).build[CatalogKey, Entry]()
+
+  // collections that have a schema watch set
+  private val watched = ConcurrentHashMap.newKeySet[(String, String)]()
+
+  def uniqueKey(zkHost: String, collection: String, ttlMs: Long = DEFAULT_METADATA_CACHE_TTL_MS): String = {
+    try {
+      lookup(CatalogKey(zkHost, collection, "uniqueKey"), ttlMs) {
+        SolrQuerySupport.fetchUniqueKey(zkHost, collection).getOrElse(
+          throw new IllegalStateException(s"No uniqueKey found for $collection"))
+      }
+    } catch {
+      case e: Exception =>
+        // not cached, so it's looked up again next time
+        logger.debug(s"Using default uniqueKey ${DEFAULT_REQUIRED_FIELD} for $collection: $e")
+        DEFAULT_REQUIRED_FIELD
+    }
+  }
+
+  /**
+   * The definitions of the given fields, or of all fields in the index if none are given.
+   */
+  def fieldTypes(
+      zkHost: String,
+      collection: String,
+      fields: Set[String],
+      ttlMs: Long = DEFAULT_METADATA_CACHE_TTL_MS): Map[String, SolrFieldMeta] = {
+    val fieldSet = Option(fields).getOrElse(Set.empty[String])
+    lookup(CatalogKey(zkHost, collection, "fields", fieldSet), ttlMs) {
+      val solrUrl = SolrSupport.getSolrBaseUrl(zkHost) + collection + "/"
+      SolrQuerySupport.getFieldTypes(fieldSet, solrUrl, PlanningSupport.async(fieldTypeClasses(zkHost, collection, ttlMs)))
+    }
+  }
+
+  def fieldTypeClasses(
+      zkHost: String,
+      collection: String,
+      ttlMs: Long = DEFAULT_METADATA_CACHE_TTL_MS): Map[String, String] = {
+    lookup(CatalogKey(zkHost, collection, "fieldTypeClasses"), ttlMs) {
+      SolrQuerySupport.getFieldTypeToClassMap(SolrSupport.getSolrBaseUrl(zkHost) + collection + "/")
+    }
+  }
+
+  def fieldCardinalities(
+      zkHost: String,
+      collection: String,
+      fields: Set[String],
+      ttlMs: Long = DEFAULT_METADATA_CACHE_TTL_MS): Map[String, Long] = {
+    lookup(CatalogKey(zkHost, collection, "cardinalities", fields), ttlMs) {
+      SolrQuerySupport.getFieldCardinalities(zkHost, collection, fields)
+    }
+  }
+
+  def invalidate(zkHost: String, collection: String): Unit = {
+    watched.remove((zkHost, collection))
+    entries.asMap().keySet().asScala.filter(k => k.zkHost == zkHost && k.collection == collection).foreach(entries.invalidate)
+  }
+
+  private[util] def isCached(zkHost: String, collection: String): Boolean =
+    entries.asMap().keySet().asScala.exists(k => k.zkHost == zkHost && k.collection == collection)
+
+  def invalidateAll(): Unit = {
+    watched.clear()
+    entries.invalidateAll()
+  }
+
+  private def lookup[T](key: CatalogKey, ttlMs: Long)(load: => T): T = {
+    if (ttlMs <= 0) return load
+
+    val cached = entries.getIfPresent(key)
+    if (cached != null && System.currentTimeMillis() - cached.loadedAtMs > ttlMs) {
+      entries.asMap().remove(key, cached)
+    }
+    // set the watch before loading, so a schema change during the load isn't missed
+    watchSchema(key.zkHost, key.collection)
+    try {
+      // concurrent lookups of the same key wait for a single load
+      entries.get(key, new Callable[Entry] {
+        override def call(): Entry = Entry(load, System.currentTimeMillis())
+      }).value.asInstanceOf[T]
+    } catch {
+      case e: ExecutionException => throw e.getCause
+      case e: UncheckedExecutionException => throw e.getCause
+    }
+  }
+
+  private def watchSchema(zkHost: String, collection: String): Unit = {
+    if (!watched.add((zkHost, collection))) return
+
+    try {
+      val zkStateReader = SolrSupport.getCachedCloudClient(zkHost).getZkStateReader
+      val configName = zkStateReader.readConfigName(collection)
+      val watcher = new Watcher {
+        // watches only fire once; the next lookup sets a new one
+        override def process(event: WatchedEvent): Unit = {
+          logger.info(s"Schema of $collection changed (${event.getType} ${event.getPath}), dropping its cached metadata")
+          invalidate(zkHost, collection)
+        }
+      }
+      SCHEMA_FILES.foreach(file =>
+        zkStateReader.getZkClient.exists(s"${ZkConfigManager.CONFIGS_ZKNODE}/$configName/$file", watcher, true))
+    } catch {
+      case e: Exception =>
+        watched.remove((zkHost, collection))
+        logger.warn(s"Can't watch the schema of $collection, its cached metadata will only expire by TTL: $e")
+    }
+  }
+}
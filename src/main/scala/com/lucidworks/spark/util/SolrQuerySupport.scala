@@ -12,7 +12,7 @@ import org.apache.solr.client.solrj._
 import org.apache.solr.client.solrj.impl.{InputStreamResponseParser, StreamingBinaryResponseParser}
 import org.apache.solr.client.solrj.request.QueryRequest
 import org.apache.solr.client.solrj.response.QueryResponse
-import org.apache.solr.common.params.SolrParams
+import org.apache.solr.common.params.{CommonParams, CursorMarkParams, SolrParams}
 import org.apache.solr.common.util.NamedList
 import org.apache.solr.common.{SolrDocument, SolrException}
 import org.apache.spark.SparkContext
@@ -26,6 +26,7 @@ import scala.collection.JavaConversions._
 import scala.collection.immutable.HashMap
 import scala.collection.mutable
 import scala.collection.mutable.ListBuffer
+import scala.concurrent.Future
 import scala.util.control.Breaks._
 
 // Should we support all other additional Solr field tags?
@@ -76,7 +77,10 @@ object SolrQuerySupport extends LazyLogging {
     "solr.BinaryField" -> DataTypes.BinaryType
   )
 
-  def getUniqueKey(zkHost: String, collection: String): String = {
+  def getUniqueKey(zkHost: String, collection: String): String =
+    SolrMetadataCatalog.uniqueKey(zkHost, collection)
+
+  def fetchUniqueKey(zkHost: String, collection: String): Option[String] = {
     try {
       val solrBaseUrl = SolrSupport.getSolrBaseUrl(zkHost)
       // Hit Solr Schema API to get base information
@@ -85,7 +89,7 @@ object SolrQuerySupport extends LazyLogging {
         val schemaMeta = SolrJsonSupport.getJson(SolrJsonSupport.getHttpClient, schemaUrl, 2)
         if (schemaMeta.has("schema") && (schemaMeta \ "schema").has("uniqueKey")) {
           schemaMeta \ "schema" \ "uniqueKey" match {
-            case v: JString => return v.s
+            case v: JString => return Some(v.s)
             case v: Any => throw new Exception("Unexpected type '" + v.getClass + "' other than JString for uniqueKey '" + v + "'");
           }
         }
@@ -97,7 +101,7 @@ object SolrQuerySupport extends LazyLogging {
     } catch {
       case e: Exception => logger.warn("Can't get uniqueKey for " + collection + " due to: " + e)
     }
-    QueryConstants.DEFAULT_REQUIRED_FIELD
+    None
   }
 
   def toQuery(queryString: String): SolrQuery = {
@@ -261,11 +265,18 @@ object SolrQuerySupport extends LazyLogging {
   def getFieldTypes(fields: Set[String], solrBaseUrl: String, collection: String): Map[String, SolrFieldMeta] =
     getFieldTypes(fields, solrBaseUrl + collection + "/")
 
-  def getFieldTypes(fields: Set[String], solrUrl: String): Map[String, SolrFieldMeta] = {
+  def getFieldTypes(fields: Set[String], solrUrl: String): Map[String, SolrFieldMeta] =
+    // the field types don't depend on the fields, so fetch them while the field definitions are being looked up
+    getFieldTypes(fields, solrUrl, PlanningSupport.async(getFieldTypeToClassMap(solrUrl)))
+
+  def getFieldTypes(
+      fields: Set[String],
+      solrUrl: String,
+      fieldTypeToClassMapFuture: Future[Map[String, String]]): Map[String, SolrFieldMeta] = {
     val fieldTypeMap = new mutable.HashMap[String, SolrFieldMeta]()
-    val fieldTypeToClassMap = getFieldTypeToClassMap(solrUrl)
     val fieldNames = if (fields == null || fields.isEmpty) getFieldsFromLuke(solrUrl) else fields
     val fieldDefinitionsFromSchema = getFieldDefinitionsFromSchema(solrUrl, fieldNames)
+    val fieldTypeToClassMap = PlanningSupport.await(fieldTypeToClassMapFuture)
     fieldDefinitionsFromSchema.foreach {
       case(name, payloadRef) =>
       payloadRef match {
@@ -475,14 +486,57 @@ object SolrQuerySupport extends LazyLogging {
 
   def getNumDocsFromSolr(collection: String, zkHost: String, query: Option[SolrQuery]): Long = {
     val solrQuery = if (query.isDefined) query.get else new SolrQuery().setQuery("*:*")
-    val cloneQuery = solrQuery.getCopy
+    val cloneQuery = toCountQuery(solrQuery)
     cloneQuery.set("distrib", "true")
-    cloneQuery.setRows(0)
     val cloudClient = SolrSupport.getCachedCloudClient(zkHost)
-    val response = cloudClient.query(collection, solrQuery)
+    // POST, as pushed down filters can make for long queries
+    val response = cloudClient.query(collection, cloneQuery, METHOD.POST)
     response.getResults.getNumFound
   }
 
+  /**
+   * Estimates of the number of distinct values of the given fields in the collection, from the HyperLogLog
+   * cardinality of the stats component; fields Solr can't estimate are left out.
+   */
+  def getFieldCardinalities(zkHost: String, collection: String, fields: Set[String]): Map[String, Long] = {
+    if (fields.isEmpty) return Map.empty
+    val statsQuery = new SolrQuery("*:*")
+    statsQuery.setRows(0)
+    statsQuery.set("stats", true)
+    fields.foreach(field => statsQuery.add("stats.field", s"{!cardinality=true}$field"))
+    val response = SolrSupport.getCachedCloudClient(zkHost).query(collection, statsQuery, METHOD.POST)
+    val stats = Option(response.getFieldStatsInfo).map(_.toMap).getOrElse(Map.empty)
+    fields.flatMap(field => stats.get(field).flatMap(s => Option(s.getCardinality)).map(c => field -> c.longValue)).toMap
+  }
+
+  /**
+   * The aggregationMode for a Solr SQL statement grouping on fields with the given estimated cardinalities: facet
+   * mode is fastest for few groups, but builds every group in memory on each shard, so map_reduce (which streams
+   * sorted docs from /export) is used once the number of groups may exceed maxFacetCardinality.
+   */
+  def aggregationMode(cardinalities: Seq[Long], maxFacetCardinality: Long): String = {
+    // the number of groups is at most the product of the cardinalities of the fields
+    val groups = cardinalities.foldLeft(BigInt(1))(_ * _)
+    if (cardinalities.nonEmpty && groups > maxFacetCardinality) QueryConstants.AGGREGATION_MODE_MAP_REDUCE
+    else QueryConstants.AGGREGATION_MODE_FACET
+  }
+
+  /**
+   * A copy of the query that only asks for the number of matching docs.
+   */
+  def toCountQuery(solrQuery: SolrQuery): SolrQuery = {
+    val countQuery = solrQuery.getCopy
+    countQuery.setRows(0)
+    countQuery.remove(CommonParams.SORT)
+    countQuery.remove(CursorMarkParams.CURSOR_MARK_PARAM)
+    countQuery.remove(CommonParams.FL)
+    // the streaming handlers can't count
+    val qt = countQuery.getRequestHandler
+    if (qt == QueryConstants.QT_EXPORT || qt == QueryConstants.QT_STREAM || qt == QueryConstants.QT_SQL)
+      countQuery.setRequestHandler(QueryConstants.QT_SELECT)
+    countQuery
+  }
+
   /*
     Return solr field types along with their actual class types.
     E.g. { "binary": "solr.BinaryField",
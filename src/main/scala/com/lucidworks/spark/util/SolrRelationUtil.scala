@@ -1,16 +1,16 @@
 package com.lucidworks.spark.util
 
 import java.sql.Timestamp
-import java.util.Date
 
 import com.typesafe.scalalogging.LazyLogging
 import org.apache.solr.client.solrj.SolrQuery
+import org.apache.solr.client.solrj.util.ClientUtils
 import org.apache.solr.common.SolrDocument
 import org.apache.spark.rdd.RDD
 import org.apache.spark.sql.Row
+import org.apache.spark.sql.catalyst.{CatalystTypeConverters, InternalRow}
 import org.apache.spark.sql.sources._
 import org.apache.spark.sql.types._
-import org.joda.time.DateTime
 import org.joda.time.format.ISODateTimeFormat
 
 import scala.collection.JavaConversions._
@@ -41,9 +41,9 @@ object SolrRelationUtil extends LazyLogging {
       zkHost: String,
       collection: String,
       escapeFields: Boolean,
-      flattenMultivalued: Boolean): StructType = {
-    val solrBaseUrl = SolrSupport.getSolrBaseUrl(zkHost)
-    val fieldTypeMap = SolrQuerySupport.getFieldTypes(fields, solrBaseUrl, collection)
+      flattenMultivalued: Boolean,
+      metadataTtlMs: Long = QueryConstants.DEFAULT_METADATA_CACHE_TTL_MS): StructType = {
+    val fieldTypeMap = SolrMetadataCatalog.fieldTypes(zkHost, collection, fields, metadataTtlMs)
     val structFields = new ListBuffer[StructField]
 
     fieldTypeMap.foreach{ case(fieldName, fieldMeta) =>
@@ -117,6 +117,18 @@ object SolrRelationUtil extends LazyLogging {
     if (listOfFields.isEmpty) schema else DataTypes.createStructType(listOfFields.toList)
   }
 
+  /**
+   * The schema with a column for the relevance score of each doc (the `score` pseudo-field), unless the
+   * collection has a field of that name. It's nullable, as results that aren't scored (e.g. /export) have none.
+   */
+  def withScoreField(schema: StructType): StructType =
+    if (schema.fieldNames.contains("score")) schema
+    else schema.add(DataTypes.createStructField("score", DataTypes.DoubleType, true, Metadata.empty))
+
+  // unlike the fields of the collection, the score pseudo-field doesn't carry the name of a Solr field
+  def isScoreField(attr: String, baseSchema: StructType): Boolean =
+    attr == "score" && baseSchema.fields.exists(f => f.name == attr && !f.metadata.contains("name"))
+
   def applyDefaultFields(baseSchema: StructType, solrQuery: SolrQuery, flattenMultivalued: Boolean): Unit = {
     val schemaFields = baseSchema.fields
     val fieldList = new ListBuffer[String]
@@ -134,15 +146,26 @@ object SolrRelationUtil extends LazyLogging {
     solrQuery.setFields(fieldList.toList:_*)
   }
 
-  def applyFilter(filter: Filter, solrQuery: SolrQuery, baseSchema: StructType) = {
+  /**
+   * Adds a filter query for each conjunct of the filter whose docs include all the rows Spark keeps for it (see
+   * isSupersetFilter); Spark evaluates the others. Fields are taken to be multi-valued unless isMultiValued says
+   * otherwise.
+   */
+  def applyFilter(
+      filter: Filter,
+      solrQuery: SolrQuery,
+      baseSchema: StructType,
+      isMultiValued: String => Boolean = _ => true): Unit = {
    filter match {
      case f: And =>
-       solrQuery.addFilterQuery(fq(f.left, baseSchema))
-       solrQuery.addFilterQuery(fq(f.right, baseSchema))
-     case f: Or =>
-       solrQuery.addFilterQuery("(" + fq(f.left, baseSchema) + " OR " + fq(f.right, baseSchema) + ")")
-     case f: Not =>
-       solrQuery.addFilterQuery("NOT " + fq(f.child, baseSchema))
+       applyFilter(f.left, solrQuery, baseSchema, isMultiValued)
+       applyFilter(f.right, solrQuery, baseSchema, isMultiValued)
+     // Solr can't filter by score, Spark does
+     case f if filterAttributes(f).exists(isScoreField(_, baseSchema)) =>
+     case f if !isSupersetFilter(f, baseSchema, isMultiValued) =>
+       logger.debug(s"Not pushing down $f, as Solr could drop docs Spark keeps for it")
+     case f: In if isTermsField(f.attribute, baseSchema) =>
+       solrQuery.addFilterQuery(termsFilterQuery(f, baseSchema))
      case _ => solrQuery.addFilterQuery(fq(filter, baseSchema))
    }
   }
@@ -151,7 +174,7 @@ object SolrRelationUtil extends LazyLogging {
     val fieldType = baseSchema(attr)
     fieldType.dataType match {
       case TimestampType => convertToISO(value)
-      case _ => value
+      case _ => ClientUtils.escapeQueryChars(value)
     }
   }
 
@@ -161,15 +184,27 @@ object SolrRelationUtil extends LazyLogging {
     String.format("\"%s\"", isoValue)
   }
 
+  /**
+   * A query for the docs the filter is true for. Like in SQL, a comparison with a field a doc has no value in is
+   * neither true nor false, so NOT selects the docs its child is false for (see falseFq), not all other docs.
+   */
   def fq(filter: Filter, baseSchema: StructType): String = {
     var negate = ""
     var crit : Option[String] = None
     var attr: Option[String] = None
 
     filter match {
+      case f: And =>
+        return "(" + fq(f.left, baseSchema) + " AND " + fq(f.right, baseSchema) + ")"
+      case f: Or =>
+        return "(" + fq(f.left, baseSchema) + " OR " + fq(f.right, baseSchema) + ")"
+      case f: Not =>
+        return falseFq(f.child, baseSchema)
       case f: EqualTo =>
         attr = Some(f.attribute)
         crit = Some(getFilterValue(f.attribute, String.valueOf(f.value), baseSchema))
+      case f: EqualNullSafe if f.value == null =>
+        return fq(IsNull(f.attribute), baseSchema)
       case f: EqualNullSafe =>
         attr = Some(f.attribute)
         crit = Some(getFilterValue(f.attribute, String.valueOf(f.value), baseSchema))
@@ -185,44 +220,217 @@ object SolrRelationUtil extends LazyLogging {
       case f: LessThanOrEqual =>
         attr = Some(f.attribute)
         crit = Some("[* TO " + getFilterValue(f.attribute, String.valueOf(f.value), baseSchema)+ "]")
+      case f: In if isTermsField(f.attribute, baseSchema) =>
+        return nestedQuery(termsFilterQuery(f, baseSchema))
       case f: In =>
+        // analyzed like the indexed text, so it matches at least the docs with any of the values; Spark filters them
+        val values = f.values.filter(_ != null).map(termValue).distinct
+        if (values.isEmpty) return "(*:* -*:*)"
         attr = Some(f.attribute)
-        val sb = new StringBuilder()
-        sb.append("(")
-        val values = f.values
-        values.zipWithIndex.foreach{case(value, i) =>
-          if (i>0) sb.append(" ")
-          sb.append(String.valueOf(value))
-        }
-        sb.append(")")
-        crit = Some(sb.result())
+        crit = Some(values.map(v => "\"" + v.replace("\\", "\\\\").replace("\"", "\\\"") + "\"").mkString("(", " ", ")"))
       case f: IsNotNull =>
         attr = Some(f.attribute)
         crit = Some("[* TO *]")
       case f: IsNull =>
-        attr = Some(f.attribute)
-        crit = Some("[* TO *]")
-        negate = "-"
+        // pure negative clauses match nothing when nested
+        return "(*:* -" + attributeToFieldName(f.attribute, baseSchema) + ":[* TO *])"
       case f: StringContains =>
         attr = Some(f.attribute)
-        crit = Some("*" + f.value + "*")
+        crit = Some("*" + ClientUtils.escapeQueryChars(f.value) + "*")
       case f: StringEndsWith =>
         attr = Some(f.attribute)
-        crit = Some(f.value + "*")
+        crit = Some("*" + ClientUtils.escapeQueryChars(f.value))
       case f: StringStartsWith =>
         attr = Some(f.attribute)
-        crit = Some("*" + f.value)
+        crit = Some(ClientUtils.escapeQueryChars(f.value) + "*")
       case _ => throw new IllegalArgumentException("Filters of type '" + filter + " (" + filter.getClass.getName + ")' not supported!")
     }
 
     if (attr.isEmpty)
       throw new IllegalArgumentException("Could not get filter attribute for '" + filter + " (" + filter.getClass.getName + ")'")
-    if (attr.isEmpty)
+    if (crit.isEmpty)
       throw new IllegalArgumentException("Could not get filter criteria for '" + filter + " (" + filter.getClass.getName + ")'")
 
     negate + attributeToFieldName(attr.get, baseSchema) + ":" + crit.get
   }
 
+  /**
+   * A query for the docs the filter is false for: those with a value in the field(s) that doesn't match it.
+   */
+  def falseFq(filter: Filter, baseSchema: StructType): String = {
+    def field(attr: String) = attributeToFieldName(attr, baseSchema)
+
+    filter match {
+      case f: And => "(" + falseFq(f.left, baseSchema) + " OR " + falseFq(f.right, baseSchema) + ")"
+      case f: Or => "(" + falseFq(f.left, baseSchema) + " AND " + falseFq(f.right, baseSchema) + ")"
+      case f: Not => fq(f.child, baseSchema)
+      case f: IsNull => field(f.attribute) + ":[* TO *]"
+      case f: IsNotNull => fq(IsNull(f.attribute), baseSchema)
+      case f: EqualNullSafe if f.value == null => field(f.attribute) + ":[* TO *]"
+      // null safe equality is never null
+      case f: EqualNullSafe => "(*:* -" + fq(f, baseSchema) + ")"
+      // x IN (.., NULL) is true or null, never false
+      case f: In if f.values.contains(null) => "(*:* -*:*)"
+      case f => "(" + field(filterAttributes(f).head) + ":[* TO *] -" + fq(f, baseSchema) + ")"
+    }
+  }
+
+  // the most buckets of the hash of the uniqueKey a sample filter ORs together, each being a pass over the docs
+  val MAX_SAMPLE_HASH_BUCKETS: Int = 10
+
+  /**
+   * A filter matching a deterministic, uniform sample of about pct of the docs, selected by the given seed: a range
+   * of the values of hashField, a field holding a uniform 32-bit integer hash of each doc (e.g. computed when
+   * indexing), or else some of the buckets of the hash Solr's {!hash} query parser computes from the uniqueKey.
+   * None if all docs are in the sample.
+   */
+  def hashSampleFilter(uniqueKey: String, hashField: Option[String], seed: Int, pct: Double): Option[String] = {
+    if (pct >= 1.0) return None
+    if (pct <= 0.0) return Some("(*:* -*:*)")
+
+    hashField match {
+      case Some(field) =>
+        val width = math.round(pct * (1L << 32))
+        // spread consecutive seeds over the hash range
+        val start = Int.MinValue.toLong + ((seed.toLong * 2654435761L) & 0xffffffffL)
+        val end = start + width - 1
+        if (end <= Int.MaxValue) {
+          Some(s"$field:[$start TO $end]")
+        } else {
+          Some(s"($field:[$start TO ${Int.MaxValue}] OR $field:[${Int.MinValue} TO ${end - (1L << 32)}])")
+        }
+      case None =>
+        val (buckets, workers) = sampleBuckets(pct)
+        val first = Math.floorMod(seed, workers)
+        val clauses = (0 until buckets).map(i =>
+          nestedQuery(s"{!hash workers=$workers worker=${(first + i) % workers} partitionKeys=$uniqueKey}"))
+        Some(clauses.mkString("(", " OR ", ")"))
+    }
+  }
+
+  // the fraction buckets / workers closest to pct with few buckets
+  private[util] def sampleBuckets(pct: Double): (Int, Int) = {
+    val candidates = (1 to MAX_SAMPLE_HASH_BUCKETS).map(k => (k, math.max(k, math.round(k / pct).toInt)))
+    // the fewest buckets within 1% of pct, or the closest fraction
+    candidates.find { case (k, w) => math.abs(k.toDouble / w - pct) <= pct * 0.01 }
+      .getOrElse(candidates.minBy { case (k, w) => math.abs(k.toDouble / w - pct) })
+  }
+
+  // a clause for a query within another, as local params (e.g. {!terms ...}) only apply at the start of a query
+  def nestedQuery(q: String): String = "_query_:\"" + q.replace("\\", "\\\\").replace("\"", "\\\"") + "\""
+
+  def filterAttributes(filter: Filter): Seq[String] = filter match {
+    case f: And => filterAttributes(f.left) ++ filterAttributes(f.right)
+    case f: Or => filterAttributes(f.left) ++ filterAttributes(f.right)
+    case f: Not => filterAttributes(f.child)
+    case f: EqualTo => Seq(f.attribute)
+    case f: EqualNullSafe => Seq(f.attribute)
+    case f: GreaterThan => Seq(f.attribute)
+    case f: GreaterThanOrEqual => Seq(f.attribute)
+    case f: LessThan => Seq(f.attribute)
+    case f: LessThanOrEqual => Seq(f.attribute)
+    case f: In => Seq(f.attribute)
+    case f: IsNull => Seq(f.attribute)
+    case f: IsNotNull => Seq(f.attribute)
+    case f: StringStartsWith => Seq(f.attribute)
+    case f: StringEndsWith => Seq(f.attribute)
+    case f: StringContains => Seq(f.attribute)
+    case _ => Seq.empty
+  }
+
+  // text is analyzed and floats are read as doubles, so neither compares like in Spark
+  val EXACT_FIELD_CLASSES: Set[String] = Set("solr.StrField", "solr.BoolField", "solr.TrieIntField",
+    "solr.TrieLongField", "solr.TrieDoubleField", "solr.TrieDateField")
+
+  /**
+   * Whether fq selects exactly the rows Spark keeps for the filter, so Spark doesn't need to evaluate it again:
+   * only comparisons on single-valued fields whose values compare in Solr like in Spark (strings, not analyzed
+   * text, and numbers and dates of the precision of their Spark type) are.
+   */
+  def isExactFilter(filter: Filter, baseSchema: StructType, isMultiValued: String => Boolean): Boolean = {
+    def exactField(attr: String, classes: Set[String] = EXACT_FIELD_CLASSES): Boolean =
+      baseSchema.fields.find(_.name == attr).exists { field =>
+        !field.dataType.isInstanceOf[ArrayType] && !isMultiValued(attributeToFieldName(attr, baseSchema)) &&
+          field.metadata.contains("class") && classes.contains(field.metadata.getString("class"))
+      }
+    // Solr dates only keep milliseconds
+    def exactValue(value: Any): Boolean = value match {
+      case ts: Timestamp => ts.getNanos % 1000000 == 0
+      case d: Double => !d.isNaN
+      case v => v != null
+    }
+    def exactComparison(attr: String, value: Any): Boolean =
+      exactField(attr, EXACT_FIELD_CLASSES - "solr.BoolField") && exactValue(value)
+
+    filter match {
+      case f: And => isExactFilter(f.left, baseSchema, isMultiValued) && isExactFilter(f.right, baseSchema, isMultiValued)
+      case f: Or => isExactFilter(f.left, baseSchema, isMultiValued) && isExactFilter(f.right, baseSchema, isMultiValued)
+      case f: Not => isExactFilter(f.child, baseSchema, isMultiValued)
+      case f: EqualTo => exactField(f.attribute) && exactValue(f.value)
+      case f: EqualNullSafe => exactField(f.attribute) && (f.value == null || exactValue(f.value))
+      case f: GreaterThan => exactComparison(f.attribute, f.value)
+      case f: GreaterThanOrEqual => exactComparison(f.attribute, f.value)
+      case f: LessThan => exactComparison(f.attribute, f.value)
+      case f: LessThanOrEqual => exactComparison(f.attribute, f.value)
+      case f: In => exactField(f.attribute) && f.values.filter(_ != null).forall(exactValue)
+      case f: IsNull => exactField(f.attribute, SolrQuerySupport.SOLR_DATA_TYPES.keySet)
+      case f: IsNotNull => exactField(f.attribute, SolrQuerySupport.SOLR_DATA_TYPES.keySet)
+      case f: StringStartsWith => exactField(f.attribute, Set("solr.StrField"))
+      case f: StringEndsWith => exactField(f.attribute, Set("solr.StrField"))
+      case f: StringContains => exactField(f.attribute, Set("solr.StrField"))
+      case _ => false
+    }
+  }
+
+  /**
+   * Whether fq selects at least the rows Spark keeps for the filter, so it can be pushed down even if Spark has to
+   * evaluate it again. A filter Solr evaluates differently (e.g. on analyzed text) still matches the docs Spark
+   * keeps, but once negated it drops some of them, so a filter under NOT has to be exact.
+   */
+  def isSupersetFilter(
+      filter: Filter,
+      baseSchema: StructType,
+      isMultiValued: String => Boolean,
+      negated: Boolean = false): Boolean = filter match {
+    case f: And =>
+      isSupersetFilter(f.left, baseSchema, isMultiValued, negated) &&
+        isSupersetFilter(f.right, baseSchema, isMultiValued, negated)
+    case f: Or =>
+      isSupersetFilter(f.left, baseSchema, isMultiValued, negated) &&
+        isSupersetFilter(f.right, baseSchema, isMultiValued, negated)
+    case f: Not => isSupersetFilter(f.child, baseSchema, isMultiValued, !negated)
+    case f => !negated || isExactFilter(f, baseSchema, isMultiValued)
+  }
+
+  // fields whose indexed terms are their values, unlike analyzed text, so the terms query parser can look them up
+  val TERMS_FIELD_CLASSES: Set[String] = EXACT_FIELD_CLASSES + "solr.TrieFloatField"
+
+  def isTermsField(attr: String, baseSchema: StructType): Boolean =
+    baseSchema.fields.find(_.name == attr).exists(field =>
+      field.metadata.contains("class") && TERMS_FIELD_CLASSES.contains(field.metadata.getString("class")))
+
+  /**
+   * A terms query parser filter for an IN list, which Solr doesn't need to parse as a query (nor score). Lists
+   * longer than LARGE_TERMS_FILTER_SIZE are looked up in docValues if the field has them, and aren't cached,
+   * as they're unlikely to be reused.
+   */
+  def termsFilterQuery(f: In, baseSchema: StructType): String = {
+    val field = baseSchema(f.attribute)
+    val values = f.values.filter(_ != null).map(termValue).distinct.toSeq
+    val isLarge = values.size >= QueryConstants.LARGE_TERMS_FILTER_SIZE
+    val isDocValues = field.metadata.contains("docValues") && field.metadata.getBoolean("docValues")
+    // numeric docValues can't be looked up by term
+    val method = if (isLarge && isDocValues && field.dataType == StringType) Some("docValuesTermsFilter") else None
+    TermsFilter.termsQuery(attributeToFieldName(f.attribute, baseSchema), values, method, cache = !isLarge)
+  }
+
+  // the value as the terms query parser expects it for the field type
+  def termValue(value: Any): String = value match {
+    case ts: Timestamp => ISODateTimeFormat.dateTime().withZoneUTC().print(ts.getTime)
+    case date: java.sql.Date => ISODateTimeFormat.dateTime().withZoneUTC().print(date.getTime)
+    case v => String.valueOf(v)
+  }
+
   def attributeToFieldName(attr: String, baseSchema: StructType): String = {
     val fieldMap = new mutable.HashMap[String, StructField]()
     for (schemaField <- baseSchema.fields) fieldMap.put(schemaField.name, schemaField)
@@ -273,88 +481,22 @@ object SolrRelationUtil extends LazyLogging {
   }
 
   //TODO: Full on testing with schemaless, multi-valued arrays etc...
+  /**
+   * Converts SolrDocuments into Spark's internal row format using a SolrRowConverter built once per partition.
+   * Rows are reused by the converter, so callers must project or copy them before buffering.
+   */
+  def toInternalRows(schema: StructType, docs: RDD[SolrDocument]): RDD[InternalRow] = {
+    docs.mapPartitions(solrDocuments => {
+      val converter = new SolrRowConverter(schema)
+      solrDocuments.map(converter.toInternalRow)
+    })
+  }
+
   def toRows(schema: StructType, docs: RDD[SolrDocument]): RDD[Row] = {
-    val fields = schema.fields
-
-    val rows = docs.map(solrDocument => {
-      val values = new ListBuffer[AnyRef]
-      for (field <- fields) {
-        val metadata = field.metadata
-        val fieldType = schema.get(schema.indexOf(field)).dataType
-        val isMultiValued = if (metadata.contains("multiValued")) metadata.getBoolean("multiValued") else false
-        if (isMultiValued) {
-          val fieldValues = solrDocument.getFieldValues(field.name)
-          if (fieldValues != null) {
-            val iterableValues = fieldValues.iterator().map {
-              case d: Date => new Timestamp(d.getTime)
-              case s: String =>
-                fieldType match {
-                  // This is a workaround. When date fields are streamed through export handler, they are represented with String class type
-                  case t: ArrayType =>
-                    if (t.asInstanceOf[ArrayType].elementType.eq(TimestampType))
-                      new Timestamp(DateTime.parse(s).getMillis)
-                    else
-                      s
-                  case _ => s
-                }
-              case i: java.lang.Integer => new java.lang.Long(i.longValue())
-              case f: java.lang.Float => new java.lang.Double(f.doubleValue())
-              case a => a
-            }
-            values.add(iterableValues.toArray)
-          } else {
-            values.add(null)
-          }
-        } else {
-          val fieldValue = solrDocument.getFieldValue(field.name)
-          fieldValue match {
-            case d: Date => values.add(new Timestamp(d.getTime))
-            case s: String =>
-              // This is a workaround. When date fields are streamed through export handler, they are represented with String class type
-              if (fieldType.eq(TimestampType))
-                values.add(new Timestamp(DateTime.parse(s).getMillis))
-              else
-                values.add(s)
-            case i: java.lang.Integer => values.add(new java.lang.Long(i.longValue()))
-            case f: java.lang.Float => values.add(new java.lang.Double(f.doubleValue()))
-            case al: java.util.ArrayList[_] =>
-              val jlist = al.iterator.map {
-                case d: Date => new Timestamp(d.getTime)
-                case s: String =>
-                  if (fieldType.eq(TimestampType))
-                    new Timestamp(DateTime.parse(s).getMillis)
-                  else
-                    s
-                case i: java.lang.Integer => new java.lang.Long(i.longValue())
-                case f: java.lang.Float => new java.lang.Double(f.doubleValue())
-                case v: Any => v
-              }
-              val arr = jlist.toArray
-              if (arr.length >= 1) {
-                values.add(arr(0).asInstanceOf[AnyRef])
-              }
-            case it : Iterable[_] =>
-              val iterableValues = it.iterator.map {
-                case d: Date => new Timestamp(d.getTime)
-                case s: String =>
-                  if (fieldType.eq(TimestampType))
-                    new Timestamp(DateTime.parse(s).getMillis)
-                  else
-                    s
-                case i: java.lang.Integer => new java.lang.Long(i.longValue())
-                case f: java.lang.Float => new java.lang.Double(f.doubleValue())
-                case v: Any => v
-              }
-              val arr = iterableValues.toArray
-              if (!arr.isEmpty) {
-                values.add(arr(0).asInstanceOf[AnyRef])
-              }
-            case a => values.add(a)
-          }
-        }
-      }
-      Row(values.toArray:_*)
+    docs.mapPartitions(solrDocuments => {
+      val converter = new SolrRowConverter(schema)
+      val toScala = CatalystTypeConverters.createToScalaConverter(schema)
+      solrDocuments.map(solrDocument => toScala(converter.toInternalRow(solrDocument)).asInstanceOf[Row])
     })
-    rows
   }
 }
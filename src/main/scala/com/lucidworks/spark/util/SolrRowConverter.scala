@@ -0,0 +1,217 @@
+package com.lucidworks.spark.util
+
+import java.nio.ByteBuffer
+import java.util.Date
+
+import org.apache.solr.common.SolrDocument
+import org.apache.spark.sql.catalyst.{CatalystTypeConverters, InternalRow}
+import org.apache.spark.sql.catalyst.expressions.{MutableRow, SpecificMutableRow}
+import org.apache.spark.sql.catalyst.util.{DateTimeUtils, GenericArrayData}
+import org.apache.spark.sql.types._
+import org.apache.spark.unsafe.types.UTF8String
+import org.joda.time.DateTime
+
+/**
+ * Converts SolrDocuments into Spark's internal row format for a fixed schema. All per-field decisions
+ * (data type, single vs. multi-valued, how to coerce values) are made once when the converter is created;
+ * converting a document just runs the pre-built writer for each column against a single, reused row.
+ *
+ * Not thread-safe, and the row returned by toInternalRow is overwritten on the next call, so create one
+ * converter per partition and copy the row if it needs to be held onto.
+ */
+class SolrRowConverter(val schema: StructType) {
+  import SolrRowConverter._
+
+  private[this] val numFields = schema.fields.length
+  private[this] val fieldNames: Array[String] = schema.fields.map(_.name)
+  private[this] val multiValued: Array[Boolean] = schema.fields.map(_.dataType.isInstanceOf[ArrayType])
+  private[this] val writers: Array[FieldWriter] = schema.fields.map(f => makeWriter(f.dataType))
+  private[this] val mutableRow: MutableRow = new SpecificMutableRow(schema.fields.map(_.dataType))
+
+  def toInternalRow(doc: SolrDocument): InternalRow = {
+    var i = 0
+    while (i < numFields) {
+      val value: AnyRef =
+        if (multiValued(i)) doc.getFieldValues(fieldNames(i)) else firstValue(doc.getFieldValue(fieldNames(i)))
+      if (value == null) {
+        mutableRow.setNullAt(i)
+      } else {
+        writers(i)(mutableRow, i, value)
+      }
+      i += 1
+    }
+    mutableRow
+  }
+}
+
+object SolrRowConverter {
+
+  type FieldWriter = (MutableRow, Int, AnyRef) => Unit
+
+  // single-valued columns backed by a multi-valued Solr field take the first value
+  private def firstValue(value: AnyRef): AnyRef = {
+    value match {
+      case c: java.util.Collection[_] =>
+        if (c.isEmpty) null else c.iterator().next().asInstanceOf[AnyRef]
+      case _ => value
+    }
+  }
+
+  def makeWriter(dataType: DataType): FieldWriter = dataType match {
+    case StringType => (row, i, v) => row.update(i, toUTF8String(v))
+    case LongType => (row, i, v) => row.setLong(i, toLong(v))
+    case IntegerType => (row, i, v) => row.setInt(i, toLong(v).toInt)
+    case DoubleType => (row, i, v) => row.setDouble(i, toDouble(v))
+    case FloatType => (row, i, v) => row.setFloat(i, toDouble(v).toFloat)
+    case BooleanType => (row, i, v) => row.setBoolean(i, toBoolean(v))
+    case TimestampType => (row, i, v) => row.setLong(i, toTimestampMicros(v))
+    case DateType => (row, i, v) => row.setInt(i, DateTimeUtils.millisToDays(toTimestampMicros(v) / 1000L))
+    case _ =>
+      val convert = makeConverter(dataType)
+      (row, i, v) => row.update(i, convert(v))
+  }
+
+  /**
+   * Builds a function that converts a value from Solr into the internal (Catalyst) representation of the
+   * given data type.
+   */
+  def makeConverter(dataType: DataType): AnyRef => Any = dataType match {
+    case StringType => v => toUTF8String(v)
+    case LongType => v => toLong(v)
+    case IntegerType => v => toLong(v).toInt
+    case DoubleType => v => toDouble(v)
+    case FloatType => v => toDouble(v).toFloat
+    case BooleanType => v => toBoolean(v)
+    case TimestampType => v => toTimestampMicros(v)
+    case DateType => v => DateTimeUtils.millisToDays(toTimestampMicros(v) / 1000L)
+    case BinaryType => {
+      case b: Array[Byte] => b
+      case bb: ByteBuffer =>
+        val bytes = new Array[Byte](bb.remaining())
+        bb.duplicate().get(bytes)
+        bytes
+      case v => v.toString.getBytes("UTF-8")
+    }
+    case ArrayType(elementType, _) =>
+      val convertElement = makeConverter(elementType)
+      v => {
+        val values: Array[Any] = v match {
+          case c: java.util.Collection[_] =>
+            val arr = new Array[Any](c.size())
+            val iter = c.iterator()
+            var i = 0
+            while (iter.hasNext) {
+              val e = iter.next().asInstanceOf[AnyRef]
+              arr(i) = if (e == null) null else convertElement(e)
+              i += 1
+            }
+            arr
+          case a: Array[AnyRef] => a.map(e => if (e == null) null else convertElement(e))
+          case single => Array[Any](convertElement(single))
+        }
+        new GenericArrayData(values)
+      }
+    case _ =>
+      val toCatalyst = CatalystTypeConverters.createToCatalystConverter(dataType)
+      v => toCatalyst(v)
+  }
+
+  private def toUTF8String(v: AnyRef): UTF8String = v match {
+    case s: String => UTF8String.fromString(s)
+    case other => UTF8String.fromString(other.toString)
+  }
+
+  private def toLong(v: AnyRef): Long = v match {
+    case l: java.lang.Long => l.longValue()
+    case n: java.lang.Number => n.longValue()
+    case d: Date => d.getTime
+    case s: String => s.toLong
+    case other => throw new IllegalArgumentException(s"Cannot convert ${other.getClass.getName} '$other' to a long")
+  }
+
+  private def toDouble(v: AnyRef): Double = v match {
+    case d: java.lang.Double => d.doubleValue()
+    case n: java.lang.Number => n.doubleValue()
+    case s: String => s.toDouble
+    case other => throw new IllegalArgumentException(s"Cannot convert ${other.getClass.getName} '$other' to a double")
+  }
+
+  private def toBoolean(v: AnyRef): Boolean = v match {
+    case b: java.lang.Boolean => b.booleanValue()
+    case s: String => s.toBoolean
+    case other => throw new IllegalArgumentException(s"Cannot convert ${other.getClass.getName} '$other' to a boolean")
+  }
+
+  private def toTimestampMicros(v: AnyRef): Long = v match {
+    case d: Date => d.getTime * 1000L
+    // When date fields are streamed through the export handler, they are represented as Strings
+    case s: String => parseISODateTimeMillis(s) * 1000L
+    case n: java.lang.Number => n.longValue() * 1000L
+    case other => throw new IllegalArgumentException(s"Cannot convert ${other.getClass.getName} '$other' to a timestamp")
+  }
+
+  /**
+   * Parses the UTC ISO-8601 format Solr uses for dates (e.g. 2016-10-14T01:02:03.456Z) without allocating;
+   * anything else is handed off to Joda.
+   */
+  def parseISODateTimeMillis(s: String): Long = {
+    val len = s.length
+    if (len < 20 || s.charAt(len - 1) != 'Z' || s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != 'T' ||
+        s.charAt(13) != ':' || s.charAt(16) != ':') {
+      return DateTime.parse(s).getMillis
+    }
+
+    val year = digits(s, 0, 4)
+    val month = digits(s, 5, 7)
+    val day = digits(s, 8, 10)
+    val hour = digits(s, 11, 13)
+    val minute = digits(s, 14, 16)
+    val second = digits(s, 17, 19)
+    if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23 ||
+        minute < 0 || minute > 59 || second < 0 || second > 59) {
+      return DateTime.parse(s).getMillis
+    }
+
+    var millis = 0
+    if (len > 20) {
+      // optional fractional seconds, only millisecond precision is kept
+      if (s.charAt(19) != '.' || len == 21) return DateTime.parse(s).getMillis
+      var pos = 20
+      var scale = 100
+      while (pos < len - 1) {
+        val c = s.charAt(pos)
+        if (c < '0' || c > '9') return DateTime.parse(s).getMillis
+        millis += (c - '0') * scale
+        scale /= 10
+        pos += 1
+      }
+    }
+
+    val days = daysFromCivil(year, month, day)
+    ((days * 24L + hour) * 60L + minute) * 60000L + second * 1000L + millis
+  }
+
+  // returns -1 if the range contains anything other than digits
+  private def digits(s: String, from: Int, to: Int): Int = {
+    var n = 0
+    var i = from
+    while (i < to) {
+      val c = s.charAt(i)
+      if (c < '0' || c > '9') return -1
+      n = n * 10 + (c - '0')
+      i += 1
+    }
+    n
+  }
+
+  // days since 1970-01-01 in the proleptic Gregorian calendar
+  private def daysFromCivil(y0: Int, m: Int, d: Int): Long = {
+    val y = if (m <= 2) y0 - 1 else y0
+    val era = (if (y >= 0) y else y - 399) / 400
+    val yoe = y - era * 400
+    val mp = if (m > 2) m - 3 else m + 9
+    val doy = (153 * mp + 2) / 5 + d - 1
+    val doe = yoe * 365 + yoe / 4 - yoe / 100 + doy
+    era * 146097L + doe - 719468L
+  }
+}
@@ -2,17 +2,17 @@ package com.lucidworks.spark.util
 
 import java.beans.{IntrospectionException, Introspector, PropertyDescriptor}
 import java.lang.reflect.Modifier
-import java.net.{SocketException, ConnectException, URL, InetAddress}
+import java.net.{SocketException, SocketTimeoutException, ConnectException, URL, InetAddress}
 import java.util.Date
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.{ExecutorService, ThreadLocalRandom, TimeUnit}
 import java.util.concurrent.atomic.AtomicInteger
 
 import com.google.common.cache._
 import com.lucidworks.spark.fusion.FusionPipelineClient
 import com.lucidworks.spark.rdd.SolrRDD
-import com.lucidworks.spark.{SolrReplica, SolrShard}
+import com.lucidworks.spark.{RandomReplicaPolicy, ReplicaChoice, ReplicaSelectionPolicy, SolrReplica, SolrShard}
 import com.lucidworks.spark.filter.DocFilterContext
-import com.lucidworks.spark.query.{ShardSplit, StringFieldShardSplitStrategy, NumberFieldShardSplitStrategy, ShardSplitStrategy}
+import com.lucidworks.spark.query.{AbstractFieldShardSplitStrategy, ShardSplit, StringFieldShardSplitStrategy, NumberFieldShardSplitStrategy, ShardSplitStrategy}
 import com.typesafe.scalalogging.LazyLogging
 import org.apache.commons.httpclient.NoHttpResponseException
 import org.apache.solr.client.solrj.request.UpdateRequest
@@ -250,6 +250,33 @@ object SolrSupport extends LazyLogging {
     }
   }
 
+  /**
+   * Connection-level failures (refused / reset connections, timeouts, truncated responses) that are worth
+   * retrying against a different replica. Errors reported by Solr itself are not.
+   */
+  def isConnectionFailure(exc: Throwable): Boolean = {
+    var cause = exc
+    while (cause != null) {
+      cause match {
+        case _: ConnectException | _: SocketException | _: SocketTimeoutException => return true
+        case _: org.apache.http.NoHttpResponseException | _: org.apache.http.conn.ConnectTimeoutException => return true
+        case _: org.apache.http.ConnectionClosedException | _: org.apache.http.TruncatedChunkException => return true
+        case _: NoHttpResponseException => return true
+        case _ =>
+      }
+      cause = if (cause.getCause eq cause) null else cause.getCause
+    }
+    false
+  }
+
+  /**
+   * Exponential backoff with jitter: a random delay between half and all of min(maxMs, baseMs * 2^(attempt-1)).
+   */
+  def backoffWithJitterMs(attempt: Int, baseMs: Long, maxMs: Long): Long = {
+    val exp = math.min(maxMs, baseMs * (1L << math.min(30, math.max(0, attempt - 1))))
+    if (exp <= 1) exp else exp / 2 + ThreadLocalRandom.current().nextLong(exp / 2 + 1)
+  }
+
   /**
    * Uses reflection to map bean public fields and getters to dynamic fields in Solr.
    */
@@ -475,16 +502,18 @@ object SolrSupport extends LazyLogging {
     for (coll <- collections) {
       for (slice: Slice <- clusterState.getSlices(coll)) {
         var replicas  =  new ListBuffer[SolrReplica]()
+        val leaderName = Option(slice.getLeader).map(_.getName).orNull
         for (r: Replica <- slice.getReplicas) {
           if (r.getState == Replica.State.ACTIVE) {
             val replicaCoreProps: ZkCoreNodeProps = new ZkCoreNodeProps(r)
             if (liveNodes.contains(replicaCoreProps.getNodeName)) {
+              val isLeader = r.getName == leaderName
               try {
                 val addresses = InetAddress.getAllByName(new URL(replicaCoreProps.getBaseUrl).getHost)
-                replicas += new SolrReplica(0, replicaCoreProps.getCoreName, replicaCoreProps.getCoreUrl, replicaCoreProps.getNodeName, addresses)
+                replicas += new SolrReplica(0, replicaCoreProps.getCoreName, replicaCoreProps.getCoreUrl, replicaCoreProps.getNodeName, addresses, isLeader)
               } catch {
                 case e : Exception => logger.warn("Error resolving ip address " + replicaCoreProps.getNodeName + " . Exception " + e)
-                  replicas += new SolrReplica(0, replicaCoreProps.getCoreName, replicaCoreProps.getCoreUrl, replicaCoreProps.getNodeName, Array.empty[InetAddress])
+                  replicas += new SolrReplica(0, replicaCoreProps.getCoreName, replicaCoreProps.getCoreUrl, replicaCoreProps.getNodeName, Array.empty[InetAddress], isLeader)
               }
 
             }
@@ -501,12 +530,24 @@ object SolrSupport extends LazyLogging {
     shards.toList
   }
 
+  /**
+   * Picks an active replica on a live node from any shard of the collection, using the given policy
+   * (or at random if null).
+   */
+  def chooseReplica(zkHost: String, collection: String, policy: ReplicaSelectionPolicy): ReplicaChoice = {
+    val replicas = buildShardList(zkHost, collection).flatMap(_.replicas)
+    Option(policy).getOrElse(RandomReplicaPolicy).choose(replicas)
+  }
+
   def splitShards(
       query: SolrQuery,
       solrShard: SolrShard,
       splitFieldName: String,
       splitsPerShard: Int): List[ShardSplit[_]] = {
+    getSplits(getSplitFieldType(solrShard, splitFieldName), splitFieldName, splitsPerShard, query, solrShard)
+  }
 
+  def getSplitFieldType(solrShard: SolrShard, splitFieldName: String): DataType = {
     var fieldDataType: Option[DataType] = None
     if ("_version_".equals(splitFieldName)) {
       fieldDataType = Some(DataTypes.LongType)
@@ -528,11 +569,17 @@ object SolrSupport extends LazyLogging {
     if (fieldDataType.isEmpty) {
       throw new IllegalArgumentException("Cannot determine DataType for split field " + splitFieldName)
     }
-
-    getSplits(fieldDataType.get, splitFieldName, splitsPerShard, query, solrShard)
+    fieldDataType.get
   }
 
-  def getSplits(fd: DataType, sF: String, sPS: Int, query: SolrQuery, shard: SolrShard): List[ShardSplit[_]]= {
+  def getSplits(
+      fd: DataType,
+      sF: String,
+      sPS: Int,
+      query: SolrQuery,
+      shard: SolrShard,
+      executor: ExecutorService = null,
+      shardUrl: Option[String] = None): List[ShardSplit[_]]= {
     var splitStrategy: Option[ShardSplitStrategy] = None
 
     if (fd.equals(DataTypes.LongType) || fd.equals(DataTypes.IntegerType)) {
@@ -544,7 +591,11 @@ object SolrSupport extends LazyLogging {
     }
 
     if (splitStrategy.isDefined) {
-      splitStrategy.get.getSplits(SolrRDD.randomReplicaLocation(shard), query, sF, sPS).toList
+      splitStrategy.get match {
+        case fieldStrategy: AbstractFieldShardSplitStrategy[_] => fieldStrategy.setExecutor(executor)
+        case _ =>
+      }
+      splitStrategy.get.getSplits(shardUrl.getOrElse(SolrRDD.randomReplicaLocation(shard)), query, sF, sPS).toList
     } else {
       throw new IllegalArgumentException("No split strategy found for DataType '" + fd + "'")
     }
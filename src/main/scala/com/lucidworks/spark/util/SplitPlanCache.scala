@@ -0,0 +1,145 @@
+package com.lucidworks.spark.util
+
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+
+import com.google.common.cache.{Cache, CacheBuilder}
+import com.lucidworks.spark.util.QueryConstants._
+import com.typesafe.scalalogging.LazyLogging
+import org.apache.commons.io.IOUtils
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.Path
+import org.apache.solr.client.solrj.SolrQuery
+import org.apache.solr.client.solrj.request.LukeRequest
+import org.json4s._
+import org.json4s.jackson.JsonMethods._
+
+import scala.collection.JavaConverters._
+
+/**
+ * A split as stored in the plan cache: the filter query that selects the split and its size when planned.
+ */
+case class CachedSplit(fq: String, numHits: Long)
+
+/**
+ * Where computed split plans are cached: always in memory, and optionally under a directory on any file system
+ * Hadoop supports (local, HDFS, ...) so that plans survive across driver JVMs.
+ */
+case class SplitPlanCacheConfig(collection: String, dir: Option[String], hadoopConf: Configuration)
+
+/**
+ * Caches the splits computed for a shard. Entries are keyed by the collection, shard, split field, number of
+ * splits, the query (including filters), and the version of the index of the core the splits were computed on,
+ * so a plan is only reused as long as that index has not changed.
+ */
+object SplitPlanCache extends LazyLogging {
+
+  private val memory: Cache[String, Seq[CachedSplit]] =
+    CacheBuilder.newBuilder().maximumSize(DEFAULT_SPLIT_PLAN_CACHE_SIZE).build[String, Seq[CachedSplit]]()
+
+  def key(
+      collection: String,
+      shardName: String,
+      coreUrl: String,
+      splitField: String,
+      splitsPerShard: Int,
+      query: SolrQuery,
+      indexVersion: Long): String = {
+    // parameter order (e.g. of filters) doesn't change the plan
+    val params = query.getParameterNames.asScala.toSeq.sorted.map(name =>
+      name + "=" + query.getParams(name).sorted.mkString(","))
+    val raw = Seq(collection, shardName, coreUrl, splitField, splitsPerShard.toString, params.mkString("&"), indexVersion.toString)
+      .mkString("\n")
+    MessageDigest.getInstance("SHA-1").digest(raw.getBytes(StandardCharsets.UTF_8)).map("%02x".format(_)).mkString
+  }
+
+  /**
+   * The version of the index of the core at the given URL, or None if it can't be determined.
+   */
+  def indexVersion(coreUrl: String): Option[Long] = {
+    val solrClient = SolrSupport.getHttpSolrClient(coreUrl)
+    try {
+      val lukeRequest = new LukeRequest()
+      lukeRequest.setNumTerms(0)
+      val indexInfo = lukeRequest.process(solrClient).getIndexInfo
+      Option(indexInfo).flatMap(info => Option(info.get("version"))).map(_.toString.toLong)
+    } catch {
+      case e: Exception =>
+        logger.warn(s"Can't get the index version of $coreUrl, not caching its split plan: $e")
+        None
+    } finally {
+      solrClient.close()
+    }
+  }
+
+  def get(key: String, config: SplitPlanCacheConfig): Option[Seq[CachedSplit]] = {
+    val cached = Option(memory.getIfPresent(key))
+    if (cached.isDefined) return cached
+
+    config.dir.flatMap(dir => read(new Path(dir, key), config.hadoopConf)) match {
+      case Some(splits) =>
+        memory.put(key, splits)
+        Some(splits)
+      case None => None
+    }
+  }
+
+  def put(key: String, splits: Seq[CachedSplit], config: SplitPlanCacheConfig): Unit = {
+    memory.put(key, splits)
+    config.dir.foreach(dir => write(new Path(dir, key), splits, config.hadoopConf))
+  }
+
+  def clear(): Unit = memory.invalidateAll()
+
+  def toJson(splits: Seq[CachedSplit]): String =
+    compact(render(JArray(splits.map(s => JObject("fq" -> JString(s.fq), "numHits" -> JInt(s.numHits))).toList)))
+
+  def fromJson(json: String): Seq[CachedSplit] = {
+    parse(json) match {
+      case JArray(values) =>
+        values.map { value =>
+          (value \ "fq", value \ "numHits") match {
+            case (JString(fq), JInt(numHits)) => CachedSplit(fq, numHits.toLong)
+            case other => throw new IllegalArgumentException(s"Invalid cached split: ${compact(render(value))}")
+          }
+        }
+      case other => throw new IllegalArgumentException("Expected an array of splits")
+    }
+  }
+
+  private def read(path: Path, hadoopConf: Configuration): Option[Seq[CachedSplit]] = {
+    try {
+      val fs = path.getFileSystem(hadoopConf)
+      if (!fs.exists(path)) return None
+      val in = fs.open(path)
+      try {
+        Some(fromJson(IOUtils.toString(in, StandardCharsets.UTF_8)))
+      } finally {
+        in.close()
+      }
+    } catch {
+      case e: Exception =>
+        logger.warn(s"Ignoring unreadable split plan $path: $e")
+        None
+    }
+  }
+
+  private def write(path: Path, splits: Seq[CachedSplit], hadoopConf: Configuration): Unit = {
+    try {
+      val fs = path.getFileSystem(hadoopConf)
+      // write to a temp file and rename it so concurrent readers never see a partial plan
+      val tmp = new Path(path.getParent, s".${path.getName}.${System.nanoTime()}.tmp")
+      val out = fs.create(tmp, true)
+      try {
+        out.write(toJson(splits).getBytes(StandardCharsets.UTF_8))
+      } finally {
+        out.close()
+      }
+      if (!fs.rename(tmp, path)) {
+        fs.delete(tmp, false)
+      }
+    } catch {
+      case e: Exception => logger.warn(s"Failed to save split plan to $path: $e")
+    }
+  }
+}
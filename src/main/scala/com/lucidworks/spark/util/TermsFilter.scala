@@ -0,0 +1,104 @@
+package com.lucidworks.spark.util
+
+import com.lucidworks.spark.{ShardRDDPartition, SplitRDDPartition}
+import org.apache.solr.client.solrj.SolrQuery
+import org.apache.spark.{Partition, SparkContext}
+import org.apache.spark.broadcast.Broadcast
+
+/**
+ * Restricts a scan to the docs with one of a (possibly large) set of values in a field, e.g. the join keys of the
+ * small side of a join, with a `{!terms}` filter query per batch of at most batchSize values. The partitions of
+ * the scan are planned once per batch (see partitionsPerBatch).
+ *
+ * Above the broadcast threshold, the values are broadcast to the executors, and the partition queries only carry
+ * the number of their batch until the filter query is added when the partition is read (see applyTo).
+ */
+class TermsFilter private (
+    val field: String,
+    val numValues: Int,
+    val batchSize: Int,
+    localValues: Array[String],
+    broadcastValues: Option[Broadcast[Array[String]]])
+  extends Serializable {
+
+  def isBroadcast: Boolean = broadcastValues.isDefined
+
+  def numBatches: Int = math.max(1, (numValues + batchSize - 1) / batchSize)
+
+  def values: Array[String] = broadcastValues.map(_.value).getOrElse(localValues)
+
+  def filterQuery(batch: Int): String = {
+    val batchValues = values.slice(batch * batchSize, (batch + 1) * batchSize)
+    TermsFilter.termsQuery(field, batchValues, cache = batchValues.length < QueryConstants.LARGE_TERMS_FILTER_SIZE)
+  }
+
+  /**
+   * The partitions planned without this filter, repeated for each batch of values.
+   */
+  def partitionsPerBatch(partitions: Array[Partition]): Array[Partition] = {
+    val batched = for (batch <- 0 until numBatches; partition <- partitions) yield (batch, partition)
+    batched.zipWithIndex.map { case ((batch, partition), index) =>
+      partition match {
+        case p: ShardRDDPartition => p.copy(index = index, query = batchQuery(p.query, batch))
+        case p: SplitRDDPartition => p.copy(index = index, query = batchQuery(p.query, batch))
+        case p => throw new IllegalArgumentException(s"Can't apply a terms filter to partition type ${p.getClass}")
+      }
+    }.toArray
+  }
+
+  private def batchQuery(query: SolrQuery, batch: Int): SolrQuery = {
+    val batchQuery = query.getCopy
+    if (isBroadcast) batchQuery.set(TermsFilter.BATCH_PARAM, batch) else batchQuery.addFilterQuery(filterQuery(batch))
+    batchQuery
+  }
+
+  /**
+   * Adds the filter query of the batch a partition query was planned for, if its values were broadcast.
+   */
+  def applyTo(query: SolrQuery): SolrQuery = {
+    val batch = query.get(TermsFilter.BATCH_PARAM)
+    if (batch == null) return query
+
+    query.remove(TermsFilter.BATCH_PARAM)
+    query.addFilterQuery(filterQuery(batch.toInt))
+    query
+  }
+
+  override def toString: String = s"TermsFilter($field, $numValues values in $numBatches batches" +
+    (if (isBroadcast) ", broadcast)" else ")")
+}
+
+object TermsFilter {
+
+  val BATCH_PARAM = "spark.terms.batch"
+
+  // the terms parser can't escape its separator, so pick one no value contains
+  val SEPARATORS: Seq[String] = Seq(",", "|", "\u001f")
+
+  def apply(
+      sc: SparkContext,
+      field: String,
+      values: Array[String],
+      batchSize: Int = QueryConstants.DEFAULT_TERMS_FILTER_BATCH_SIZE,
+      broadcastThreshold: Int = QueryConstants.DEFAULT_TERMS_FILTER_BROADCAST_THRESHOLD): TermsFilter = {
+    require(batchSize > 0, s"The batch size of a terms filter must be positive, not $batchSize")
+    if (values.length > broadcastThreshold)
+      new TermsFilter(field, values.length, batchSize, Array.empty, Some(sc.broadcast(values)))
+    else
+      new TermsFilter(field, values.length, batchSize, values, None)
+  }
+
+  /**
+   * A terms query parser query for the values, using the given method (termsFilter by default) and optionally
+   * keeping it out of the filterCache.
+   */
+  def termsQuery(field: String, values: Seq[String], method: Option[String] = None, cache: Boolean = true): String = {
+    val separator = SEPARATORS.find(sep => !values.exists(_.contains(sep))).getOrElse(
+      throw new IllegalArgumentException(s"Can't build a terms filter on $field: values contain all separators"))
+    val params = Seq(s"f=$field") ++
+      (if (separator == ",") None else Some(s"separator='$separator'")) ++
+      method.map(m => s"method=$m") ++
+      (if (cache) None else Some("cache=false"))
+    s"{!terms ${params.mkString(" ")}}${values.mkString(separator)}"
+  }
+}
@@ -0,0 +1,69 @@
+package org.apache.spark.sql.solr
+
+import java.util.{Calendar, Locale, TimeZone}
+
+import org.apache.spark.sql.catalyst.analysis.TypeCheckResult
+import org.apache.spark.sql.catalyst.expressions.codegen.CodegenFallback
+import org.apache.spark.sql.catalyst.expressions.{BinaryExpression, Expression, ImplicitCastInputTypes}
+import org.apache.spark.sql.types.{AbstractDataType, DataType, StringType, TimestampType}
+
+/**
+ * date_trunc(unit, ts): the timestamp truncated to the start of its year, month, day, hour, minute or second in
+ * the JVM's time zone, like Spark's casts of timestamps to dates. Used to bucket time series, e.g.
+ * `GROUP BY date_trunc('hour', ts)`, which is pushed down to Solr as a range facet (see SolrAggregatePushDown).
+ */
+case class DateTrunc(unit: Expression, child: Expression)
+  extends BinaryExpression with ImplicitCastInputTypes with CodegenFallback {
+
+  override def left: Expression = unit
+  override def right: Expression = child
+  override def inputTypes: Seq[AbstractDataType] = Seq(StringType, TimestampType)
+  override def dataType: DataType = TimestampType
+  override def prettyName: String = "date_trunc"
+
+  override def checkInputDataTypes(): TypeCheckResult = {
+    super.checkInputDataTypes() match {
+      case TypeCheckResult.TypeCheckSuccess if !unit.foldable =>
+        TypeCheckResult.TypeCheckFailure(s"The unit of $prettyName must be a constant")
+      case TypeCheckResult.TypeCheckSuccess if DateTrunc.unitOf(unit.eval()).isEmpty =>
+        TypeCheckResult.TypeCheckFailure(
+          s"Unsupported unit '${unit.eval()}' for $prettyName; must be one of ${DateTrunc.UNITS.mkString(", ")}")
+      case result => result
+    }
+  }
+
+  /**
+   * The Solr date math unit to round to, e.g. HOUR.
+   */
+  def solrUnit: String = DateTrunc.unitOf(unit.eval()).get
+
+  override protected def nullSafeEval(unitValue: Any, timestamp: Any): Any =
+    DateTrunc.truncate(timestamp.asInstanceOf[Long], DateTrunc.unitOf(unitValue).get)
+}
+
+object DateTrunc {
+
+  // coarsest first, named like the Solr date math units
+  val UNITS: Seq[String] = Seq("YEAR", "MONTH", "DAY", "HOUR", "MINUTE", "SECOND")
+
+  val builder: Seq[Expression] => Expression = {
+    case Seq(unit, child) => DateTrunc(unit, child)
+    case args => throw new IllegalArgumentException(s"date_trunc takes a unit and a timestamp, got ${args.size} arguments")
+  }
+
+  def unitOf(unit: Any): Option[String] =
+    Option(unit).map(_.toString.trim.toUpperCase(Locale.ROOT)).filter(UNITS.contains)
+
+  def truncate(micros: Long, unit: String, timeZone: TimeZone = TimeZone.getDefault): Long = {
+    val level = UNITS.indexOf(unit)
+    val calendar = Calendar.getInstance(timeZone)
+    calendar.setTimeInMillis(Math.floorDiv(micros, 1000L))
+    if (level < 1) calendar.set(Calendar.MONTH, Calendar.JANUARY)
+    if (level < 2) calendar.set(Calendar.DAY_OF_MONTH, 1)
+    if (level < 3) calendar.set(Calendar.HOUR_OF_DAY, 0)
+    if (level < 4) calendar.set(Calendar.MINUTE, 0)
+    if (level < 5) calendar.set(Calendar.SECOND, 0)
+    calendar.set(Calendar.MILLISECOND, 0)
+    calendar.getTimeInMillis * 1000L
+  }
+}
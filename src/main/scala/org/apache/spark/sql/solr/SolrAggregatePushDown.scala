@@ -0,0 +1,199 @@
+package org.apache.spark.sql.solr
+
+import java.util.TimeZone
+
+import com.lucidworks.spark.SolrRelation
+import com.lucidworks.spark.util.ConfigurationConstants.RANGE_FACET_MAX_BUCKETS
+import com.lucidworks.spark.util.QueryConstants._
+import com.lucidworks.spark.util.{FacetAggregate, FacetAggregation, FacetGroup}
+import com.typesafe.scalalogging.LazyLogging
+import org.apache.solr.client.solrj.SolrQuery
+import org.apache.solr.common.util.NamedList
+import org.apache.spark.rdd.RDD
+import org.apache.spark.sql.Strategy
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.expressions.aggregate._
+import org.apache.spark.sql.catalyst.expressions.{Alias, Attribute, AttributeReference, Expression, NamedExpression, UnsafeProjection}
+import org.apache.spark.sql.catalyst.plans.logical.{Aggregate, LogicalPlan}
+import org.apache.spark.sql.execution.{LeafExecNode, SparkPlan}
+import org.apache.spark.sql.types.{DataType, DoubleType, TimestampType}
+
+/**
+ * Plans GROUP BY aggregations (count, count(field), count(distinct field) on single-shard collections,
+ * approx_count_distinct, sum, avg, min, max) over a Solr relation, optionally filtered by predicates that can
+ * all be pushed down, as a single JSON Facet API request instead of reading all matching docs.
+ *
+ * Only single-valued fields with docValues are grouped by or aggregated over, so the facet buckets match the
+ * groups Spark would compute. Timestamps truncated with date_trunc, e.g. `GROUP BY date_trunc('hour', ts)`, are
+ * bucketed with a range facet with a gap of one unit, bounded by the min and max of the timestamps. These take a
+ * stats request when planning; if that is more buckets than range_facet_max_buckets, Spark aggregates instead.
+ */
+object SolrAggregatePushDown extends Strategy with LazyLogging {
+
+  override def apply(plan: LogicalPlan): Seq[SparkPlan] = plan match {
+    case aggregate @ Aggregate(groupingExpressions, aggregateExpressions, child) =>
+      (for {
+        (relation, conditions) <- SolrPushDown.solrScan(child)
+        if relation.conf.aggregationPushDown.getOrElse(true) && !relation.conf.escapeFieldNames.getOrElse(false)
+        facetAggregation <- toFacetAggregation(relation, groupingExpressions, aggregateExpressions)
+        filters <- SolrPushDown.translateFilters(conditions)
+        query <- relation.pushDownQuery(filters)
+        if withinRangeBucketLimit(relation, query, facetAggregation)
+      } yield {
+        logger.info(s"Pushing down aggregation ${aggregateExpressions.mkString(", ")} over ${relation.collection} " +
+          s"as json.facet ${facetAggregation.facetJson}")
+        SolrFacetAggregateExec(aggregate.output, relation, query, facetAggregation)
+      }).toSeq
+    case _ => Nil
+  }
+
+  private def toFacetAggregation(
+      relation: SolrRelation,
+      groupingExpressions: Seq[Expression],
+      aggregateExpressions: Seq[NamedExpression]): Option[FacetAggregation] = {
+    val groups = groupingExpressions.map(toFacetGroup)
+    if (groups.exists(_.isEmpty)) return None
+
+    val aggregates = Seq.newBuilder[FacetAggregate]
+    var numAggregates = 0
+    val output = aggregateExpressions.map {
+      case a: Attribute if groupingExpressions.exists(_.semanticEquals(a)) =>
+        Some(Left(groupingExpressions.indexWhere(_.semanticEquals(a))))
+      case Alias(e, _) if groupingExpressions.exists(_.semanticEquals(e)) =>
+        Some(Left(groupingExpressions.indexWhere(_.semanticEquals(e))))
+      case Alias(AggregateExpression(function, _, isDistinct, _), _) =>
+        toFacetAggregate(relation, function, isDistinct).map { agg =>
+          aggregates += agg
+          numAggregates += 1
+          Right(numAggregates - 1)
+        }
+      case _ => None
+    }
+    if (output.exists(_.isEmpty)) return None
+
+    // range facets don't need docValues, but the terms facets and the stats do
+    val (rangeGroups, termsGroups) = groups.flatten.partition(_.rangeUnit.isDefined)
+    val docValuesFields = termsGroups.map(_.field) ++ aggregates.result().flatMap(_.field)
+    if (!facetable(relation, docValuesFields.toSet, rangeGroups.map(_.field).toSet)) return None
+
+    Some(FacetAggregation(groups.flatten, aggregates.result(), output.flatten))
+  }
+
+  private def withinRangeBucketLimit(relation: SolrRelation, query: SolrQuery, facetAggregation: FacetAggregation)
+    : Boolean = {
+    if (facetAggregation.rangeFields.isEmpty) return true
+
+    val bounded = SolrFacetAggregateExec.withRangeBounds(relation, query, facetAggregation)
+    val maxBuckets = SolrFacetAggregateExec.maxRangeBuckets(relation)
+    if (bounded.numRangeBuckets > maxBuckets) {
+      logger.info(s"Not pushing down aggregation over ${relation.collection}: its range facets on " +
+        s"${bounded.rangeFields.mkString(", ")} could have ${bounded.numRangeBuckets} buckets, more than $maxBuckets")
+      false
+    } else {
+      true
+    }
+  }
+
+  private def toFacetGroup(expression: Expression): Option[FacetGroup] = expression match {
+    case a: AttributeReference if supported(a.dataType) => Some(FacetGroup(a.name, a.dataType))
+    case trunc @ DateTrunc(_, a: AttributeReference) if a.dataType == TimestampType && trunc.resolved =>
+      Some(FacetGroup(a.name, TimestampType, rangeUnit = Some(trunc.solrUnit)))
+    case _ => None
+  }
+
+  private def toFacetAggregate(relation: SolrRelation, function: AggregateFunction, isDistinct: Boolean)
+    : Option[FacetAggregate] = {
+    function match {
+      case Count(children) if !isDistinct && SolrCountPushDown.countsEveryRow(children) =>
+        Some(FacetAggregate("count", None, function.dataType))
+      case Count(Seq(a: AttributeReference)) if !isDistinct && supported(a.dataType) =>
+        Some(FacetAggregate("count_field", Some(a.name), function.dataType))
+      // unique is only exact within a single shard
+      case Count(Seq(a: AttributeReference)) if isDistinct && supported(a.dataType) && relation.numShards == 1 =>
+        Some(FacetAggregate("unique", Some(a.name), function.dataType))
+      case HyperLogLogPlusPlus(a: AttributeReference, _, _, _) if supported(a.dataType) =>
+        Some(FacetAggregate("hll", Some(a.name), function.dataType))
+      case Sum(a: AttributeReference) if !isDistinct && numeric(a.dataType) =>
+        Some(FacetAggregate("sum", Some(a.name), function.dataType))
+      case Average(a: AttributeReference) if !isDistinct && numeric(a.dataType) =>
+        Some(FacetAggregate("avg", Some(a.name), DoubleType))
+      case Min(a: AttributeReference) if numeric(a.dataType) =>
+        Some(FacetAggregate("min", Some(a.name), function.dataType))
+      case Max(a: AttributeReference) if numeric(a.dataType) =>
+        Some(FacetAggregate("max", Some(a.name), function.dataType))
+      case _ => None
+    }
+  }
+
+  private def supported(dataType: DataType): Boolean = FacetAggregation.GROUP_TYPES.contains(dataType)
+
+  private def numeric(dataType: DataType): Boolean = FacetAggregation.NUMERIC_TYPES.contains(dataType)
+
+  private def facetable(relation: SolrRelation, docValuesFields: Set[String], indexedFields: Set[String]): Boolean = {
+    val fields = docValuesFields ++ indexedFields
+    if (fields.isEmpty) return true
+    val fieldMeta = relation.fieldMeta(fields)
+    fields.forall(field => fieldMeta.get(field).exists(meta =>
+      (meta.isDocValues.getOrElse(false) || !docValuesFields.contains(field)) && !meta.isMultiValued.getOrElse(true)))
+  }
+}
+
+/**
+ * Sends the JSON Facet API request of a pushed down aggregation and returns a row per bucket.
+ */
+case class SolrFacetAggregateExec(
+    output: Seq[Attribute],
+    relation: SolrRelation,
+    query: SolrQuery,
+    facetAggregation: FacetAggregation)
+  extends LeafExecNode {
+
+  override def simpleString: String =
+    s"SolrFacetAggregate ${relation.collection} ${facetAggregation.facetJson} ${output.mkString("[", ",", "]")}"
+
+  protected override def doExecute(): RDD[InternalRow] = {
+    // the bounds are fetched again, as the docs may have changed since planning
+    val aggregation = SolrFacetAggregateExec.withRangeBounds(relation, query, facetAggregation)
+    val maxBuckets = SolrFacetAggregateExec.maxRangeBuckets(relation)
+    if (aggregation.numRangeBuckets > maxBuckets)
+      throw new IllegalStateException(s"Range facets on ${aggregation.rangeFields.mkString(", ")} of " +
+        s"${relation.collection} could have ${aggregation.numRangeBuckets} buckets, more than " +
+        s"${RANGE_FACET_MAX_BUCKETS}=$maxBuckets; plan the query again to aggregate with Spark instead")
+
+    val facetQuery = query.getCopy
+    facetQuery.set("json.facet", aggregation.facetJson)
+    // round range facet buckets in the time zone DateTrunc uses
+    facetQuery.set("TZ", TimeZone.getDefault.getID)
+    val response = relation.querySolr(facetQuery)
+    val facets = response.getResponse.get("facets").asInstanceOf[NamedList[AnyRef]]
+    val projection = UnsafeProjection.create(schema)
+    val rows = aggregation.toRows(facets).map(row => projection(row).copy())
+    sparkContext.parallelize(rows, 1)
+  }
+}
+
+object SolrFacetAggregateExec {
+
+  def maxRangeBuckets(relation: SolrRelation): Long =
+    relation.conf.rangeFacetMaxBuckets.getOrElse(DEFAULT_RANGE_FACET_MAX_BUCKETS)
+
+  def withRangeBounds(relation: SolrRelation, query: SolrQuery, facetAggregation: FacetAggregation): FacetAggregation =
+    facetAggregation.withBounds(rangeBounds(relation, query, facetAggregation.rangeFields))
+
+  // the min and max of the date fields to bucket, over the matching docs
+  def rangeBounds(relation: SolrRelation, query: SolrQuery, fields: Seq[String]): Map[String, (Long, Long)] = {
+    if (fields.isEmpty) return Map.empty
+
+    val statsQuery = query.getCopy
+    fields.distinct.foreach(field => statsQuery.addGetFieldStatistics(s"{!min=true max=true}$field"))
+    val fieldStats = relation.querySolr(statsQuery).getFieldStatsInfo
+    fields.distinct.flatMap { field =>
+      Option(fieldStats).flatMap(stats => Option(stats.get(field))).flatMap { info =>
+        (info.getMin, info.getMax) match {
+          case (min: java.util.Date, max: java.util.Date) => Some(field -> (min.getTime, max.getTime))
+          case _ => None
+        }
+      }
+    }.toMap
+  }
+}
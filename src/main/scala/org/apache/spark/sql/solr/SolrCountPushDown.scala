@@ -0,0 +1,37 @@
+package org.apache.spark.sql.solr
+
+import com.typesafe.scalalogging.LazyLogging
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.expressions.aggregate.{AggregateExpression, Count}
+import org.apache.spark.sql.catalyst.expressions.{Alias, Literal, NamedExpression}
+import org.apache.spark.sql.catalyst.plans.logical.{Aggregate, LocalRelation, LogicalPlan}
+import org.apache.spark.sql.catalyst.rules.Rule
+
+/**
+ * Replaces a global COUNT(*) over a Solr relation, optionally filtered by predicates that can all be
+ * pushed down to Solr, with the number of matching docs reported by Solr, so no docs are read at all.
+ */
+object SolrCountPushDown extends Rule[LogicalPlan] with LazyLogging {
+
+  override def apply(plan: LogicalPlan): LogicalPlan = plan transform {
+    case aggregate @ Aggregate(Nil, aggregates, child) if aggregates.nonEmpty && aggregates.forall(isCountStar) =>
+      SolrPushDown.solrScan(child).flatMap { case (relation, conditions) =>
+        SolrPushDown.translateFilters(conditions).flatMap(relation.countPushDown)
+      } match {
+        case Some(count) => LocalRelation(aggregate.output, Seq(InternalRow(aggregates.map(_ => count): _*)))
+        case None => aggregate
+      }
+  }
+
+  // COUNT(*) / COUNT(1), which count every row
+  def isCountStar(expr: NamedExpression): Boolean = expr match {
+    case Alias(AggregateExpression(Count(children), _, false, _), _) => countsEveryRow(children)
+    case _ => false
+  }
+
+  def countsEveryRow(children: Seq[_]): Boolean =
+    children.nonEmpty && children.forall {
+      case literal: Literal => literal.value != null
+      case _ => false
+    }
+}
@@ -0,0 +1,34 @@
+package org.apache.spark.sql.solr
+
+import com.lucidworks.spark.SolrRelation
+import com.typesafe.scalalogging.LazyLogging
+import org.apache.spark.sql.catalyst.expressions.IntegerLiteral
+import org.apache.spark.sql.catalyst.plans.logical.{LocalLimit, LogicalPlan}
+import org.apache.spark.sql.catalyst.rules.Rule
+import org.apache.spark.sql.execution.datasources.LogicalRelation
+
+/**
+ * Caps the number of docs each partition of a Solr scan reads under a LIMIT without an ORDER BY, e.g. for
+ * `df.show()` or `df.take(n)`, so previews don't page through (or export) whole shards. Only applies when Solr
+ * evaluates all filters of the scan exactly, as rows Spark filters out afterwards would make for fewer rows than
+ * the limit.
+ */
+object SolrLimitPushDown extends Rule[LogicalPlan] with LazyLogging {
+
+  override def apply(plan: LogicalPlan): LogicalPlan = plan transform {
+    case limit @ LocalLimit(IntegerLiteral(n), child) if n >= 0 =>
+      (for {
+        (relation, conditions) <- SolrPushDown.solrScan(child)
+        if relation.scansDocs && relation.rowLimit.forall(_ > n)
+        filters <- SolrPushDown.translateFilters(conditions)
+        if relation.unhandledFilters(filters).isEmpty
+      } yield {
+        logger.info(s"Reading at most $n docs from each partition of ${relation.collection}")
+        val limited = relation.withRowLimit(n)
+        limit.copy(child = child transform {
+          case l @ LogicalRelation(r: SolrRelation, _, _) if r eq relation =>
+            LogicalRelation(limited, Some(l.output), l.metastoreTableIdentifier)
+        })
+      }).getOrElse(limit)
+  }
+}
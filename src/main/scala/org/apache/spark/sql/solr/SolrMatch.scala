@@ -0,0 +1,45 @@
+package org.apache.spark.sql.solr
+
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.analysis.TypeCheckResult
+import org.apache.spark.sql.catalyst.expressions.codegen.CodegenFallback
+import org.apache.spark.sql.catalyst.expressions.{BinaryExpression, Expression, ImplicitCastInputTypes, Predicate}
+import org.apache.spark.sql.types.{AbstractDataType, AnyDataType, StringType}
+
+/**
+ * solr_match(column, query): whether the doc matches a Lucene query searching the column by default, e.g.
+ * `WHERE solr_match(body, 'outage AND "data center"')`. Only Solr can evaluate it: SolrMatchPushDown turns it
+ * into a clause of the query of the Solr scan of the column, which also makes it count towards the `score`
+ * column (see the include_score option).
+ */
+case class SolrMatch(field: Expression, query: Expression)
+  extends BinaryExpression with Predicate with ImplicitCastInputTypes with CodegenFallback {
+
+  override def left: Expression = field
+  override def right: Expression = query
+  override def inputTypes: Seq[AbstractDataType] = Seq(AnyDataType, StringType)
+  override def nullable: Boolean = false
+  override def prettyName: String = "solr_match"
+
+  override def checkInputDataTypes(): TypeCheckResult = {
+    super.checkInputDataTypes() match {
+      case TypeCheckResult.TypeCheckSuccess if !query.foldable || query.eval() == null =>
+        TypeCheckResult.TypeCheckFailure(s"The query of $prettyName must be a constant string")
+      case result => result
+    }
+  }
+
+  def queryString: String = query.eval().toString
+
+  override def eval(input: InternalRow): Any =
+    throw new UnsupportedOperationException(s"$prettyName($field, '$queryString') can only filter the columns of " +
+      "a Solr table directly, not in a disjunction, nor after a join or aggregation")
+}
+
+object SolrMatch {
+
+  val builder: Seq[Expression] => Expression = {
+    case Seq(field, query) => SolrMatch(field, query)
+    case args => throw new IllegalArgumentException(s"solr_match takes a column and a query, got ${args.size} arguments")
+  }
+}
@@ -0,0 +1,42 @@
+package org.apache.spark.sql.solr
+
+import com.lucidworks.spark.SolrRelation
+import com.lucidworks.spark.util.SolrRelationUtil
+import com.typesafe.scalalogging.LazyLogging
+import org.apache.spark.sql.catalyst.expressions.{And, AttributeReference, Expression, PredicateHelper}
+import org.apache.spark.sql.catalyst.plans.logical.{Filter, LogicalPlan}
+import org.apache.spark.sql.catalyst.rules.Rule
+import org.apache.spark.sql.execution.datasources.LogicalRelation
+
+/**
+ * Moves solr_match conditions on the columns of a Solr relation into the query of its scan, so the inverted index
+ * finds the matching docs instead of Spark filtering all docs (see SolrMatch).
+ */
+object SolrMatchPushDown extends Rule[LogicalPlan] with PredicateHelper with LazyLogging {
+
+  override def apply(plan: LogicalPlan): LogicalPlan = plan transform {
+    case filter @ Filter(condition, child) if condition.find(_.isInstanceOf[SolrMatch]).isDefined =>
+      SolrPushDown.solrScan(child).filter(_._1.scansDocs).map(_._1).flatMap(pushDown(_, condition, child))
+        .getOrElse(filter)
+  }
+
+  private def pushDown(relation: SolrRelation, condition: Expression, child: LogicalPlan): Option[LogicalPlan] = {
+    val (matches, others) = splitConjunctivePredicates(condition).partition {
+      case m @ SolrMatch(a: AttributeReference, _) => m.resolved && child.outputSet.contains(a)
+      case _ => false
+    }
+    if (matches.isEmpty) return None
+
+    val schema = relation.baseSchema.get
+    val matchQueries = matches.collect { case m @ SolrMatch(a: AttributeReference, _) =>
+      (SolrRelationUtil.attributeToFieldName(a.name, schema), m.queryString)
+    }
+    logger.info(s"Adding ${matchQueries.mkString(", ")} to the query of ${relation.collection}")
+    val matched = relation.withMatchQueries(matchQueries)
+    val scan = child transform {
+      case l @ LogicalRelation(r: SolrRelation, _, _) if r eq relation =>
+        LogicalRelation(matched, Some(l.output), l.metastoreTableIdentifier)
+    }
+    Some(if (others.isEmpty) scan else Filter(others.reduce(And), scan))
+  }
+}
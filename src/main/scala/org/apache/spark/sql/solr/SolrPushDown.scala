@@ -0,0 +1,65 @@
+package org.apache.spark.sql.solr
+
+import com.lucidworks.spark.SolrRelation
+import org.apache.spark.sql.SparkSession
+import org.apache.spark.sql.catalyst.expressions.{Attribute, Expression, PredicateHelper}
+import org.apache.spark.sql.catalyst.plans.logical.{Filter, LogicalPlan, Project}
+import org.apache.spark.sql.execution.datasources.{DataSourceStrategy, LogicalRelation}
+import org.apache.spark.sql.sources
+
+/**
+ * Installs the optimizer rules and planner strategies that answer queries over Solr relations with Solr
+ * requests other than reading all matching docs, and the functions they recognize.
+ */
+object SolrPushDown extends PredicateHelper {
+
+  def register(sparkSession: SparkSession): Unit = synchronized {
+    val experimental = sparkSession.experimental
+    // before the count push-down, which can't count the matches of solr_match conditions left in filters
+    if (!experimental.extraOptimizations.contains(SolrMatchPushDown)) {
+      experimental.extraOptimizations = experimental.extraOptimizations :+ SolrMatchPushDown
+    }
+    if (!experimental.extraOptimizations.contains(SolrCountPushDown)) {
+      experimental.extraOptimizations = experimental.extraOptimizations :+ SolrCountPushDown
+    }
+    if (!experimental.extraOptimizations.contains(SolrSemiJoinPushDown)) {
+      experimental.extraOptimizations = experimental.extraOptimizations :+ SolrSemiJoinPushDown
+    }
+    if (!experimental.extraOptimizations.contains(SolrLimitPushDown)) {
+      experimental.extraOptimizations = experimental.extraOptimizations :+ SolrLimitPushDown
+    }
+    if (!experimental.extraStrategies.contains(SolrAggregatePushDown)) {
+      experimental.extraStrategies = experimental.extraStrategies :+ SolrAggregatePushDown
+    }
+    if (!experimental.extraStrategies.contains(SolrTopKPushDown)) {
+      experimental.extraStrategies = experimental.extraStrategies :+ SolrTopKPushDown
+    }
+    val functionRegistry = sparkSession.sessionState.functionRegistry
+    if (!functionRegistry.functionExists("date_trunc")) {
+      functionRegistry.registerFunction("date_trunc", DateTrunc.builder)
+    }
+    if (!functionRegistry.functionExists("solr_match")) {
+      functionRegistry.registerFunction("solr_match", SolrMatch.builder)
+    }
+  }
+
+  /**
+   * The Solr relation under a chain of filters and plain column projections, and the conditions of the filters.
+   */
+  def solrScan(plan: LogicalPlan, conditions: Seq[Expression] = Nil): Option[(SolrRelation, Seq[Expression])] =
+    plan match {
+      case LogicalRelation(relation: SolrRelation, _, _) => Some((relation, conditions))
+      case Project(projectList, child) if projectList.forall(_.isInstanceOf[Attribute]) => solrScan(child, conditions)
+      case Filter(condition, child) if condition.deterministic =>
+        solrScan(child, conditions ++ splitConjunctivePredicates(condition))
+      case _ => None
+    }
+
+  /**
+   * The data source filters for the conditions, if they can all be translated.
+   */
+  def translateFilters(conditions: Seq[Expression]): Option[Array[sources.Filter]] = {
+    val filters = conditions.map(DataSourceStrategy.translateFilter)
+    if (filters.forall(_.isDefined)) Some(filters.flatten.toArray) else None
+  }
+}
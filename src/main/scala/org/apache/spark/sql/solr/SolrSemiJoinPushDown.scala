@@ -0,0 +1,93 @@
+package org.apache.spark.sql.solr
+
+import com.lucidworks.spark.SolrRelation
+import com.lucidworks.spark.util.QueryConstants._
+import com.typesafe.scalalogging.LazyLogging
+import org.apache.spark.sql.{Dataset, sources}
+import org.apache.spark.sql.catalyst.expressions.{Alias, AttributeReference, EqualTo, Expression, IsNotNull, Literal, PredicateHelper}
+import org.apache.spark.sql.catalyst.plans.{Inner, JoinType, LeftOuter, LeftSemi, RightOuter}
+import org.apache.spark.sql.catalyst.plans.logical.{Distinct, Filter, Join, Limit, LogicalPlan, Project}
+import org.apache.spark.sql.catalyst.rules.Rule
+import org.apache.spark.sql.execution.datasources.LogicalRelation
+import org.apache.spark.sql.types.{DataType, IntegerType, LongType, StringType}
+
+/**
+ * Turns a join of a Solr relation with a small plan (estimated below the broadcast join threshold) on an equality
+ * of a Solr field into indexed lookups: the distinct join keys of the small side are collected and the Solr scan
+ * only reads the docs with one of them, using `{!terms}` filter queries (see TermsFilter).
+ *
+ * Only fields whose indexed terms compare like the Spark values (strings, not analyzed text, and integers) are
+ * filtered, as a `{!terms}` filter on any other field could drop docs the join would have matched.
+ *
+ * The keys are collected when the query is optimized, by running a Spark job over the small side: so a DataFrame
+ * that is executed repeatedly keeps using the keys of the small side at that time, and even explaining a query
+ * runs that job.
+ */
+object SolrSemiJoinPushDown extends Rule[LogicalPlan] with PredicateHelper with LazyLogging {
+
+  val KEY_TYPES: Set[DataType] = Set(StringType, LongType, IntegerType)
+
+  val KEY_FIELD_CLASSES: Set[String] = Set("solr.StrField", "solr.TrieIntField", "solr.TrieLongField")
+
+  override def apply(plan: LogicalPlan): LogicalPlan = plan transform {
+    case join @ Join(left, right, joinType, Some(condition)) =>
+      val filteredLeft = if (filtersLeft(joinType)) withKeysOf(left, right, condition) else None
+      val filteredRight = if (filtersRight(joinType)) withKeysOf(right, left, condition) else None
+      if (filteredLeft.isEmpty && filteredRight.isEmpty) join
+      else join.copy(left = filteredLeft.getOrElse(left), right = filteredRight.getOrElse(right))
+  }
+
+  // rows of the side without a match in the other side don't make it into the result
+  private def filtersLeft(joinType: JoinType): Boolean = joinType match {
+    case Inner | LeftSemi | RightOuter => true
+    case _ => false
+  }
+
+  private def filtersRight(joinType: JoinType): Boolean = joinType match {
+    case Inner | LeftOuter => true
+    case _ => false
+  }
+
+  private def withKeysOf(solrSide: LogicalPlan, keySide: LogicalPlan, condition: Expression): Option[LogicalPlan] = {
+    val (relation, _) = SolrPushDown.solrScan(solrSide).getOrElse(return None)
+    val maxKeys = relation.conf.semiJoinMaxKeys.getOrElse(DEFAULT_SEMI_JOIN_MAX_KEYS)
+    if (maxKeys <= 0 || relation.termsFilter.isDefined || relation.conf.escapeFieldNames.getOrElse(false)) return None
+    if (!relation.scansDocs) return None
+
+    val threshold = relation.sparkSession.sessionState.conf.autoBroadcastJoinThreshold
+    if (threshold < 0 || keySide.statistics.sizeInBytes > threshold) return None
+
+    val (field, keyExpression) = splitConjunctivePredicates(condition).collectFirst {
+      case EqualTo(a: AttributeReference, e) if isJoinKey(a, e, solrSide, keySide) && isKeyField(relation, a) => (a, e)
+      case EqualTo(e, a: AttributeReference) if isJoinKey(a, e, solrSide, keySide) && isKeyField(relation, a) => (a, e)
+    }.getOrElse(return None)
+
+    val keysPlan = Limit(Literal(maxKeys + 1),
+      Distinct(Project(Seq(Alias(keyExpression, "key")()), Filter(IsNotNull(keyExpression), keySide))))
+    val keys = Dataset.ofRows(relation.sparkSession, keysPlan).collect().map(_.get(0).toString)
+    if (keys.length > maxKeys) {
+      logger.info(s"Not filtering ${relation.collection} by the keys of the other side of the join, it has more " +
+        s"than $maxKeys distinct ${field.name} keys")
+      return None
+    }
+
+    logger.info(s"Filtering ${relation.collection} by the ${keys.length} distinct ${field.name} keys of the other side of a join")
+    val filtered = relation.withTermsFilter(field.name, keys)
+    Some(solrSide transform {
+      case l @ LogicalRelation(r: SolrRelation, _, _) if r eq relation =>
+        LogicalRelation(filtered, Some(l.output), l.metastoreTableIdentifier)
+    })
+  }
+
+  private def isJoinKey(a: AttributeReference, e: Expression, solrSide: LogicalPlan, keySide: LogicalPlan): Boolean =
+    KEY_TYPES.contains(a.dataType) && a.dataType == e.dataType && e.deterministic &&
+      solrSide.outputSet.contains(a) && e.references.nonEmpty && e.references.subsetOf(keySide.outputSet)
+
+  // a single-valued field the terms query parser looks up exactly like Spark compares the keys
+  private def isKeyField(relation: SolrRelation, a: AttributeReference): Boolean = {
+    val schema = relation.baseSchema.get
+    schema.fields.find(_.name == a.name).exists(field =>
+      field.metadata.contains("class") && KEY_FIELD_CLASSES.contains(field.metadata.getString("class"))) &&
+      relation.unhandledFilters(Array(sources.In(a.name, Array.empty))).isEmpty
+  }
+}
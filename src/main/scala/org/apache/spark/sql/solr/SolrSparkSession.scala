@@ -25,6 +25,8 @@ class SolrSparkSession(
   var cachedSQLQueries: Map[String, String] = Map.empty
   var tableToResource : Map[String, SecuredResource] = Map.empty
 
+  SolrPushDown.register(this)
+
   override lazy val catalog = new SolrSessionCatalog(this)
   override def sql(sqlText: String): DataFrame = {
     // process the statement and check for sub-queries
@@ -0,0 +1,111 @@
+package org.apache.spark.sql.solr
+
+import com.lucidworks.spark.SolrRelation
+import com.lucidworks.spark.util.QueryConstants._
+import com.lucidworks.spark.util.{SolrRelationUtil, SolrRowConverter}
+import com.typesafe.scalalogging.LazyLogging
+import org.apache.solr.client.solrj.SolrQuery
+import org.apache.solr.client.solrj.SolrQuery.SortClause
+import org.apache.spark.rdd.RDD
+import org.apache.spark.sql.Strategy
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.expressions.{Ascending, Attribute, AttributeReference, IntegerLiteral, SortOrder, UnsafeProjection}
+import org.apache.spark.sql.catalyst.plans.logical.{Limit, LogicalPlan, Project, ReturnAnswer, Sort}
+import org.apache.spark.sql.execution.{LeafExecNode, SparkPlan}
+import org.apache.spark.sql.types.{ArrayType, StructType}
+
+import scala.collection.JavaConverters._
+
+/**
+ * Plans `ORDER BY ... LIMIT k` over a Solr relation, optionally filtered by predicates that can all be pushed
+ * down exactly, as a single distributed query for the top k docs instead of reading and sorting all matching docs.
+ *
+ * Only sorts by the score column or by single-valued fields with docValues are pushed down. Docs without a value
+ * are sorted like Spark sorts nulls: first in ascending order, last in descending order.
+ */
+object SolrTopKPushDown extends Strategy with LazyLogging {
+
+  // sortable fields whose values Solr orders like Spark
+  val SORTABLE_FIELD_CLASSES: Set[String] = SolrRelationUtil.TERMS_FIELD_CLASSES
+
+  override def apply(plan: LogicalPlan): Seq[SparkPlan] = plan match {
+    case ReturnAnswer(rootPlan) => topK(rootPlan).toSeq
+    case _ => topK(plan).toSeq
+  }
+
+  private def topK(plan: LogicalPlan): Option[SparkPlan] = plan match {
+    case Limit(IntegerLiteral(limit), Sort(order, true, child)) =>
+      pushDown(limit, order, child.output, child)
+    case Limit(IntegerLiteral(limit), Project(projectList, Sort(order, true, child)))
+        if projectList.forall(_.isInstanceOf[Attribute]) =>
+      pushDown(limit, order, projectList.map(_.toAttribute), child)
+    case _ => None
+  }
+
+  private def pushDown(limit: Int, order: Seq[SortOrder], output: Seq[Attribute], child: LogicalPlan)
+    : Option[SparkPlan] = {
+    for {
+      (relation, conditions) <- SolrPushDown.solrScan(child)
+      maxRows = relation.conf.topKMaxRows.getOrElse(DEFAULT_TOP_K_MAX_ROWS)
+      if limit > 0 && limit <= maxRows && !relation.conf.escapeFieldNames.getOrElse(false)
+      sorts <- sortClauses(relation, order)
+      filters <- SolrPushDown.translateFilters(conditions)
+      query <- relation.pushDownQuery(filters)
+    } yield {
+      query.setRows(limit)
+      query.setSorts(sorts.asJava)
+      val fields = output.map(_.name).filterNot(SolrRelationUtil.isScoreField(_, relation.baseSchema.get))
+      query.setFields(if (fields.isEmpty) relation.solrRDD.uniqueKey else fields.mkString(","))
+      if (output.exists(a => SolrRelationUtil.isScoreField(a.name, relation.baseSchema.get))) query.addField("score")
+      logger.info(s"Pushing down top $limit rows of ${relation.collection} ordered by ${order.mkString(", ")}")
+      SolrTopKExec(output, relation, query)
+    }
+  }
+
+  private def sortClauses(relation: SolrRelation, order: Seq[SortOrder]): Option[Seq[SortClause]] = {
+    val schema = relation.baseSchema.get
+    val attributes = order.map(_.child).collect { case a: AttributeReference => a }
+    if (attributes.size != order.size) return None
+
+    val fields = attributes.map(_.name).filterNot(SolrRelationUtil.isScoreField(_, schema))
+    if (!fields.forall(field => schema.fieldNames.contains(field) && !schema(field).dataType.isInstanceOf[ArrayType] &&
+        schema(field).metadata.contains("class") && SORTABLE_FIELD_CLASSES.contains(schema(field).metadata.getString("class")))) {
+      return None
+    }
+    if (fields.nonEmpty) {
+      val fieldMeta = relation.fieldMeta(fields.toSet)
+      if (!fields.forall(field => fieldMeta.get(field).exists(meta =>
+          meta.isDocValues.getOrElse(false) && !meta.isMultiValued.getOrElse(true)))) {
+        return None
+      }
+    }
+
+    Some(order.zip(attributes).flatMap { case (sortOrder, a) =>
+      val solrOrder = if (sortOrder.direction == Ascending) SolrQuery.ORDER.asc else SolrQuery.ORDER.desc
+      if (SolrRelationUtil.isScoreField(a.name, schema)) {
+        Seq(new SortClause("score", solrOrder))
+      } else {
+        // docs without a value (0) first when ascending, last when descending
+        Seq(new SortClause(s"if(exists(${a.name}),1,0)", solrOrder), new SortClause(a.name, solrOrder))
+      }
+    })
+  }
+}
+
+/**
+ * Sends the query for the top rows of a pushed down `ORDER BY ... LIMIT` and returns them in order, in a single
+ * partition.
+ */
+case class SolrTopKExec(output: Seq[Attribute], relation: SolrRelation, query: SolrQuery) extends LeafExecNode {
+
+  override def simpleString: String =
+    s"SolrTopK ${relation.collection} rows=${query.getRows} sort=${query.getSortField} ${output.mkString("[", ",", "]")}"
+
+  protected override def doExecute(): RDD[InternalRow] = {
+    val docs = relation.querySolr(query).getResults.asScala
+    val converter = new SolrRowConverter(StructType(output.map(a => relation.schema(a.name))))
+    val projection = UnsafeProjection.create(schema)
+    val rows = docs.map(doc => projection(converter.toInternalRow(doc)).copy())
+    sparkContext.parallelize(rows, 1)
+  }
+}
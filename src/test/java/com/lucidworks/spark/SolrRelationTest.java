@@ -330,6 +330,17 @@ public class SolrRelationTest extends RDDProcessorTestBase {
       count = df.filter(df.col("field1_s").isNull()).count();
       assertCount(0, count, "field1_s IS NULL");
 
+      count = df.filter(df.col("field1_s").isin("a", "c", "a,b")).count();
+      assertCount(3, count, "field1_s IN (a, c, 'a,b')");
+
+      assertEquals(3, df.filter(df.col("field1_s").isin("a", "c")).collectAsList().size());
+
+      count = df.filter(df.col("field3_i").isin(1000, 3000)).count();
+      assertCount(2, count, "field3_i IN (1000, 3000)");
+
+      count = df.filter(df.col("field3_i").isin(1000, 3000).or(df.col("field1_s").equalTo("b"))).count();
+      assertCount(3, count, "field3_i IN (1000, 3000) OR field1_s == b");
+
       // write to another collection to test writes
       String confName = "testConfig";
       File confDir = new File("src/test/resources/conf");
@@ -119,6 +119,43 @@ public class ShardSplitStrategyTest extends RDDProcessorTestBase {
     }
   }
 
+  @Test
+  public void testHashRangeSplitStrategy() throws Exception {
+    String collection = "testHashRangeSplit";
+    try {
+      String zkHost = cluster.getZkServer().getZkAddress();
+      String[] inputDocs = new String[500];
+      for (int d=0; d < inputDocs.length; d++) {
+        inputDocs[d] = "d"+d+",foo,bar,1,[a;b],[1;2]";
+      }
+      buildCollection(zkHost, collection, inputDocs, 1);
+      String shardUrl = SolrRDD$.MODULE$.randomReplicaLocation(SolrSupport.buildShardList(zkHost, collection).head());
+
+      SolrQuery solrQuery = new SolrQuery("*:*");
+      solrQuery.setRows(inputDocs.length);
+      for (int desiredSplits : new int[] { 1, 4, 7 }) {
+        List<ShardSplit> splits =
+            new HashRangeShardSplitStrategy().getSplits(shardUrl, solrQuery, "_version_", desiredSplits);
+        assertEquals(desiredSplits, splits.size());
+
+        // every doc is in exactly one split
+        Map<String,String> docIdSet = new HashMap<String,String>();
+        for (ShardSplit split : splits) {
+          Option<QueryResponse> qr =
+              SolrQuerySupport.querySolr(SolrSupport.getHttpSolrClient(shardUrl), split.getSplitQuery(), 0, null);
+          assertTrue(qr.isDefined());
+          for (SolrDocument doc : qr.get().getResults()) {
+            String docId = (String)doc.getFirstValue("id");
+            assertNull("Doc " + docId + " is in more than one split", docIdSet.put(docId, split.getSplitFilterQuery()));
+          }
+        }
+        assertEquals(inputDocs.length, docIdSet.size());
+      }
+    } finally {
+      deleteCollection(collection);
+    }
+  }
+
   protected void verifySplits(SolrRDD solrRDD,
                               int expNumDocs,
                               String shardUrl,
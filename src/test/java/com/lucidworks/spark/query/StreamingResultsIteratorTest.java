@@ -12,7 +12,9 @@ import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Random;
 
 import static org.junit.Assert.*;
@@ -101,4 +103,73 @@ public class StreamingResultsIteratorTest extends RDDProcessorTestBase {
 
     //assertTrue("Iterator didn't return all docs! Num found: "+numDocsFound, numDocs == numDocsFound);
   }
+
+  @Test
+  public void testPrefetchingIteratorReadsAllDocs() throws Exception {
+    String zkHost = cluster.getZkServer().getZkAddress();
+    String testCollection = "testPrefetchingResultsIterator";
+    int numDocs = 53;
+    buildCollection(zkHost, testCollection, numDocs, 1);
+    cloudSolrServer.setDefaultCollection(testCollection);
+
+    SolrQuery solrQuery = new SolrQuery("*:*");
+    solrQuery.setFields("id");
+    solrQuery.setRows(5);
+    solrQuery.setSort(new SolrQuery.SortClause("id", "asc"));
+    solrQuery.set("collection", testCollection);
+
+    int maxQueuedDocs = 7;
+    StreamingResultsIterator sri = new StreamingResultsIterator(cloudSolrServer, solrQuery, "*", 2, maxQueuedDocs);
+    assertTrue(sri.isPrefetching());
+
+    Set<String> ids = new HashSet<String>();
+    while (sri.hasNext()) {
+      SolrDocument next = sri.next();
+      assertNotNull(next);
+      assertTrue("Duplicate doc "+next.get("id"), ids.add((String)next.getFirstValue("id")));
+      // slow consumer so the producer has to stall
+      Thread.sleep(2);
+    }
+    sri.close();
+
+    assertEquals(numDocs, ids.size());
+    assertEquals(numDocs, sri.getNumDocs());
+    assertTrue("Queue exceeded its bound: "+sri.getPrefetchStats(), sri.getMaxQueueOccupancy() <= maxQueuedDocs);
+  }
+
+  @Test
+  public void testHedgedPageRequests() throws Exception {
+    String zkHost = cluster.getZkServer().getZkAddress();
+    String testCollection = "testHedgedResultsIterator";
+    int numDocs = 37;
+    buildCollection(zkHost, testCollection, numDocs, 1);
+    cloudSolrServer.setDefaultCollection(testCollection);
+
+    SolrQuery solrQuery = new SolrQuery("*:*");
+    solrQuery.setFields("id");
+    solrQuery.setRows(4);
+    solrQuery.setSort(new SolrQuery.SortClause("id", "asc"));
+    solrQuery.set("collection", testCollection);
+
+    // make every page look slow so that hedges are sent once the budget allows
+    String primaryUrl = "primary-" + testCollection;
+    for (int i = 0; i < ReplicaLatencyTracker.MIN_SAMPLES; i++)
+      ReplicaLatencyTracker.record(primaryUrl, 0L);
+    String hedgeUrl = cluster.getJettySolrRunners().get(0).getBaseUrl() + "/" + testCollection;
+
+    StreamingResultsIterator sri = new StreamingResultsIterator(cloudSolrServer, solrQuery, "*");
+    HedgedPageFetcher fetcher =
+        new HedgedPageFetcher(cloudSolrServer, primaryUrl, Collections.singletonList(hedgeUrl), 50, 1.0, 0L);
+    sri.setHedgedPageFetcher(fetcher);
+
+    Set<String> ids = new HashSet<String>();
+    while (sri.hasNext()) {
+      SolrDocument next = sri.next();
+      assertTrue("Duplicate doc "+next.get("id"), ids.add((String)next.getFirstValue("id")));
+    }
+    sri.close();
+
+    assertEquals(numDocs, ids.size());
+    assertEquals(numDocs, sri.getNumDocs());
+  }
 }
@@ -2,6 +2,7 @@ package com.lucidworks.spark.query.sql;
 
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
@@ -28,4 +29,14 @@ public class SolrSQLSupportTest {
     assertNotNull(cols);
     assertTrue(cols.size() == 0);
   }
+
+  @Test
+  public void testGroupByFieldsParse() throws Exception {
+    assertEquals(Arrays.asList("movie_id", "user_id"), SolrSQLSupport.parseGroupByFields(
+        "SELECT movie_id, user_id, COUNT(*) as agg_count FROM ratings WHERE rating > 3 " +
+            "GROUP BY movie_id, user_id HAVING COUNT(*) > 1 ORDER BY agg_count desc LIMIT 10"));
+    assertEquals(Arrays.asList("movie_id"), SolrSQLSupport.parseGroupByFields(
+        "SELECT DISTINCT movie_id FROM ratings"));
+    assertTrue(SolrSQLSupport.parseGroupByFields("SELECT movie_id, rating FROM ratings LIMIT 10").isEmpty());
+  }
 }
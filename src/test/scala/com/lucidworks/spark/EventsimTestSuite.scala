@@ -2,12 +2,16 @@ package com.lucidworks.spark
 
 import java.util.Collections
 
-import com.lucidworks.spark.rdd.SolrRDD
+import com.lucidworks.spark.rdd.{SolrCountRDD, SolrRDD}
 import com.lucidworks.spark.util.ConfigurationConstants._
 import com.lucidworks.spark.util.SolrRelationUtil
 import org.apache.solr.client.solrj.SolrQuery
 import org.apache.solr.client.solrj.SolrQuery.SortClause
 import org.apache.spark.sql.DataFrame
+import org.apache.spark.sql.catalyst.plans.logical.LocalRelation
+import org.apache.spark.sql.execution.datasources.LogicalRelation
+import org.apache.spark.sql.functions.{col, count, lit, max}
+import org.apache.spark.sql.solr.{SolrFacetAggregateExec, SolrTopKExec}
 
 import scala.collection.JavaConverters._
 
@@ -228,12 +232,167 @@ class EventsimTestSuite extends EventsimBuilder {
     assert(solrRelation.query.getSorts == Collections.singletonList(new SortClause("userId", SolrQuery.ORDER.asc)))
   }
 
+  test("Copies of a relation keep what it resolved and the state set on it") {
+    val options = Map(
+      SOLR_ZK_HOST_PARAM -> zkHost,
+      SOLR_COLLECTION_PARAM -> collectionName
+    )
+    val solrRelation = new SolrRelation(options, None, sparkSession)
+    val limited = solrRelation.withRowLimit(5)
+    val matched = limited.withMatchQueries(Seq("artist" -> "Coldplay"))
+    assert(matched.solrRDD eq solrRelation.solrRDD)
+    assert(matched.querySchema eq solrRelation.querySchema)
+    assert(matched.rowLimit == Some(5))
+    assert(solrRelation.rowLimit.isEmpty)
+    assert(matched.query.getQuery.contains("Coldplay"))
+    assert(!solrRelation.query.getQuery.contains("Coldplay"))
+  }
+
+  test("Counts are pushed down to Solr") {
+    val df = sparkSession.read.format("solr")
+      .option(SOLR_ZK_HOST_PARAM, zkHost)
+      .option(SOLR_COLLECTION_PARAM, collectionName)
+      .load()
+    assert(df.groupBy().count().queryExecution.optimizedPlan.isInstanceOf[LocalRelation])
+    assert(df.count() == eventSimCount)
+
+    val filtered = df.filter(df("userId") === 93)
+    assert(filtered.groupBy().count().queryExecution.optimizedPlan.isInstanceOf[LocalRelation])
+    assert(filtered.count() == filtered.rdd.count())
+
+    // scans without any columns count docs per shard
+    assert(df.select(lit(1)).collect().length == eventSimCount)
+    assert(new SolrCountRDD(sc, zkHost, collectionName, new SolrQuery("*:*")).count() == eventSimCount)
+
+    val notPushed = sparkSession.read.format("solr")
+      .option(SOLR_ZK_HOST_PARAM, zkHost)
+      .option(SOLR_COLLECTION_PARAM, collectionName)
+      .option(COUNT_PUSH_DOWN, "false")
+      .load()
+    assert(!notPushed.groupBy().count().queryExecution.optimizedPlan.isInstanceOf[LocalRelation])
+    assert(notPushed.count() == eventSimCount)
+  }
+
+  test("Group by aggregations are pushed down to Solr") {
+    def load(pushDown: Boolean): DataFrame = sparkSession.read.format("solr")
+      .option(SOLR_ZK_HOST_PARAM, zkHost)
+      .option(SOLR_COLLECTION_PARAM, collectionName)
+      .option(AGGREGATION_PUSH_DOWN, pushDown.toString)
+      .load()
+    def aggregate(df: DataFrame): DataFrame =
+      df.filter(df("userId") > 50).groupBy("userId").agg(count(lit(1)), count("userId"), max("userId"))
+
+    val pushed = aggregate(load(pushDown = true))
+    assert(pushed.queryExecution.sparkPlan.collect { case exec: SolrFacetAggregateExec => exec }.size == 1)
+    val notPushed = aggregate(load(pushDown = false))
+    assert(notPushed.queryExecution.sparkPlan.collect { case exec: SolrFacetAggregateExec => exec }.isEmpty)
+
+    val expected = notPushed.collect().map(_.toSeq).sortBy(_.head.toString).toList
+    assert(expected.nonEmpty)
+    assert(pushed.collect().map(_.toSeq).sortBy(_.head.toString).toList == expected)
+  }
+
+  test("Time bucketed rollups are pushed down to Solr as range facets") {
+    def rollup(pushDown: Boolean): DataFrame = {
+      sparkSession.read.format("solr")
+        .option(SOLR_ZK_HOST_PARAM, zkHost)
+        .option(SOLR_COLLECTION_PARAM, collectionName)
+        .option(AGGREGATION_PUSH_DOWN, pushDown.toString)
+        .load()
+        .createOrReplaceTempView("events")
+      sparkSession.sql("SELECT date_trunc('hour', ts) AS hour, count(*) AS events, max(userId) AS maxUserId " +
+        "FROM events WHERE ts >= CAST('2000-01-01 00:00:00' AS TIMESTAMP) GROUP BY date_trunc('hour', ts)")
+    }
+
+    val pushed = rollup(pushDown = true)
+    assert(pushed.queryExecution.sparkPlan.collect { case exec: SolrFacetAggregateExec => exec }.size == 1)
+    val notPushed = rollup(pushDown = false)
+    assert(notPushed.queryExecution.sparkPlan.collect { case exec: SolrFacetAggregateExec => exec }.isEmpty)
+
+    val expected = notPushed.collect().map(_.toSeq).sortBy(_.head.toString).toList
+    assert(expected.nonEmpty)
+    assert(pushed.collect().map(_.toSeq).sortBy(_.head.toString).toList == expected)
+  }
+
+  test("Joins with a small table only read the Solr docs with its keys") {
+    val df = sparkSession.read.format("solr")
+      .option(SOLR_ZK_HOST_PARAM, zkHost)
+      .option(SOLR_COLLECTION_PARAM, collectionName)
+      .load()
+    val users = sparkSession.createDataFrame(Seq(Tuple1(93L), Tuple1(94L), Tuple1(-1L))).toDF("uid")
+      .select(col("uid").cast(df.schema("userId").dataType).as("uid"))
+
+    val joined = df.join(users, df("userId") === users("uid"))
+    val termsFilters = joined.queryExecution.optimizedPlan.collect {
+      case LogicalRelation(relation: SolrRelation, _, _) => relation.termsFilter
+    }.flatten
+    assert(termsFilters.map(tf => (tf.field, tf.numValues)) == Seq(("userId", 3)))
+    assert(joined.count() == df.filter(df("userId").isin(93, 94)).count())
+  }
+
+  test("solr_match conditions are added to the query of the scan and scored") {
+    val df = sparkSession.read.format("solr")
+      .option(SOLR_ZK_HOST_PARAM, zkHost)
+      .option(SOLR_COLLECTION_PARAM, collectionName)
+      .option(INCLUDE_SCORE, "true")
+      .load()
+    df.createOrReplaceTempView("scored_events")
+
+    val matched = sparkSession.sql(
+      "SELECT artist, score FROM scored_events WHERE solr_match(artist, 'Interpol') AND userId IS NOT NULL")
+    val queries = matched.queryExecution.optimizedPlan.collect {
+      case LogicalRelation(relation: SolrRelation, _, _) => relation.query.getQuery
+    }
+    assert(queries == Seq("+_query_:\"{!lucene df=artist}Interpol\""))
+
+    val rows = matched.collect()
+    assert(rows.nonEmpty)
+    assert(rows.forall(row => row.getString(0).toLowerCase.contains("interpol") && row.getDouble(1) > 0))
+    assert(df.schema("score").nullable)
+  }
+
+  test("ORDER BY with LIMIT is answered by a single query for the top rows") {
+    def topK(maxRows: Int): DataFrame = {
+      val df = sparkSession.read.format("solr")
+        .option(SOLR_ZK_HOST_PARAM, zkHost)
+        .option(SOLR_COLLECTION_PARAM, collectionName)
+        .option(TOP_K_MAX_ROWS, maxRows.toString)
+        .load()
+      df.filter(df("userId") > 10).orderBy(df("length").desc, df("userId")).select("userId", "length").limit(10)
+    }
+
+    val pushed = topK(maxRows = 100)
+    assert(pushed.queryExecution.sparkPlan.collect { case exec: SolrTopKExec => exec }.size == 1)
+    val notPushed = topK(maxRows = 0)
+    assert(notPushed.queryExecution.sparkPlan.collect { case exec: SolrTopKExec => exec }.isEmpty)
+
+    val expected = notPushed.collect().map(_.toSeq).toList
+    assert(expected.size == 10)
+    assert(pushed.collect().map(_.toSeq).toList == expected)
+  }
+
+  test("Limits without an order cap the docs read by each partition") {
+    val df = sparkSession.read.format("solr")
+      .option(SOLR_ZK_HOST_PARAM, zkHost)
+      .option(SOLR_COLLECTION_PARAM, collectionName)
+      .load()
+    val limited = df.filter(df("userId") > 10).limit(5)
+    val rowLimits = limited.queryExecution.optimizedPlan.collect {
+      case LogicalRelation(relation: SolrRelation, _, _) => relation.rowLimit
+    }
+    assert(rowLimits == Seq(Some(5)))
+    val rows = limited.collect()
+    assert(rows.length == 5)
+  }
+
   def testCommons(solrRDD: SolrRDD): Unit = {
     val sparkCount = solrRDD.count()
 
     // assert counts
     assert(sparkCount == solrRDD.solrCount.toLong)
     assert(sparkCount == eventSimCount)
+    // count() is answered by Solr, so also check all docs are read
+    assert(solrRDD.map(_ => 1L).fold(0L)(_ + _) == eventSimCount)
   }
 
 }
@@ -0,0 +1,77 @@
+package com.lucidworks.spark
+
+import com.lucidworks.spark.query.ReplicaLatencyTracker
+import com.lucidworks.spark.rdd.SolrRDD
+import org.apache.solr.client.solrj.SolrQuery
+
+class ReplicaSelectionPolicySuite extends SparkSolrFunSuite {
+
+  val leader = SolrReplica(0, "core_node1", "http://rack1-host1:8983/solr/coll_shard1_replica1/", "rack1-host1:8983_solr", Array.empty, isLeader = true)
+  val replica2 = SolrReplica(1, "core_node2", "http://rack1-host2:8983/solr/coll_shard1_replica2/", "rack1-host2:8983_solr", Array.empty)
+  val replica3 = SolrReplica(2, "core_node3", "http://rack2-host3:8983/solr/coll_shard1_replica3/", "rack2-host3:8983_solr", Array.empty)
+  val replicas = List(leader, replica2, replica3)
+
+  test("Node URL of a replica") {
+    assert(leader.nodeUrl === "http://rack1-host1:8983/solr")
+    assert(ReplicaLatencyTracker.nodeUrl("http://host:8983/solr/core1") === "http://host:8983/solr")
+  }
+
+  test("Non-leader replicas are preferred, leader only as a last resort") {
+    (1 to 20).foreach { _ => assert(!NonLeaderReplicaPolicy.choose(replicas).replica.isLeader) }
+    assert(NonLeaderReplicaPolicy.choose(List(leader)).replica === leader)
+  }
+
+  test("Node affinity") {
+    val choice = ReplicaSelectionPolicy("affinity", Some("rack2-")).choose(replicas)
+    assert(choice.replica === replica3)
+    assert(choice.reason.contains("rack2-"))
+  }
+
+  test("Latency and overload policies use the per-node EWMA") {
+    ReplicaLatencyTracker.reset()
+    (1 to 5).foreach { _ =>
+      ReplicaLatencyTracker.recordRequest(leader.replicaUrl, 10L)
+      ReplicaLatencyTracker.recordRequest(replica2.replicaUrl, 400L)
+      ReplicaLatencyTracker.recordRequest(replica3.replicaUrl, 9000L)
+    }
+    assert(LatencyReplicaPolicy().choose(replicas).replica === leader)
+    val (notOverloaded, _) = ExcludeOverloadedReplicaPolicy(5000L).prefer(replicas)
+    assert(notOverloaded === List(leader, replica2))
+
+    val chained = ReplicaSelectionPolicy("exclude_overloaded,non_leader")
+    val choice = chained.choose(replicas)
+    assert(choice.replica === replica2)
+    assert(choice.reason.contains("exclude_overloaded") && choice.reason.contains("non_leader"))
+    ReplicaLatencyTracker.reset()
+  }
+
+  test("Latency policies are applied again with the executor's latencies") {
+    val partition = ShardRDDPartition(0, "*", SolrShard("shard1", replicas), new SolrQuery("*:*"), replica3)
+    ReplicaLatencyTracker.reset()
+    assert(SolrRDD.replicaForExecutor(partition, LatencyReplicaPolicy(), preferLocal = false) === replica3)
+    (1 to 5).foreach { _ =>
+      ReplicaLatencyTracker.recordRequest(leader.replicaUrl, 10L)
+      ReplicaLatencyTracker.recordRequest(replica3.replicaUrl, 9000L)
+    }
+    assert(SolrRDD.replicaForExecutor(partition, ExcludeOverloadedReplicaPolicy(5000L), preferLocal = false) !== replica3)
+    assert(SolrRDD.replicaForExecutor(partition, NonLeaderReplicaPolicy, preferLocal = false) === replica3)
+    ReplicaLatencyTracker.reset()
+  }
+
+  test("Abandoned requests count as no faster than the average") {
+    ReplicaLatencyTracker.reset()
+    ReplicaLatencyTracker.recordCensoredRequest(replica2.replicaUrl, 30L)
+    assert(ReplicaLatencyTracker.ewmaMs(replica2.replicaUrl) === 30d)
+    (1 to 5).foreach(_ => ReplicaLatencyTracker.recordRequest(replica2.replicaUrl, 400L))
+    val before = ReplicaLatencyTracker.ewmaMs(replica2.replicaUrl)
+    ReplicaLatencyTracker.recordCensoredRequest(replica2.replicaUrl, 30L)
+    assert(ReplicaLatencyTracker.ewmaMs(replica2.replicaUrl) >= before)
+    ReplicaLatencyTracker.reset()
+  }
+
+  test("Unknown policy names are rejected") {
+    intercept[IllegalArgumentException] {
+      ReplicaSelectionPolicy("fastest")
+    }
+  }
+}
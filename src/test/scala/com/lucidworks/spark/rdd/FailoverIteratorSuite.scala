@@ -0,0 +1,126 @@
+package com.lucidworks.spark.rdd
+
+import java.net.{ConnectException, SocketTimeoutException}
+
+import com.lucidworks.spark.query.StreamingResultsIterator
+import com.lucidworks.spark.{SolrReplica, SparkSolrFunSuite, SolrShard}
+import com.lucidworks.spark.util.SolrSupport
+import org.apache.solr.client.solrj.{SolrClient, SolrQuery, SolrRequest}
+import org.apache.solr.common.SolrDocument
+import org.apache.solr.common.params.CursorMarkParams
+import org.apache.solr.common.util.NamedList
+
+import scala.collection.mutable.ListBuffer
+
+class FailoverIteratorSuite extends SparkSolrFunSuite {
+
+  val replicas = List(
+    SolrReplica(0, "core_node1", "http://host1:8983/solr/coll_shard1_replica1/", "host1", Array.empty),
+    SolrReplica(1, "core_node2", "http://host2:8983/solr/coll_shard1_replica2/", "host2", Array.empty))
+  val shard = SolrShard("shard1", replicas)
+
+  // Serves docs 0 until numDocs, resuming after the given value, and fails once after failAfter docs
+  class TestFailoverIterator(numDocs: Int, failAfter: Int, maxFailovers: Int)
+    extends FailoverIterator[Int](0, shard, replicas.head, maxFailovers, 1L, 2L) {
+
+    val opened = ListBuffer.empty[(String, Option[ResumePoint])]
+    private var lastValue: Option[Int] = None
+
+    override protected def open(replica: SolrReplica, resumeFrom: Option[ResumePoint]): Iterator[Int] = {
+      opened += ((replica.replicaUrl, resumeFrom))
+      val start = resumeFrom.flatMap(_.afterValue).map(_.toInt + 1).getOrElse(0)
+      val shouldFail = opened.size == 1
+      (start until numDocs).iterator.map { i =>
+        if (shouldFail && i == failAfter) throw new RuntimeException(new ConnectException("Connection refused"))
+        i
+      }
+    }
+
+    override def next(): Int = {
+      val n = super.next()
+      lastValue = Some(n)
+      n
+    }
+
+    override protected def resumePoint(iter: Iterator[Int], docsReturned: Long, lastResume: Option[ResumePoint]) =
+      lastValue.map(v => ResumePoint(None, 0L, Some(v.toString)))
+  }
+
+  test("Resumes on another replica after a connection failure") {
+    val iter = new TestFailoverIterator(100, 42, 2)
+    val values = iter.toList
+    assert(values === (0 until 100).toList)
+    assert(iter.numFailovers === 1)
+    assert(iter.opened.size === 2)
+    assert(iter.opened(1)._1 === replicas(1).replicaUrl)
+    assert(iter.opened(1)._2 === Some(ResumePoint(None, 0L, Some("41"))))
+  }
+
+  // Serves docs 0 until numDocs by cursorMark ("*" or "c<offset>"), failing the request for failCursorMark if set
+  class CursorPagingClient(numDocs: Int, failCursorMark: Option[String]) extends SolrClient {
+    override def request(request: SolrRequest, collection: String): NamedList[AnyRef] = {
+      val params = request.getParams
+      val cursorMark = params.get(CursorMarkParams.CURSOR_MARK_PARAM)
+      if (failCursorMark.contains(cursorMark))
+        throw new RuntimeException(new SocketTimeoutException("Read timed out"))
+
+      val offset = if (cursorMark == CursorMarkParams.CURSOR_MARK_START) 0 else cursorMark.substring(1).toInt
+      val docs = offset until math.min(numDocs, offset + params.getInt("rows"))
+      val callback = request.getStreamingResponseCallback
+      callback.streamDocListInfo(numDocs, 0, null)
+      docs.foreach { i =>
+        val doc = new SolrDocument()
+        doc.setField("id", i)
+        callback.streamSolrDocument(doc)
+      }
+      val response = new NamedList[AnyRef]()
+      response.add(CursorMarkParams.CURSOR_MARK_NEXT, "c" + (offset + docs.size))
+      response
+    }
+
+    override def close(): Unit = {}
+  }
+
+  test("Resumes a cursorMark read that fails between two pages") {
+    val opened = ListBuffer.empty[Option[ResumePoint]]
+    val iter = new FailoverIterator[SolrDocument](0, shard, replicas.head, 2, 1L, 2L) {
+      override protected def open(replica: SolrReplica, resumeFrom: Option[ResumePoint]): Iterator[SolrDocument] = {
+        opened += resumeFrom
+        // the first replica fails to return the second page
+        val client = new CursorPagingClient(10, if (opened.size == 1) Some("c3") else None)
+        val query = new SolrQuery("*:*").setRows(3)
+        new ResultsIteratorAdapter(new StreamingResultsIterator(client, query,
+          resumeFrom.flatMap(_.cursorMark).getOrElse(CursorMarkParams.CURSOR_MARK_START)))
+      }
+
+      override protected def resumePoint(iter: Iterator[SolrDocument], docsReturned: Long, lastResume: Option[ResumePoint]) =
+        SolrRDD.underlying(iter) match {
+          case sri: StreamingResultsIterator => Some(SolrRDD.resumePoint(sri))
+          case _ => None
+        }
+    }
+
+    val ids = iter.map(_.getFirstValue("id").asInstanceOf[Int]).toList
+    assert(ids === (0 until 10).toList)
+    assert(iter.numFailovers === 1)
+    // the second page was never read, so the read resumes after the 3 docs of the first
+    assert(opened(1) === Some(ResumePoint(Some(CursorMarkParams.CURSOR_MARK_START), 3L, None)))
+  }
+
+  test("Gives up once failovers are exhausted") {
+    val iter = new TestFailoverIterator(100, 42, 0)
+    intercept[RuntimeException] {
+      iter.toList
+    }
+  }
+
+  test("Connection failures and backoff") {
+    assert(SolrSupport.isConnectionFailure(new RuntimeException(new java.net.SocketTimeoutException("Read timed out"))))
+    assert(!SolrSupport.isConnectionFailure(new IllegalStateException("bad request")))
+    (1 to 10).foreach { attempt =>
+      val delay = SolrSupport.backoffWithJitterMs(attempt, 100L, 5000L)
+      val cap = math.min(5000L, 100L << (attempt - 1))
+      assert(delay >= cap / 2 && delay <= cap)
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package com.lucidworks.spark.rdd
+
+import java.net.InetAddress
+
+import com.lucidworks.spark._
+import com.lucidworks.spark.query.ReplicaLatencyTracker
+import org.apache.solr.client.solrj.SolrQuery
+
+class ReplicaLocalitySuite extends SparkSolrFunSuite {
+
+  val replica1 = SolrReplica(0, "core_node1", "http://host1:8983/solr/coll_shard1_replica1/", "host1:8983_solr",
+    Array(InetAddress.getByAddress("host1", Array[Byte](10, 0, 0, 1))))
+  val replica2 = SolrReplica(1, "core_node2", "http://host2:8983/solr/coll_shard1_replica2/", "host2:8983_solr",
+    Array(InetAddress.getByAddress("host2", Array[Byte](10, 0, 0, 2))), isLeader = true)
+  val shard = SolrShard("shard1", List(replica1, replica2))
+  val partition = ShardRDDPartition(0, "*", shard, new SolrQuery("*:*"), replica1)
+
+  test("Replica hosts include the host name and addresses") {
+    assert(replica1.hosts === Seq("host1", "10.0.0.1"))
+  }
+
+  test("Reads from the replica on the executor's host") {
+    assert(SolrRDD.replicaForExecutor(partition, RandomReplicaPolicy, preferLocal = true, Set("host2")) === replica2)
+    assert(SolrRDD.replicaForExecutor(partition, RandomReplicaPolicy, preferLocal = true, Set("10.0.0.2")) === replica2)
+    assert(SolrRDD.replicaForExecutor(partition, RandomReplicaPolicy, preferLocal = true, Set("host3")) === replica1)
+    assert(SolrRDD.replicaForExecutor(partition, RandomReplicaPolicy, preferLocal = false, Set("host2")) === replica1)
+  }
+
+  test("Local replicas the policy rules out are not used") {
+    assert(SolrRDD.replicaForExecutor(partition, NonLeaderReplicaPolicy, preferLocal = true, Set("host2")) === replica1)
+  }
+
+  test("Latency policies are applied with the executor's latencies") {
+    ReplicaLatencyTracker.reset()
+    (1 to 5).foreach { _ =>
+      ReplicaLatencyTracker.recordRequest(replica1.replicaUrl, 9000L)
+      ReplicaLatencyTracker.recordRequest(replica2.replicaUrl, 10L)
+    }
+    assert(SolrRDD.replicaForExecutor(partition, LatencyReplicaPolicy(), preferLocal = false, Set.empty) === replica2)
+    assert(SolrRDD.replicaForExecutor(partition, ExcludeOverloadedReplicaPolicy(5000L), preferLocal = true, Set("host1")) === replica2)
+    assert(SolrRDD.replicaForExecutor(partition, ReplicaSelectionPolicy("non_leader,exclude_overloaded"),
+      preferLocal = true, Set("host3")) === replica1)
+    ReplicaLatencyTracker.reset()
+    assert(SolrRDD.replicaForExecutor(partition, LatencyReplicaPolicy(), preferLocal = true, Set("host1")) === replica1)
+  }
+}
@@ -0,0 +1,21 @@
+package com.lucidworks.spark.rdd
+
+import com.lucidworks.spark.{SparkSolrContextBuilder, SparkSolrFunSuite}
+
+class SolrRDDBuilderSuite extends SparkSolrFunSuite with SparkSolrContextBuilder {
+
+  test("Builder copies don't look anything up and share the collection metadata") {
+    val rdd = new SolrRDD("localhost:2181/no-such-solr", "collection1", sc)
+    val copy = rdd.query("*:*").select("id,name").rows(10).splitField("_version_").splitsPerShard(4)
+    assert(!rdd.metadata.isResolved)
+    assert(copy.metadata eq rdd.metadata)
+  }
+
+  test("Prefetch accumulators are only registered when prefetching") {
+    val rdd = new SolrRDD("localhost:2181/no-such-solr", "collection1", sc)
+    assert(rdd.prefetchMetrics.isEmpty)
+    val metrics = rdd.prefetchPages(2).prefetchMetrics
+    assert(metrics.isDefined)
+    assert(metrics.get.pagesFetched.name === Some("solr.prefetch.pagesFetched"))
+  }
+}
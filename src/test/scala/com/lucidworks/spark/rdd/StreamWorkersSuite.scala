@@ -0,0 +1,45 @@
+package com.lucidworks.spark.rdd
+
+import com.lucidworks.spark.SparkSolrFunSuite
+
+class StreamWorkersSuite extends SparkSolrFunSuite {
+
+  test("A search without partitionKeys is partitioned by the uniqueKey") {
+    val expr = SolrRDD.partitionedStreamExpr("search(logs, q=*:*, fl=\"id,level\", sort=\"id asc\", qt=/export)", "id")
+    assert(expr.isDefined)
+    assert(expr.get.contains("partitionKeys=id"))
+  }
+
+  test("Decorators of searches with partitionKeys are partitioned as is") {
+    val rollup = "rollup(search(logs, q=*:*, fl=\"level\", sort=\"level asc\", qt=/export, partitionKeys=level), " +
+      "over=level, count(*))"
+    assert(SolrRDD.partitionedStreamExpr(rollup, "id").isDefined)
+  }
+
+  test("Expressions that can't be partitioned are read by a single worker") {
+    assert(SolrRDD.partitionedStreamExpr("facet(logs, q=*:*, buckets=level, bucketSorts=\"count(*) desc\", count(*))",
+      "id").isEmpty)
+    assert(SolrRDD.partitionedStreamExpr("unique(search(logs, q=*:*, fl=\"level\", sort=\"level asc\"), over=level)",
+      "id").isEmpty)
+    assert(SolrRDD.partitionedStreamExpr("parallel(logs, search(logs, q=*:*, fl=\"id\", sort=\"id asc\", " +
+      "partitionKeys=id), workers=2, sort=\"id asc\")", "id").isEmpty)
+    assert(SolrRDD.partitionedStreamExpr(null, "id").isEmpty)
+  }
+
+  test("Decorators whose results depend on seeing all docs are read by a single worker") {
+    val search = "search(logs, q=*:*, fl=\"id,level\", sort=\"level asc\", qt=/export, partitionKeys=id)"
+    assert(SolrRDD.partitionedStreamExpr(s"top(n=10, $search, sort=\"id asc\")", "id").isEmpty)
+    assert(SolrRDD.partitionedStreamExpr(s"sort($search, by=\"id asc\")", "id").isEmpty)
+    // groups span workers unless they are the partitions
+    assert(SolrRDD.partitionedStreamExpr(s"rollup($search, over=level, count(*))", "id").isEmpty)
+    assert(SolrRDD.partitionedStreamExpr(s"unique($search, over=level)", "id").isEmpty)
+    assert(SolrRDD.partitionedStreamExpr(s"select(unique($search, over=id), id)", "id").isDefined)
+  }
+
+  test("Joins are partitioned when both sides are partitioned by the join fields") {
+    def search(keys: String) =
+      s"search(logs, q=*:*, fl=\"id,level\", sort=\"id asc\", qt=/export, partitionKeys=$keys)"
+    assert(SolrRDD.partitionedStreamExpr(s"innerJoin(${search("id")}, ${search("id")}, on=id)", "id").isDefined)
+    assert(SolrRDD.partitionedStreamExpr(s"innerJoin(${search("id")}, ${search("level")}, on=id)", "id").isEmpty)
+  }
+}
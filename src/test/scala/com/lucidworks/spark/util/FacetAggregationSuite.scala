@@ -0,0 +1,117 @@
+package com.lucidworks.spark.util
+
+import java.util.TimeZone
+
+import com.lucidworks.spark.SparkSolrFunSuite
+import org.apache.solr.common.util.{NamedList, SimpleOrderedMap}
+import org.apache.spark.sql.solr.DateTrunc
+import org.apache.spark.sql.types.{DoubleType, LongType, StringType, TimestampType}
+import org.apache.spark.unsafe.types.UTF8String
+import org.json4s.JsonAST._
+import org.json4s.jackson.JsonMethods._
+
+import scala.collection.JavaConverters._
+
+class FacetAggregationSuite extends SparkSolrFunSuite {
+
+  val aggregation = FacetAggregation(
+    Seq(FacetGroup("gender", StringType)),
+    Seq(FacetAggregate("count", None, LongType), FacetAggregate("avg", Some("age"), DoubleType)),
+    Seq(Left(0), Right(0), Right(1)))
+
+  def bucket(entries: (String, AnyRef)*): NamedList[AnyRef] = {
+    val bucket = new SimpleOrderedMap[AnyRef]()
+    entries.foreach { case (name, value) => bucket.add(name, value) }
+    bucket
+  }
+
+  def count(n: Long): NamedList[AnyRef] = bucket("count" -> java.lang.Long.valueOf(n))
+
+  test("Group by columns become nested terms facets including the missing bucket") {
+    val json = parse(FacetAggregation(
+      Seq(FacetGroup("a", StringType), FacetGroup("b", LongType)),
+      Seq(FacetAggregate("sum", Some("c"), LongType)),
+      Seq(Left(0), Left(1), Right(0))).facetJson)
+
+    assert(json \ "g0" \ "type" === JString("terms"))
+    assert(json \ "g0" \ "field" === JString("a"))
+    assert(json \ "g0" \ "limit" === JInt(-1))
+    assert(json \ "g0" \ "missing" === JBool(true))
+    assert(json \ "g0" \ "facet" \ "g1" \ "field" === JString("b"))
+    assert(json \ "g0" \ "facet" \ "g1" \ "facet" \ "a0" === JString("sum(c)"))
+    assert(json \ "g0" \ "facet" \ "g1" \ "facet" \ "n0" \ "q" === JString("c:[* TO *]"))
+  }
+
+  test("Buckets become rows, with null keys for the missing bucket and null stats without values") {
+    val facets = bucket(
+      "count" -> java.lang.Long.valueOf(6L),
+      "g0" -> bucket(
+        "buckets" -> List(
+          bucket("val" -> "F", "count" -> java.lang.Long.valueOf(3L), "a1" -> java.lang.Double.valueOf(30.5), "n1" -> count(2L)),
+          bucket("val" -> "M", "count" -> java.lang.Long.valueOf(2L), "n1" -> count(0L))).asJava,
+        "missing" -> bucket("count" -> java.lang.Long.valueOf(1L), "a1" -> java.lang.Double.valueOf(40.0), "n1" -> count(1L))))
+
+    val rows = aggregation.toRows(facets).map(_.toSeq(Seq(StringType, LongType, DoubleType)))
+    assert(rows === Seq(
+      Seq(UTF8String.fromString("F"), 3L, 30.5),
+      Seq(UTF8String.fromString("M"), 2L, null),
+      Seq(null, 1L, 40.0)))
+  }
+
+  test("Aggregations without group by columns return a single row") {
+    val global = FacetAggregation(Nil, Seq(FacetAggregate("count", None, LongType), FacetAggregate("max", Some("age"), LongType)),
+      Seq(Right(0), Right(1)))
+    assert(global.facetJson === """{"a1":"max(age)","n1":{"type":"query","q":"age:[* TO *]"}}""")
+
+    val rows = global.toRows(bucket("count" -> java.lang.Long.valueOf(0L), "n1" -> count(0L)))
+    assert(rows.map(_.toSeq(Seq(LongType, LongType))) === Seq(Seq(0L, null)))
+
+    // an empty group by yields no rows
+    assert(aggregation.toRows(bucket("count" -> java.lang.Long.valueOf(0L))).isEmpty)
+  }
+
+  test("Truncated timestamps become range facets bounded by the min and max value") {
+    val hourly = FacetAggregation(Seq(FacetGroup("ts", TimestampType, rangeUnit = Some("HOUR"))),
+      Seq(FacetAggregate("count", None, LongType)), Seq(Left(0), Right(0)))
+      .withBounds(Map("ts" -> (1433030400000L, 1433034000000L)))
+    val json = parse(hourly.facetJson)
+    assert(json \ "g0" \ "type" === JString("range"))
+    assert(json \ "g0" \ "start" === JString("2015-05-31T00:00:00.000Z/HOUR"))
+    assert(json \ "g0" \ "end" === JString("2015-05-31T01:00:00.000Z/HOUR+1HOUR"))
+    assert(json \ "g0" \ "gap" === JString("+1HOUR"))
+    assert(json \ "g0m" \ "q" === JString("*:* -ts:[* TO *]"))
+
+    val facets = bucket(
+      "g0" -> bucket("buckets" -> List(
+        bucket("val" -> new java.util.Date(1433030400000L), "count" -> java.lang.Long.valueOf(2L)),
+        bucket("val" -> new java.util.Date(1433034000000L), "count" -> java.lang.Long.valueOf(0L))).asJava),
+      "g0m" -> count(1L))
+    assert(hourly.toRows(facets).map(_.toSeq(Seq(TimestampType, LongType))) ===
+      Seq(Seq(1433030400000000L, 2L), Seq(null, 1L)))
+  }
+
+  test("Range facet buckets are bounded by the range over the shortest length of the unit") {
+    def group(unit: String, bounds: (Long, Long)) = FacetGroup("ts", TimestampType, Some(unit), Some(bounds))
+    val count = Seq(FacetAggregate("count", None, LongType))
+    val day = 24L * 3600 * 1000
+    assert(FacetAggregation(Nil, count, Seq(Right(0))).numRangeBuckets === 1L)
+    assert(FacetAggregation(Seq(group("HOUR", (0L, day - 1))), count, Nil).numRangeBuckets === 25L)
+    assert(FacetAggregation(Seq(group("MONTH", (0L, 365 * day))), count, Nil).numRangeBuckets === 15L)
+    // nested range facets multiply
+    assert(FacetAggregation(Seq(group("DAY", (0L, 0L)), group("HOUR", (0L, day - 1))), count, Nil).numRangeBuckets === 50L)
+    assert(FacetAggregation(Seq(group("SECOND", (0L, Long.MaxValue / 2)), group("SECOND", (0L, Long.MaxValue / 2))),
+      count, Nil).numRangeBuckets === Long.MaxValue)
+  }
+
+  test("date_trunc truncates timestamps to the start of the unit") {
+    val utc = TimeZone.getTimeZone("UTC")
+    val micros = 1433037787123L * 1000L // 2015-05-31T02:03:07.123Z
+    assert(DateTrunc.truncate(micros, "SECOND", utc) === 1433037787000000L)
+    assert(DateTrunc.truncate(micros, "HOUR", utc) === 1433037600000000L)
+    assert(DateTrunc.truncate(micros, "DAY", utc) === 1433030400000000L)
+    assert(DateTrunc.truncate(micros, "MONTH", utc) === 1430438400000000L)
+    assert(DateTrunc.truncate(micros, "YEAR", utc) === 1420070400000000L)
+    assert(DateTrunc.unitOf("hour") === Some("HOUR"))
+    assert(DateTrunc.unitOf("week") === None)
+  }
+}
@@ -0,0 +1,94 @@
+package com.lucidworks.spark.util
+
+import java.sql.Timestamp
+
+import com.lucidworks.spark.SparkSolrFunSuite
+import org.apache.solr.client.solrj.SolrQuery
+import org.apache.spark.sql.sources._
+import org.apache.spark.sql.types._
+
+class FilterPushDownSuite extends SparkSolrFunSuite {
+
+  def field(name: String, dataType: DataType, solrClass: String): StructField =
+    StructField(name, dataType, metadata = new MetadataBuilder().putString("name", name).putString("class", solrClass).build())
+
+  val schema = StructType(Seq(
+    field("s", StringType, "solr.StrField"),
+    field("t", StringType, "solr.TextField"),
+    field("l", LongType, "solr.TrieLongField"),
+    field("f", DoubleType, "solr.TrieFloatField"),
+    field("b", BooleanType, "solr.BoolField"),
+    field("ts", TimestampType, "solr.TrieDateField"),
+    field("m", StringType, "solr.StrField"),
+    field("a", ArrayType(StringType), "solr.StrField")))
+
+  val isMultiValued = (field: String) => field == "m"
+
+  test("Comparisons become escaped field queries") {
+    assert(SolrRelationUtil.fq(EqualTo("s", "a b:c"), schema) === "s:a\\ b\\:c")
+    assert(SolrRelationUtil.fq(GreaterThan("l", -5L), schema) === "l:{\\-5 TO *]")
+    assert(SolrRelationUtil.fq(LessThanOrEqual("ts", new Timestamp(1433030400000L)), schema) ===
+      "ts:[* TO \"2015-05-31T00:00:00.000Z\"]")
+    assert(SolrRelationUtil.fq(StringStartsWith("s", "ab"), schema) === "s:ab*")
+    assert(SolrRelationUtil.fq(StringEndsWith("s", "ab"), schema) === "s:*ab")
+    assert(SolrRelationUtil.fq(StringContains("s", "a*"), schema) === "s:*a\\**")
+    assert(SolrRelationUtil.fq(IsNull("s"), schema) === "(*:* -s:[* TO *])")
+    assert(SolrRelationUtil.fq(EqualNullSafe("s", null), schema) === "(*:* -s:[* TO *])")
+  }
+
+  test("NOT only matches docs with a value the negated filter is false for") {
+    assert(SolrRelationUtil.fq(Not(EqualTo("s", "a")), schema) === "(s:[* TO *] -s:a)")
+    assert(SolrRelationUtil.fq(Not(IsNull("s")), schema) === "s:[* TO *]")
+    assert(SolrRelationUtil.fq(Not(IsNotNull("s")), schema) === "(*:* -s:[* TO *])")
+    assert(SolrRelationUtil.fq(Not(EqualNullSafe("s", "a")), schema) === "(*:* -s:a)")
+    assert(SolrRelationUtil.fq(Not(And(EqualTo("s", "a"), EqualTo("l", 1L))), schema) ===
+      "((s:[* TO *] -s:a) OR (l:[* TO *] -l:1))")
+    assert(SolrRelationUtil.fq(Not(Or(EqualTo("s", "a"), Not(EqualTo("l", 1L)))), schema) ===
+      "((s:[* TO *] -s:a) AND l:1)")
+    assert(SolrRelationUtil.fq(Not(In("s", Array[Any]("a", null))), schema) === "(*:* -*:*)")
+  }
+
+  test("Nested conjunctions become separate filter queries") {
+    val query = new SolrQuery("*:*")
+    SolrRelationUtil.applyFilter(And(EqualTo("s", "a"), And(IsNotNull("l"), Or(EqualTo("b", true), IsNull("b")))),
+      query, schema)
+    assert(query.getFilterQueries.toSeq === Seq("s:a", "l:[* TO *]", "(b:true OR (*:* -b:[* TO *]))"))
+  }
+
+  test("Negated filters are only pushed down if Solr evaluates them exactly") {
+    val query = new SolrQuery("*:*")
+    Seq(EqualTo("t", "a"), Not(EqualTo("t", "a")), Not(EqualTo("s", "a")), Or(EqualTo("s", "a"), Not(EqualTo("m", "a"))),
+      Not(Or(EqualTo("s", "a"), Not(EqualTo("t", "a")))))
+      .foreach(SolrRelationUtil.applyFilter(_, query, schema, isMultiValued))
+    assert(query.getFilterQueries.toSeq === Seq("t:a", "(s:[* TO *] -s:a)", "((s:[* TO *] -s:a) AND t:a)"))
+
+    // without the field definitions, fields may be multi-valued
+    val unknown = new SolrQuery("*:*")
+    SolrRelationUtil.applyFilter(Not(EqualTo("s", "a")), unknown, schema)
+    assert(unknown.getFilterQueries == null)
+  }
+
+  test("Only filters Solr evaluates like Spark are exact") {
+    def exact(filter: Filter) = SolrRelationUtil.isExactFilter(filter, schema, isMultiValued)
+
+    assert(exact(EqualTo("s", "a")))
+    assert(exact(Not(Or(GreaterThan("l", 1L), In("s", Array[Any]("a", null))))))
+    assert(exact(EqualTo("b", true)))
+    assert(exact(LessThan("ts", new Timestamp(1433030400000L))))
+    assert(exact(StringStartsWith("s", "a")))
+    assert(exact(IsNull("t")))
+
+    // analyzed text, floats read as doubles, multi-valued fields
+    assert(!exact(EqualTo("t", "a")))
+    assert(!exact(StringContains("t", "a")))
+    assert(!exact(EqualTo("f", 1.5)))
+    assert(!exact(EqualTo("m", "a")))
+    assert(!exact(IsNotNull("a")))
+    assert(!exact(And(EqualTo("s", "a"), EqualTo("t", "a"))))
+    assert(!exact(GreaterThan("b", false)))
+    assert(!exact(EqualTo("x", "a")))
+    val micros = new Timestamp(1433030400000L)
+    micros.setNanos(1000)
+    assert(!exact(LessThan("ts", micros)))
+  }
+}
@@ -0,0 +1,38 @@
+package com.lucidworks.spark.util
+
+import com.lucidworks.spark.SparkSolrFunSuite
+
+class HashSampleSuite extends SparkSolrFunSuite {
+
+  test("Sample fractions use few buckets of the uniqueKey hash") {
+    assert(SolrRelationUtil.sampleBuckets(0.1) === (1, 10))
+    assert(SolrRelationUtil.sampleBuckets(0.05) === (1, 20))
+    assert(SolrRelationUtil.sampleBuckets(0.3) === (3, 10))
+    val (buckets, workers) = SolrRelationUtil.sampleBuckets(0.123)
+    assert(buckets <= SolrRelationUtil.MAX_SAMPLE_HASH_BUCKETS)
+    assert(math.abs(buckets.toDouble / workers - 0.123) < 0.005)
+  }
+
+  test("The seed picks the buckets of the sample") {
+    val filter = SolrRelationUtil.hashSampleFilter("id", None, 12, 0.3)
+    assert(filter.isDefined)
+    assert(Seq(2, 3, 4).forall(worker => filter.get.contains(s"workers=10 worker=$worker partitionKeys=id")))
+    assert(SolrRelationUtil.hashSampleFilter("id", None, 12, 0.3) === filter)
+    assert(SolrRelationUtil.hashSampleFilter("id", None, 13, 0.3) !== filter)
+  }
+
+  test("A hash field is sampled by a range of its values") {
+    val ranges = (0 until 100).flatMap(seed => SolrRelationUtil.hashSampleFilter("id", Some("hash_i"), seed, 0.25))
+    val pattern = """hash_i:\[(-?\d+) TO (-?\d+)\]""".r
+    ranges.foreach { filter =>
+      val width = pattern.findAllMatchIn(filter).map(m => m.group(2).toLong - m.group(1).toLong + 1).sum
+      assert(width === (1L << 30), filter)
+    }
+    assert(ranges.distinct.size === ranges.size)
+  }
+
+  test("No filter for the whole collection") {
+    assert(SolrRelationUtil.hashSampleFilter("id", None, 1, 1.0).isEmpty)
+    assert(SolrRelationUtil.hashSampleFilter("id", Some("hash_i"), 1, 1.0).isEmpty)
+  }
+}
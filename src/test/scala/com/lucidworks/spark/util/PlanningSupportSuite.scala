@@ -0,0 +1,29 @@
+package com.lucidworks.spark.util
+
+import com.lucidworks.spark.SparkSolrFunSuite
+
+class PlanningSupportSuite extends SparkSolrFunSuite {
+
+  test("Tasks run concurrently and slow ones are dropped at the time budget") {
+    val startMs = System.currentTimeMillis()
+    val results = PlanningSupport.runWithBudget(1 to 8, 8, 2000L, "test-plan") { i =>
+      if (i == 5) Thread.sleep(10000L) else Thread.sleep(200L)
+      i * 10
+    }
+    assert(System.currentTimeMillis() - startMs < 5000L)
+    assert(results === (1 to 8).map(i => if (i == 5) None else Some(i * 10)))
+  }
+
+  test("Failed tasks fail planning") {
+    intercept[IllegalStateException] {
+      PlanningSupport.runWithBudget(Seq(1, 2), 2, 10000L, "test-plan") { i =>
+        if (i == 2) throw new IllegalStateException("no stats") else i
+      }
+    }
+  }
+
+  test("Background metadata requests") {
+    val future = PlanningSupport.async { Thread.sleep(50L); "done" }
+    assert(PlanningSupport.await(future) === "done")
+  }
+}
@@ -0,0 +1,35 @@
+package com.lucidworks.spark.util
+
+import java.util.UUID
+
+import com.lucidworks.spark.TestSuiteBuilder
+import org.apache.solr.client.solrj.request.schema.SchemaRequest
+
+import scala.collection.JavaConverters._
+
+class SolrMetadataCatalogSuite extends TestSuiteBuilder {
+
+  test("Cached metadata is dropped when the schema changes in ZooKeeper") {
+    val collectionName = "testMetadataCatalog" + UUID.randomUUID().toString
+    SolrCloudUtil.buildCollection(zkHost, collectionName, cloudClient, sc)
+    try {
+      assert(SolrMetadataCatalog.uniqueKey(zkHost, collectionName) === "id")
+      val classes = SolrMetadataCatalog.fieldTypeClasses(zkHost, collectionName)
+      assert(classes.nonEmpty)
+      assert(SolrMetadataCatalog.isCached(zkHost, collectionName))
+      // served from the cache
+      assert(SolrMetadataCatalog.fieldTypeClasses(zkHost, collectionName) eq classes)
+
+      val field = Map[String, AnyRef]("name" -> "catalog_test_s", "type" -> "string", "stored" -> "true")
+      new SchemaRequest.AddField(field.asJava).process(cloudClient, collectionName)
+
+      val deadline = System.currentTimeMillis() + 10000L
+      while (SolrMetadataCatalog.isCached(zkHost, collectionName) && System.currentTimeMillis() < deadline)
+        Thread.sleep(100L)
+      assert(!SolrMetadataCatalog.isCached(zkHost, collectionName))
+    } finally {
+      SolrMetadataCatalog.invalidate(zkHost, collectionName)
+      SolrCloudUtil.deleteCollection(collectionName, cluster)
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package com.lucidworks.spark.util
+
+import java.util.{Arrays, Date}
+
+import com.lucidworks.spark.SparkSolrFunSuite
+import org.apache.solr.common.SolrDocument
+import org.apache.spark.sql.types._
+import org.apache.spark.unsafe.types.UTF8String
+import org.joda.time.DateTime
+
+class SolrRowConverterSuite extends SparkSolrFunSuite {
+
+  val schema = StructType(Seq(
+    StructField("id", StringType),
+    StructField("count_i", LongType),
+    StructField("price_f", DoubleType),
+    StructField("flag_b", BooleanType),
+    StructField("ts_tdt", TimestampType),
+    StructField("tags_ss", ArrayType(StringType, true)),
+    StructField("flat_ss", StringType),
+    StructField("missing_s", StringType)))
+
+  test("Convert SolrDocument to InternalRow") {
+    val now = new Date()
+    val doc = new SolrDocument()
+    doc.setField("id", "doc-1")
+    doc.setField("count_i", new java.lang.Integer(5))
+    doc.setField("price_f", new java.lang.Float(1.5f))
+    doc.setField("flag_b", java.lang.Boolean.TRUE)
+    doc.setField("ts_tdt", now)
+    doc.setField("tags_ss", Arrays.asList("a", "b"))
+    doc.setField("flat_ss", Arrays.asList("x", "y"))
+
+    val row = new SolrRowConverter(schema).toInternalRow(doc)
+    assert(row.getUTF8String(0) === UTF8String.fromString("doc-1"))
+    assert(row.getLong(1) === 5L)
+    assert(row.getDouble(2) === 1.5d)
+    assert(row.getBoolean(3))
+    assert(row.getLong(4) === now.getTime * 1000L)
+    assert(row.getArray(5).numElements() === 2)
+    assert(row.getArray(5).getUTF8String(1) === UTF8String.fromString("b"))
+    assert(row.getUTF8String(6) === UTF8String.fromString("x"))
+    assert(row.isNullAt(7))
+  }
+
+  test("Reused row is reset between documents") {
+    val converter = new SolrRowConverter(schema)
+    val doc1 = new SolrDocument()
+    doc1.setField("id", "doc-1")
+    doc1.setField("count_i", new java.lang.Long(1L))
+    assert(!converter.toInternalRow(doc1).isNullAt(1))
+
+    val doc2 = new SolrDocument()
+    doc2.setField("id", "doc-2")
+    val row = converter.toInternalRow(doc2)
+    assert(row.getUTF8String(0) === UTF8String.fromString("doc-2"))
+    assert(row.isNullAt(1))
+  }
+
+  test("Dates streamed as strings from the export handler") {
+    val doc = new SolrDocument()
+    doc.setField("ts_tdt", "2016-10-14T01:02:03.456Z")
+    val row = new SolrRowConverter(schema).toInternalRow(doc)
+    assert(row.getLong(4) === DateTime.parse("2016-10-14T01:02:03.456Z").getMillis * 1000L)
+  }
+
+  test("Fast ISO-8601 parsing matches Joda") {
+    val dates = Seq("1970-01-01T00:00:00Z", "2000-02-29T23:59:59.9Z", "2016-12-31T12:30:00.05Z",
+      "1969-07-20T20:17:40Z", "0001-01-01T00:00:00Z", "2016-10-14T01:02:03.456Z")
+    dates.foreach(d => assert(SolrRowConverter.parseISODateTimeMillis(d) === DateTime.parse(d).getMillis, d))
+
+    // not in Solr's format, falls back to Joda
+    assert(SolrRowConverter.parseISODateTimeMillis("2016-10-14T01:02:03.456+02:00") ===
+      DateTime.parse("2016-10-14T01:02:03.456+02:00").getMillis)
+  }
+}
@@ -0,0 +1,50 @@
+package com.lucidworks.spark.util
+
+import java.nio.file.Files
+
+import com.lucidworks.spark.SparkSolrFunSuite
+import org.apache.commons.io.FileUtils
+import org.apache.hadoop.conf.Configuration
+import org.apache.solr.client.solrj.SolrQuery
+
+class SplitPlanCacheSuite extends SparkSolrFunSuite {
+
+  val coreUrl = "http://host1:8983/solr/coll_shard1_replica1/"
+
+  def key(query: SolrQuery, version: Long): String =
+    SplitPlanCache.key("coll", "shard1", coreUrl, "_version_", 4, query, version)
+
+  test("Keys ignore parameter order but not the index version") {
+    val q1 = new SolrQuery("*:*")
+    q1.addFilterQuery("a:1", "b:2")
+    val q2 = new SolrQuery("*:*")
+    q2.addFilterQuery("b:2", "a:1")
+    assert(key(q1, 7L) === key(q2, 7L))
+    assert(key(q1, 7L) !== key(q1, 8L))
+
+    q2.addFilterQuery("c:3")
+    assert(key(q1, 7L) !== key(q2, 7L))
+  }
+
+  test("Plans survive across the in-memory cache through the cache dir") {
+    val dir = Files.createTempDirectory("split-plans").toFile
+    try {
+      val config = SplitPlanCacheConfig("coll", Some(dir.getAbsolutePath), new Configuration())
+      val splits = Seq(CachedSplit("_version_:[* TO 100}", 42L), CachedSplit("_version_:[100 TO *]", 58L))
+      val k = key(new SolrQuery("*:*"), 1L)
+
+      assert(SplitPlanCache.get(k, config).isEmpty)
+      SplitPlanCache.put(k, splits, config)
+      SplitPlanCache.clear()
+      assert(SplitPlanCache.get(k, config) === Some(splits))
+
+      // a corrupt plan is treated as a miss
+      FileUtils.writeStringToFile(new java.io.File(dir, k), "{not json")
+      SplitPlanCache.clear()
+      assert(SplitPlanCache.get(k, config).isEmpty)
+    } finally {
+      SplitPlanCache.clear()
+      FileUtils.deleteQuietly(dir)
+    }
+  }
+}
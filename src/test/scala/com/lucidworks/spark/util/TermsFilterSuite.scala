@@ -0,0 +1,85 @@
+package com.lucidworks.spark.util
+
+import java.sql.Timestamp
+
+import com.lucidworks.spark.{ShardRDDPartition, SolrReplica, SolrShard, SparkSolrContextBuilder, SparkSolrFunSuite}
+import com.lucidworks.spark.util.QueryConstants.LARGE_TERMS_FILTER_SIZE
+import org.apache.solr.client.solrj.SolrQuery
+import org.apache.spark.Partition
+import org.apache.spark.sql.sources.In
+import org.apache.spark.sql.types._
+
+class TermsFilterSuite extends SparkSolrFunSuite with SparkSolrContextBuilder {
+
+  def partitions(query: SolrQuery): Array[Partition] = {
+    val replica = SolrReplica(0, "replica1", "http://host1:8983/solr/coll_shard1_replica1/", "host1", Array.empty)
+    Array(ShardRDDPartition(0, "*", SolrShard("shard1", List(replica)), query, replica),
+      ShardRDDPartition(1, "*", SolrShard("shard2", List(replica)), query, replica))
+  }
+
+  test("Terms queries use a separator that none of the values contain") {
+    assert(TermsFilter.termsQuery("id", Seq("a", "b")) === "{!terms f=id}a,b")
+    assert(TermsFilter.termsQuery("id", Seq("a,1", "b")) === "{!terms f=id separator='|'}a,1|b")
+    assert(TermsFilter.termsQuery("id", Seq.empty) === "{!terms f=id}")
+    assert(TermsFilter.termsQuery("id", Seq("a"), Some("docValuesTermsFilter"), cache = false) ===
+      "{!terms f=id method=docValuesTermsFilter cache=false}a")
+  }
+
+  def solrClass(name: String): Metadata = new MetadataBuilder().putString("class", name).build()
+
+  test("IN filters use the terms query parser") {
+    val schema = StructType(Seq(
+      StructField("s", StringType, metadata =
+        new MetadataBuilder().withMetadata(solrClass("solr.StrField")).putBoolean("docValues", true).build()),
+      StructField("ts", TimestampType, metadata = solrClass("solr.TrieDateField")),
+      StructField("l", LongType, metadata = solrClass("solr.TrieLongField"))))
+    val query = new SolrQuery("*:*")
+    SolrRelationUtil.applyFilter(In("s", Array[Any]("a b", "c\"d", null)), query, schema)
+    SolrRelationUtil.applyFilter(In("ts", Array[Any](new Timestamp(1433030400000L))), query, schema)
+    SolrRelationUtil.applyFilter(In("l", (1 to LARGE_TERMS_FILTER_SIZE).map(_.toLong).toArray[Any]), query, schema)
+    assert(query.getFilterQueries()(0) === "{!terms f=s}a b,c\"d")
+    assert(query.getFilterQueries()(1) === "{!terms f=ts}2015-05-31T00:00:00.000Z")
+    assert(query.getFilterQueries()(2).startsWith("{!terms f=l cache=false}1,2,3,"))
+
+    val large = In("s", (1 to LARGE_TERMS_FILTER_SIZE).map(_.toString).toArray[Any])
+    assert(SolrRelationUtil.termsFilterQuery(large, schema).startsWith("{!terms f=s method=docValuesTermsFilter cache=false}"))
+
+    // nested in boolean filters
+    assert(SolrRelationUtil.fq(In("s", Array[Any]("c\"d")), schema) === "_query_:\"{!terms f=s}c\\\"d\"")
+  }
+
+  test("IN filters on analyzed text use the standard query parser") {
+    val schema = StructType(Seq(StructField("t", StringType, metadata = solrClass("solr.TextField"))))
+    val query = new SolrQuery("*:*")
+    SolrRelationUtil.applyFilter(In("t", Array[Any]("Outage", "data \"center\"", null)), query, schema)
+    // analyzed like the indexed text, matching docs indexed as e.g. "outage"
+    assert(query.getFilterQueries()(0) === "t:(\"Outage\" \"data \\\"center\\\"\")")
+    assert(SolrRelationUtil.fq(In("t", Array[Any](null)), schema) === "(*:* -*:*)")
+  }
+
+  test("Small filters are added to the partition queries of each batch") {
+    val filter = TermsFilter(sc, "userId", Array("1", "2", "3"), batchSize = 2, broadcastThreshold = 10)
+    assert(!filter.isBroadcast)
+    assert(filter.numBatches === 2)
+
+    val batched = filter.partitionsPerBatch(partitions(new SolrQuery("*:*")))
+    assert(batched.map(_.index).toSeq === Seq(0, 1, 2, 3))
+    val filterQueries = batched.map(_.asInstanceOf[ShardRDDPartition].query.getFilterQueries.toSeq).toSeq
+    assert(filterQueries === Seq(Seq("{!terms f=userId}1,2"), Seq("{!terms f=userId}1,2"),
+      Seq("{!terms f=userId}3"), Seq("{!terms f=userId}3")))
+  }
+
+  test("Large filters are broadcast and only added when reading a partition") {
+    val filter = TermsFilter(sc, "userId", Array("1", "2", "3"), batchSize = 2, broadcastThreshold = 1)
+    assert(filter.isBroadcast)
+
+    val batched = filter.partitionsPerBatch(partitions(new SolrQuery("*:*")))
+    val query = batched(2).asInstanceOf[ShardRDDPartition].query
+    assert(query.getFilterQueries === null)
+    assert(query.get(TermsFilter.BATCH_PARAM) === "1")
+
+    val applied = filter.applyTo(query)
+    assert(applied.get(TermsFilter.BATCH_PARAM) === null)
+    assert(applied.getFilterQueries.toSeq === Seq("{!terms f=userId}3"))
+  }
+}